@@ -1,15 +1,26 @@
 package it.idsolutions.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 
-public class JacksonAdapter implements HttpClient.DataAdapter {
+public class JacksonAdapter implements HttpClient.StreamDataAdapter {
+    // Thread-safe once configured. Streams are closed by the caller
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+
     @Override
     public String serialize(Object content) {
         try {
-            return new ObjectMapper().writeValueAsString(content);
+            return MAPPER.writeValueAsString(content);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -18,27 +29,67 @@ public class JacksonAdapter implements HttpClient.DataAdapter {
     @Override
     public <T> T deserialize(String content, Class<T> type) {
         try {
-            return new ObjectMapper().readValue(content, type);
+            return MAPPER.readValue(content, type);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
-    
+
     /**
      * Deserialize implementation. Use this method in case of type erasure.
-     * 
+     *
      * @param <T> The expected result type.
      * @param content JSON string
-     * @param type Must be a TypeReference (i.e.: 
+     * @param type Must be a TypeReference (i.e.:
      *          <code>new TypeReference&lt;List&lt;MyObject&gt;&gt;(){}</code>)
-     * @return 
+     * @return
      */
     @Override
     public <T> T deserializeRef(String content, Object type) {
         try {
-            return new ObjectMapper().readValue(content, (TypeReference)type);
+            return MAPPER.readValue(content, (TypeReference)type);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * Serialize as UTF-8 JSON directly to a stream.
+     */
+    @Override
+    public void serialize(Object content, OutputStream out) throws IOException {
+        MAPPER.writeValue(out, content);
+    }
+
+    /**
+     * Deserialize directly from a stream. UTF-8 content is parsed from the
+     * bytes, without decoding it to chars first.
+     */
+    @Override
+    public <T> T deserialize(InputStream in, String charset, Class<T> type)
+            throws IOException {
+        if (isUtf8(charset))
+            return MAPPER.readValue(in, type);
+        return MAPPER.readValue(new InputStreamReader(in, charset), type);
+    }
+
+    /**
+     * Deserialize directly from a stream. Use this method in case of type
+     * erasure.
+     *
+     * @param type Must be a TypeReference
+     * @see #deserializeRef(String, Object)
+     */
+    @Override
+    public <T> T deserializeRef(InputStream in, String charset, Object type)
+            throws IOException {
+        if (isUtf8(charset))
+            return MAPPER.readValue(in, (TypeReference)type);
+        return MAPPER.readValue(new InputStreamReader(in, charset), (TypeReference)type);
+    }
+
+    private static boolean isUtf8(String charset) {
+        return charset == null || "UTF-8".equalsIgnoreCase(charset)
+                || "UTF8".equalsIgnoreCase(charset);
+    }
 }
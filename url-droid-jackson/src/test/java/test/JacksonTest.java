@@ -2,6 +2,8 @@ package test;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import it.idsolutions.util.JacksonAdapter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
@@ -63,6 +65,27 @@ public class JacksonTest {
         assertEquals(42, r.get(0).i);
     }
     
+    @Test
+    public void testStream() throws Exception {
+        JacksonAdapter a = new JacksonAdapter();
+        Test1 t = new Test1();
+        t.i = 42;
+        t.s = "t\u00e8st";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        a.serialize(t, out);
+        assertEquals(a.serialize(t), out.toString("UTF-8"));
+        
+        Test1 r = a.deserialize(new ByteArrayInputStream(out.toByteArray()),
+                "UTF-8", Test1.class);
+        assertEquals(42, r.i);
+        assertEquals(t.s, r.s);
+        
+        byte[] latin1 = "[{\"s\":\"t\u00e8st\"}]".getBytes("ISO-8859-1");
+        List<Test1> list = a.deserializeRef(new ByteArrayInputStream(latin1),
+                "ISO-8859-1", new TypeReference<List<Test1>>(){});
+        assertEquals(t.s, list.get(0).s);
+    }
+    
     
     static class Test1 {
         public List<String> list;
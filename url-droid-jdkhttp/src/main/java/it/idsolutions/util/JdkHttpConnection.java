@@ -0,0 +1,193 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+
+/**
+ * Connection of the {@link JdkHttpEngine}: sends the request with the
+ * shared JDK client.
+ *
+ * @author ps
+ */
+class JdkHttpConnection extends EngineConnection {
+    // Headers managed by the JDK client, which cannot be set
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(
+            Arrays.asList("connection", "content-length", "date", "expect", "from",
+                    "host", "origin", "referer", "upgrade", "via", "warning"));
+
+    private final JdkHttpEngine engine;
+
+
+    JdkHttpConnection(JdkHttpEngine engine, URL url, Proxy proxy) {
+        super(url, proxy);
+        this.engine = engine;
+    }
+
+
+    @Override
+    protected Response execute(final InputStream body, long length) throws IOException {
+        HttpRequest.Builder rb;
+        try {
+            rb = HttpRequest.newBuilder(url.toURI());
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+        for (Map.Entry<String, List<String>> h : requestHeaders().entrySet()) {
+            if (h.getKey() == null || RESTRICTED_HEADERS.contains(h.getKey().toLowerCase()))
+                continue;
+            for (String v : h.getValue())
+                rb.header(h.getKey(), v);
+        }
+        if (getReadTimeout() > 0)
+            rb.timeout(Duration.ofMillis(getReadTimeout()));
+
+        // A streamed body can be read only once: a redirect which keeps the
+        // method (307, 308) would send it empty, so it is not followed
+        boolean followRedirects = true;
+        HttpRequest.BodyPublisher publisher;
+        if (body == null || length == 0) {
+            publisher = HttpRequest.BodyPublishers.noBody();
+        } else if (body instanceof BufferedBody) {
+            publisher = HttpRequest.BodyPublishers.ofByteArray(((BufferedBody) body).bytes());
+        } else {
+            publisher = new StreamPublisher(body, length);
+            followRedirects = false;
+        }
+        rb.method(method, publisher);
+
+        HttpResponse<InputStream> r;
+        try {
+            r = engine.client(proxy(), getConnectTimeout(), getSSLSocketFactory(),
+                    followRedirects)
+                    .send(rb.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        Response response = new Response(r.statusCode(), null,
+                (r.version() == java.net.http.HttpClient.Version.HTTP_2 ? "HTTP/2" : "HTTP/1.1") +
+                " " + r.statusCode(),
+                r.headers().map(), r.body());
+        if (r.sslSession().isPresent()) {
+            SSLSession ssl = r.sslSession().get();
+            Certificate[] peer;
+            try {
+                peer = ssl.getPeerCertificates();
+            } catch (SSLPeerUnverifiedException ex) {
+                peer = null;
+            }
+            response.ssl(ssl.getCipherSuite(), ssl.getLocalCertificates(), peer);
+        }
+        return response;
+    }
+
+
+    /**
+     * Publisher of a streamed body. BodyPublishers.ofInputStream() takes a
+     * read error for the end of the stream, and would end the body where
+     * the writer failed: here the error fails the request.
+     */
+    private static class StreamPublisher implements HttpRequest.BodyPublisher {
+        private static final int BUFFER_SIZE = 16 * 1024;
+        private final InputStream in;
+        private final long length;
+
+
+        StreamPublisher(InputStream in, long length) {
+            this.in = in;
+            this.length = length;
+        }
+
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private final AtomicLong demand = new AtomicLong();
+                private final AtomicInteger draining = new AtomicInteger();
+                private volatile boolean done;
+
+
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        done = true;
+                        subscriber.onError(new IllegalArgumentException("Non-positive request"));
+                        return;
+                    }
+                    long d;
+                    do {
+                        d = demand.get();
+                    } while (!demand.compareAndSet(d, d + n < 0 ? Long.MAX_VALUE : d + n));
+                    drain();
+                }
+
+
+                @Override
+                public void cancel() {
+                    done = true;
+                    // The client stopped sending (i.e. an early error
+                    // response): unblock the writer of the body
+                    try {
+                        in.close();
+                    } catch (IOException ignore) { }
+                }
+
+
+                // Reads on the requesting thread, once at a time even if
+                // onNext() requests more
+                private void drain() {
+                    if (draining.getAndIncrement() != 0)
+                        return;
+                    do {
+                        while (!done && demand.get() > 0) {
+                            byte[] buf = new byte[BUFFER_SIZE];
+                            int n;
+                            try {
+                                n = in.read(buf);
+                            } catch (IOException ex) {
+                                done = true;
+                                subscriber.onError(ex);
+                                return;
+                            }
+                            if (n == -1) {
+                                done = true;
+                                subscriber.onComplete();
+                                return;
+                            }
+                            demand.decrementAndGet();
+                            subscriber.onNext(ByteBuffer.wrap(buf, 0, n));
+                        }
+                    } while (draining.decrementAndGet() != 0);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URL;
+import java.time.Duration;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+
+/**
+ * Engine backed by the JDK HTTP client, {@link java.net.http.HttpClient}
+ * (Java 11+).
+ * <p>
+ * Requests use HTTP/2 when the server supports it: negotiated with ALPN
+ * over HTTPS, or with an h2c upgrade over plain HTTP. Requests to the same
+ * server are then multiplexed over a single connection; HTTP/1.1 requests
+ * use the connection pool of the JDK client.
+ * <p>
+ * A JDK client is created for each combination of proxy, connect timeout
+ * and SSLContext, and shared by all the requests with those settings. Each
+ * client has its own connection pool and selector thread, so only the 8
+ * combinations used last are kept, from their second use: one-off settings
+ * get a client which is dropped after the request.
+ * Notes about the JDK client:
+ * <ul>
+ * <li>only HTTP proxies are supported;</li>
+ * <li>custom hostname verifiers are ignored: hostnames are always verified
+ * (unless system property
+ * 'jdk.internal.httpclient.disableHostnameVerification' is set);</li>
+ * <li>the read timeout is used as the timeout for receiving the response
+ * headers;</li>
+ * <li>redirects are not followed for requests with a streamed body
+ * (fixed-length over 64 KB, or chunked), which cannot be sent again: the
+ * redirect response is returned.</li>
+ * </ul>
+ * This engine is registered as a service, so it becomes the default engine
+ * when it is the only engine module on the classpath (with many, see
+ * {@link HttpEngines} for the choice). It can also be selected by name,
+ * {@value #NAME}, or with the system property 'urldroid.engine'.
+ *
+ * @author ps
+ */
+public class JdkHttpEngine implements HttpEngine {
+    public static final String NAME = "jdk";
+
+    private final java.net.http.HttpClient.Version version;
+    private final DerivedClients<java.net.http.HttpClient> clients =
+            new DerivedClients<java.net.http.HttpClient>(8);
+
+
+    /**
+     * Create an engine preferring HTTP/2.
+     */
+    public JdkHttpEngine() {
+        this(java.net.http.HttpClient.Version.HTTP_2);
+    }
+
+
+    /**
+     * Create an engine with a preferred HTTP version.
+     *
+     * @param version HTTP version
+     */
+    public JdkHttpEngine(java.net.http.HttpClient.Version version) {
+        this.version = version;
+    }
+
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+
+    @Override
+    public HttpURLConnection open(URL url, Proxy proxy) throws IOException {
+        if (proxy != null && proxy.type() == Proxy.Type.SOCKS)
+            throw new IOException("SOCKS proxies are not supported by the JDK HTTP client");
+        return new JdkHttpConnection(this, url, proxy);
+    }
+
+
+    /**
+     * Returns the client for the given settings.
+     */
+    java.net.http.HttpClient client(Proxy proxy, int connectTimeout,
+            SSLSocketFactory sslSocketFactory, boolean followRedirects) {
+        // The key holds the context weakly, like SslContexts
+        SSLContext sslContext = SslContexts.context(sslSocketFactory);
+        return clients.get(() -> {
+            java.net.http.HttpClient.Builder b = java.net.http.HttpClient.newBuilder()
+                    .version(version)
+                    .followRedirects(followRedirects ?
+                            java.net.http.HttpClient.Redirect.NORMAL
+                            : java.net.http.HttpClient.Redirect.NEVER);
+            if (connectTimeout > 0)
+                b.connectTimeout(Duration.ofMillis(connectTimeout));
+            if (proxy != null) {
+                b.proxy(proxy.type() == Proxy.Type.DIRECT ?
+                        java.net.http.HttpClient.Builder.NO_PROXY
+                        : ProxySelector.of((InetSocketAddress) proxy.address()));
+            }
+            if (sslContext != null)
+                b.sslContext(sslContext);
+            return b.build();
+        }, proxy, connectTimeout, sslContext, followRedirects);
+    }
+}
@@ -0,0 +1,159 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpEngine;
+import it.idsolutions.util.HttpEngines;
+import it.idsolutions.util.JdkHttpEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Runs all the HttpClient scenarios with the JDK HTTP client engine.
+ *
+ * @author ps
+ */
+public class JdkHttpEngineTest extends HttpClientTest {
+    private static final int REDIRECT_PORT = 3210;
+    private HttpEngine previous;
+
+
+    @Before
+    public void useJdkEngine() {
+        previous = HttpEngines.getDefault();
+        HttpEngines.setDefault(HttpEngines.get(JdkHttpEngine.NAME));
+    }
+
+
+    @After
+    public void restoreEngine() {
+        HttpEngines.setDefault(previous);
+    }
+
+
+    @Test
+    public void testRegistered() {
+        assertTrue(HttpEngines.get(JdkHttpEngine.NAME) instanceof JdkHttpEngine);
+        assertSame(HttpEngines.get(JdkHttpEngine.NAME), HttpEngines.getDefault());
+    }
+
+
+    @Test
+    public void testRedirectBody() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(REDIRECT_PORT), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] request = read(exchange.getRequestBody());
+                if (exchange.getRequestURI().getPath().equals("/redirect")) {
+                    exchange.getResponseHeaders().set("Location", "/echo");
+                    exchange.sendResponseHeaders(307, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, request.length);
+                    exchange.getResponseBody().write(request);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            // Buffered: sent again to the new location
+            HttpClient c = new HttpClient("http://localhost:" + REDIRECT_PORT + "/redirect")
+                    .setHeader("Referer", "http://localhost/")
+                    .setHeader("Origin", "http://localhost")
+                    .entity("body")
+                    .post();
+            assertEquals(200, c.code());
+            assertEquals("body", c.content());
+
+            // Streamed: it cannot be sent again, so the redirect is returned
+            byte[] large = new byte[100 * 1024];
+            Arrays.fill(large, (byte) 'x');
+            c = new HttpClient("http://localhost:" + REDIRECT_PORT + "/redirect")
+                    .entity(large)
+                    .noExceptions()
+                    .post();
+            assertEquals(307, c.code());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+
+    @Test
+    public void testEarlyResponse() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(REDIRECT_PORT), 0);
+        server.createContext("/reject", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Answers without reading the body
+                exchange.sendResponseHeaders(413, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // The writer of a streamed body must not wait for a reader
+            // which is gone
+            Future<Integer> code = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    try {
+                        return new HttpClient("http://localhost:" + REDIRECT_PORT + "/reject")
+                                .entity(new HttpClient.BodyWriter() {
+                                    @Override
+                                    public void writeTo(OutputStream out) throws IOException {
+                                        byte[] b = new byte[64 * 1024];
+                                        for (int i = 0; i < 1024; i++)
+                                            out.write(b);
+                                    }
+                                })
+                                .noExceptions()
+                                .post()
+                                .code();
+                    } catch (RuntimeException ex) {
+                        return -1;
+                    }
+                }
+            });
+            int c = code.get(20, TimeUnit.SECONDS);
+            assertTrue(c == 413 || c == -1);
+        } finally {
+            executor.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int l;
+        while ((l = in.read(buf)) != -1)
+            out.write(buf, 0, l);
+        in.close();
+        return out.toByteArray();
+    }
+}
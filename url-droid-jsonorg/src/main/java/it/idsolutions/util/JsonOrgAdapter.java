@@ -1,10 +1,17 @@
 package it.idsolutions.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 
-public class JsonOrgAdapter implements HttpClient.DataAdapter {
+public class JsonOrgAdapter implements HttpClient.StreamDataAdapter {
     @Override
     public String serialize(Object content) {
         if (!(content instanceof JSONObject))
@@ -22,7 +29,7 @@ public class JsonOrgAdapter implements HttpClient.DataAdapter {
             throw new RuntimeException(ex);
         }
     }
-    
+
     @Override
     public <T> T deserializeRef(String content, Object type) {
         if (type != JSONObject.class)
@@ -33,4 +40,35 @@ public class JsonOrgAdapter implements HttpClient.DataAdapter {
             throw new RuntimeException(ex);
         }
     }
+
+    @Override
+    public void serialize(Object content, OutputStream out) throws IOException {
+        if (!(content instanceof JSONObject))
+            throw new UnsupportedOperationException("Only JSONObject type is supported for serialization");
+        Writer w = new OutputStreamWriter(out, "UTF-8");
+        try {
+            ((JSONObject)content).write(w);
+        } catch (JSONException ex) {
+            throw new RuntimeException(ex);
+        }
+        w.flush();
+    }
+
+    @Override
+    public <T> T deserialize(InputStream in, String charset, Class<T> type) throws IOException {
+        return deserializeRef(in, charset, type);
+    }
+
+    @Override
+    public <T> T deserializeRef(InputStream in, String charset, Object type) throws IOException {
+        if (type != JSONObject.class)
+            throw new UnsupportedOperationException("Only JSONObject type is supported for deserialization");
+        try {
+            // The tokener buffers the reader
+            return (T)new JSONObject(new JSONTokener(
+                    new InputStreamReader(in, charset == null ? "UTF-8" : charset)));
+        } catch (JSONException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
 }
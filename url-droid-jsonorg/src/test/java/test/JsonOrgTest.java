@@ -1,6 +1,8 @@
 package test;
 
 import it.idsolutions.util.JsonOrgAdapter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import org.json.JSONObject;
 import org.junit.Test;
@@ -39,4 +41,18 @@ public class JsonOrgTest {
         assertEquals(r.getJSONArray("list").get(0), "e1");
         assertEquals(r.getJSONArray("list").length(), 2);
     }
+    
+    @Test
+    public void testStream() throws Exception {
+        JsonOrgAdapter a = new JsonOrgAdapter();
+        JSONObject t = new JSONObject();
+        t.put("i", 42);
+        t.put("s", "t\u00e8st");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        a.serialize(t, out);
+        JSONObject r = a.deserialize(new ByteArrayInputStream(out.toByteArray()),
+                "UTF-8", JSONObject.class);
+        assertEquals(42, r.getInt("i"));
+        assertEquals("t\u00e8st", r.getString("s"));
+    }
 }
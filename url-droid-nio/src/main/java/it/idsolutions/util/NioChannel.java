@@ -0,0 +1,344 @@
+package it.idsolutions.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * A connection of the {@link NioEngine}, owned by an event loop.
+ * <p>
+ * Requests are written in order, and their responses are read in the same
+ * order: with pipelining, more requests can be written before the first
+ * response is complete. All the methods that do I/O run on the loop
+ * thread; the others hand the work to the loop.
+ *
+ * @author ps
+ */
+final class NioChannel {
+    final NioHostPool pool;
+    final NioEventLoop loop;
+
+    // Guarded by the pool
+    int assigned;
+    int unsafe;
+    boolean confirmed;
+    long idleSince;
+
+    // Used only by the loop thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected;
+    private boolean closed;
+    private boolean paused;
+    private long connectDeadline;
+    private long lastActivity;
+    private final LinkedList<NioExchange> exchanges = new LinkedList<NioExchange>();
+    private final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+
+
+    NioChannel(NioHostPool pool, NioEventLoop loop) {
+        this.pool = pool;
+        this.loop = loop;
+    }
+
+
+    /**
+     * Send a request on this connection, connecting first if required.
+     * The exchange must have been assigned by the pool.
+     */
+    void start(final NioExchange ex, boolean connect) {
+        ex.channel(this);
+        if (!connect) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(ex);
+                }
+            });
+            return;
+        }
+        // The address is resolved before the loop gets the connection
+        NioHostPool.resolve(new Runnable() {
+            @Override
+            public void run() {
+                final InetSocketAddress address = pool.address();
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connect(ex, address))
+                            send(ex);
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Abort an exchange: the connection is closed, since the rest of the
+     * response cannot be told apart from the next one.
+     */
+    void cancel(final NioExchange ex) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (exchanges.remove(ex)) {
+                    ex.fail(new InterruptedIOException("Canceled"));
+                    fail(new IOException("Exchange canceled"), true);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Pause or resume reading the response of an exchange.
+     */
+    void reading(final NioExchange ex, final boolean on) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed || exchanges.peek() != ex || paused == !on)
+                    return;
+                paused = !on;
+                lastActivity = System.currentTimeMillis();
+                updateInterest();
+            }
+        });
+    }
+
+
+    private boolean connect(NioExchange ex, InetSocketAddress address) {
+        try {
+            if (address.isUnresolved())
+                throw new IOException("Unknown host: " + address.getHostName());
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(loop.selector(), 0, this);
+            if (channel.connect(address)) {
+                connected = true;
+                updateInterest();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                connectDeadline = ex.connectTimeout() > 0 ?
+                        System.currentTimeMillis() + ex.connectTimeout() : 0;
+            }
+            return true;
+        } catch (IOException e) {
+            fail(e, false);
+            ex.fail(e);
+            return false;
+        }
+    }
+
+
+    private void send(NioExchange ex) {
+        if (closed) {
+            // Closed before the request could be sent
+            pool.submit(ex);
+            return;
+        }
+        if (ex.isCanceled()) {
+            ex.fail(new InterruptedIOException("Canceled"));
+            pool.release(this, ex);
+            return;
+        }
+        ex.reset();
+        try {
+            writes.addAll(Arrays.asList(ex.encode()));
+        } catch (IOException e) {
+            ex.fail(e);
+            pool.release(this, ex);
+            return;
+        }
+        exchanges.add(ex);
+        if (exchanges.size() == 1)
+            lastActivity = System.currentTimeMillis();
+        if (connected)
+            flush();
+    }
+
+
+    void finishConnect() {
+        try {
+            channel.finishConnect();
+            connected = true;
+            lastActivity = System.currentTimeMillis();
+            flush();
+        } catch (IOException ex) {
+            fail(ex, false);
+        }
+    }
+
+
+    void flush() {
+        try {
+            while (!writes.isEmpty()) {
+                long n = channel.write(writes.toArray(new ByteBuffer[writes.size()]));
+                while (!writes.isEmpty() && !writes.getFirst().hasRemaining())
+                    writes.removeFirst();
+                if (n == 0)
+                    break;
+                lastActivity = System.currentTimeMillis();
+            }
+            updateInterest();
+        } catch (IOException ex) {
+            fail(ex, true);
+        }
+    }
+
+
+    void read() {
+        // The key may have been selected before reading was paused: the
+        // data waits for the resume
+        if (paused)
+            return;
+        ByteBuffer buf = loop.readBuffer();
+        buf.clear();
+        int n;
+        try {
+            n = channel.read(buf);
+        } catch (IOException ex) {
+            fail(ex, true);
+            return;
+        }
+        if (n == -1) {
+            closedByServer();
+            return;
+        }
+        if (n == 0)
+            return;
+        lastActivity = System.currentTimeMillis();
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                NioExchange ex = exchanges.peek();
+                if (ex == null)
+                    throw new IOException("Unexpected data from server");
+                if (ex.parse(buf)) {
+                    exchanges.removeFirst();
+                    if (!completed(ex))
+                        return;
+                }
+            }
+        } catch (IOException ex) {
+            fail(ex, true);
+        } catch (RuntimeException ex) {
+            // Thrown by a handler
+            fail(new IOException(ex), true);
+        }
+    }
+
+
+    /**
+     * Check the timeouts.
+     */
+    void sweep(long now) {
+        if (closed)
+            return;
+        if (!connected) {
+            if (connectDeadline > 0 && now > connectDeadline)
+                fail(new SocketTimeoutException("connect timed out"), false);
+            return;
+        }
+        NioExchange head = exchanges.peek();
+        if (head != null) {
+            if (!paused && head.readTimeout() > 0 && now - lastActivity > head.readTimeout()) {
+                exchanges.removeFirst();
+                head.fail(new SocketTimeoutException("Read timed out"));
+                fail(new SocketTimeoutException("Read timed out"), true);
+            }
+        } else if (pool.expire(this, now)) {
+            fail(new IOException("Idle connection expired"), false);
+        }
+    }
+
+
+    /**
+     * Close the connection. Exchanges in progress fail, or are sent again
+     * on another connection if allowed.
+     */
+    void fail(IOException e, boolean retry) {
+        if (closed)
+            return;
+        closed = true;
+        if (key != null)
+            key.cancel();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignore) { }
+        }
+        List<NioExchange> pending = new ArrayList<NioExchange>(exchanges);
+        exchanges.clear();
+        writes.clear();
+        pool.closed(this);
+        for (NioExchange ex : pending) {
+            if (retry && ex.isRetryable())
+                pool.submit(ex);
+            else
+                ex.fail(e);
+        }
+    }
+
+
+    /**
+     * Called when a response is complete.
+     *
+     * @return True if the connection is still open
+     */
+    private boolean completed(NioExchange ex) {
+        // A pause requested by this exchange must not stall the next one,
+        // nor the connection once it is back in the pool
+        if (paused) {
+            paused = false;
+            updateInterest();
+        }
+        // The connection cannot be reused if the server closes it, or if it
+        // answered before the request was completely sent
+        if (!ex.keepAlive() || (exchanges.isEmpty() && !writes.isEmpty())) {
+            fail(new EOFException("Connection closed by server"), true);
+            ex.complete();
+            return false;
+        }
+        pool.release(this, ex);
+        ex.complete();
+        return true;
+    }
+
+
+    private void closedByServer() {
+        NioExchange head = exchanges.peek();
+        if (head != null && head.readsUntilClose()) {
+            // The body ends when the connection is closed
+            exchanges.removeFirst();
+            fail(new EOFException("Connection closed by server"), true);
+            head.complete();
+        } else {
+            fail(new EOFException("Connection closed by server"), true);
+        }
+    }
+
+
+    private void updateInterest() {
+        if (key == null || !key.isValid())
+            return;
+        int ops = 0;
+        if (!writes.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        if (!paused)
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+}
@@ -0,0 +1,304 @@
+package it.idsolutions.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Connection of the {@link NioEngine}: sends the request on an event loop
+ * and waits for the response. The response body is received by the event
+ * loop into a bounded buffer: reading from the network is paused while
+ * the buffer is full.
+ * <p>
+ * Redirects to HTTP URLs are followed, like HttpURLConnection does.
+ *
+ * @author ps
+ */
+class NioConnection extends EngineConnection {
+    private static final int MAX_REDIRECTS = 20;
+    private static final int MAX_REDIRECT_DRAIN = 64 * 1024;
+
+    private final NioEngine engine;
+    private volatile NioExchange exchange;
+
+
+    NioConnection(NioEngine engine, URL url, Proxy proxy) {
+        super(url, proxy);
+        this.engine = engine;
+    }
+
+
+    @Override
+    protected Response execute(InputStream body, long length) throws IOException {
+        byte[] bytes = body != null ? readFully(body, length) : null;
+        String m = method;
+        for (int redirects = 0; ; redirects++) {
+            NioExchange ex = new NioExchange(url, m)
+                    .proxy(proxy())
+                    .headers(requestHeaders())
+                    .body(bytes)
+                    .connectTimeout(getConnectTimeout())
+                    .readTimeout(getReadTimeout());
+            BodyStream stream = new BodyStream(ex);
+            exchange = ex;
+            engine.send(ex, stream);
+            stream.awaitHeaders();
+
+            String location = stream.location();
+            if (location != null && getInstanceFollowRedirects() && redirects < MAX_REDIRECTS) {
+                URL next = new URL(url, location);
+                if ("http".equals(next.getProtocol())) {
+                    stream.discard();
+                    url = next;
+                    if (stream.code == 303 || ((stream.code == 301 || stream.code == 302) &&
+                            !m.equals("GET") && !m.equals("HEAD"))) {
+                        m = "GET";
+                        bytes = null;
+                    }
+                    continue;
+                }
+            }
+            return new Response(stream.code, stream.message, stream.statusLine,
+                    stream.headers, stream);
+        }
+    }
+
+
+    @Override
+    protected void cancel() {
+        NioExchange ex = exchange;
+        if (ex != null)
+            ex.cancel();
+    }
+
+
+    private static byte[] readFully(InputStream in, long length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                length > 0 && length < Integer.MAX_VALUE ? (int) length : 8192);
+        byte[] buf = new byte[8192];
+        int l;
+        while ((l = in.read(buf)) != -1)
+            out.write(buf, 0, l);
+        in.close();
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Receives the response on the event loop, and is read by the caller.
+     */
+    private static class BodyStream extends InputStream implements NioExchange.Handler {
+        private static final int HIGH_WATER = 256 * 1024;
+        private static final int LOW_WATER = 64 * 1024;
+
+        int code;
+        String message;
+        String statusLine;
+        Map<String, List<String>> headers;
+        private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+        private int offset;
+        private long buffered;
+        private boolean paused;
+        private boolean complete;
+        private boolean closed;
+        private IOException failure;
+        private final NioExchange exchange;
+        // Not a monitor, so a virtual thread waiting for data does not pin
+        // its carrier thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+
+
+        BodyStream(NioExchange exchange) {
+            this.exchange = exchange;
+        }
+
+
+        @Override
+        public void onHeaders(int code, String message, String statusLine,
+                Map<String, List<String>> headers) {
+            lock.lock();
+            try {
+                this.code = code;
+                this.message = message;
+                this.statusLine = statusLine;
+                this.headers = headers;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void onData(ByteBuffer data) {
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                byte[] b = new byte[data.remaining()];
+                data.get(b);
+                chunks.add(b);
+                buffered += b.length;
+                if (buffered > HIGH_WATER && !paused) {
+                    paused = true;
+                    exchange.pause();
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void onComplete() {
+            lock.lock();
+            try {
+                complete = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void onFailure(IOException ex) {
+            lock.lock();
+            try {
+                failure = ex;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        void awaitHeaders() throws IOException {
+            lock.lock();
+            try {
+                while (headers == null && failure == null)
+                    await();
+                if (headers == null)
+                    throw failure;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        String location() {
+            if (code < 300 || code > 308 || code == 304 || code == 305 || code == 306)
+                return null;
+            List<String> values = headers.get("Location");
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+
+
+        /**
+         * Skip the body of a redirect, so the connection can be reused.
+         */
+        void discard() throws IOException {
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int l;
+            while (total < MAX_REDIRECT_DRAIN && (l = read(buf)) != -1)
+                total += l;
+            close();
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            lock.lock();
+            try {
+                while (chunks.isEmpty()) {
+                    if (closed)
+                        throw new IOException("Stream closed");
+                    if (complete)
+                        return -1;
+                    if (failure != null)
+                        throw failure;
+                    await();
+                }
+                byte[] chunk = chunks.getFirst();
+                int n = Math.min(len, chunk.length - offset);
+                System.arraycopy(chunk, offset, b, off, n);
+                offset += n;
+                if (offset == chunk.length) {
+                    chunks.removeFirst();
+                    offset = 0;
+                }
+                buffered -= n;
+                if (paused && buffered < LOW_WATER) {
+                    paused = false;
+                    exchange.resume();
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return (int) Math.min(buffered, Integer.MAX_VALUE);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void close() {
+            boolean abort;
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                closed = true;
+                chunks.clear();
+                abort = !complete && failure == null;
+            } finally {
+                lock.unlock();
+            }
+            // The connection can only be reused if the body was read
+            if (abort)
+                exchange.cancel();
+        }
+
+
+        private void await() throws IOException {
+            try {
+                changed.await();
+            } catch (InterruptedException ex) {
+                exchange.cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
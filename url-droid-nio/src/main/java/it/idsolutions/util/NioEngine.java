@@ -0,0 +1,253 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Non-blocking engine for plain HTTP/1.1, built on a few selector threads
+ * (event loops).
+ * <p>
+ * All the socket I/O is done by the event loops, so thousands of requests
+ * can be in flight with a few threads: a request only holds a connection,
+ * not a thread. Connections are pooled per server, and spread over the
+ * event loops. Response data is read into a direct buffer of the loop and
+ * parsed as soon as it is received.
+ * <p>
+ * There are two ways to use the engine:
+ * <ul>
+ * <li>as an {@link HttpEngine} of {@link HttpClient}: the calling thread
+ * waits for the response, as with any engine, but the connection and all
+ * the I/O are managed by the event loops;</li>
+ * <li>with {@link #send(NioExchange, NioExchange.Handler)}, which does not
+ * block: the response is delivered to a handler.</li>
+ * </ul>
+ * HTTP/1.1 pipelining is disabled by default. When enabled with
+ * {@link #pipelining(int)}, it is only used for GET and HEAD requests, on
+ * connections that the server already kept open, and only when the
+ * connection limit for the server is reached. Requests sent on a
+ * connection that fails before the response is received are retried once,
+ * if their method is idempotent.
+ * <p>
+ * Only plain HTTP, directly or through an HTTP proxy, is handled by the
+ * event loops: HTTPS requests and requests through a SOCKS proxy are
+ * delegated to the system HttpURLConnection. Request bodies are sent with a
+ * Content-Length, so they are buffered first.
+ * <p>
+ * This engine is registered as a service, so it becomes the default engine
+ * when it is the only engine module on the classpath (with many, see
+ * {@link HttpEngines} for the choice). It can also be selected by name,
+ * {@value #NAME}, or with the system property 'urldroid.engine'. Event loop threads are daemon threads, started
+ * with the first request.
+ *
+ * @author ps
+ */
+public class NioEngine implements HttpEngine {
+    public static final String NAME = "nio";
+
+    private final int eventLoops;
+    private volatile NioEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConcurrentMap<String, NioHostPool> pools =
+            new ConcurrentHashMap<String, NioHostPool>();
+    private volatile int maxConnectionsPerHost = 64;
+    private volatile int pipelining = 1;
+    private volatile int keepAliveTimeout = 30000;
+    private volatile boolean closed;
+
+
+    /**
+     * Create an engine with an event loop per processor, up to 4.
+     */
+    public NioEngine() {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    /**
+     * Create an engine.
+     *
+     * @param eventLoops Number of event loop threads
+     */
+    public NioEngine(int eventLoops) {
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("eventLoops must be at least 1");
+        this.eventLoops = eventLoops;
+    }
+
+
+    /**
+     * Set the maximum number of connections to a server. Further requests
+     * wait for a connection to be released. Default is 64.
+     *
+     * @param max Maximum number of connections
+     * @return Self for chaining
+     */
+    public NioEngine maxConnectionsPerHost(int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("max must be at least 1");
+        this.maxConnectionsPerHost = max;
+        return this;
+    }
+
+
+    /**
+     * Enable HTTP/1.1 pipelining of GET and HEAD requests.
+     *
+     * @param depth Maximum number of requests in progress on a connection;
+     *     1 (the default) disables pipelining
+     * @return Self for chaining
+     */
+    public NioEngine pipelining(int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("depth must be at least 1");
+        this.pipelining = depth;
+        return this;
+    }
+
+
+    /**
+     * Set how long an idle connection is kept in the pool. Default is 30
+     * seconds.
+     *
+     * @param millis Timeout in milliseconds
+     * @return Self for chaining
+     */
+    public NioEngine keepAliveTimeout(int millis) {
+        this.keepAliveTimeout = millis;
+        return this;
+    }
+
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+
+    @Override
+    public HttpURLConnection open(URL url, Proxy proxy) throws IOException {
+        if (!"http".equals(url.getProtocol()) ||
+                (proxy != null && proxy.type() == Proxy.Type.SOCKS))
+            return HttpEngines.get(HttpEngines.URL_CONNECTION).open(url, proxy);
+        return new NioConnection(this, url, proxy);
+    }
+
+
+    /**
+     * Send a request without blocking. The response is delivered to the
+     * handler on an event loop thread.
+     *
+     * @param exchange Request
+     * @param handler Receives the response
+     * @return The exchange, which can be canceled
+     */
+    public NioExchange send(NioExchange exchange, NioExchange.Handler handler) {
+        if (closed)
+            throw new IllegalStateException("Engine closed");
+        exchange.start(this, handler);
+        pool(exchange).submit(exchange);
+        return exchange;
+    }
+
+
+    /**
+     * Returns the number of open connections, in use or idle.
+     *
+     * @return Number of connections
+     */
+    public int connectionCount() {
+        int n = 0;
+        for (NioHostPool pool : pools.values())
+            n += pool.connectionCount();
+        return n;
+    }
+
+
+    /**
+     * Stop the event loops, closing all the connections. Exchanges in
+     * progress fail.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (loops != null) {
+            for (NioEventLoop loop : loops)
+                loop.close();
+        }
+    }
+
+
+    int maxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+
+    int pipelining() {
+        return pipelining;
+    }
+
+
+    int keepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+
+    /**
+     * Returns the pool of connections for an exchange: to the server, or
+     * to the proxy.
+     */
+    NioHostPool pool(NioExchange exchange) {
+        String host;
+        int port;
+        if (exchange.proxy() != null) {
+            InetSocketAddress address = (InetSocketAddress) exchange.proxy().address();
+            host = address.getHostName();
+            port = address.getPort();
+        } else {
+            host = exchange.url().getHost();
+            port = exchange.url().getPort() != -1 ? exchange.url().getPort()
+                    : exchange.url().getDefaultPort();
+        }
+        String key = (exchange.proxy() != null ? "proxy " : "") + host + ":" + port;
+        NioHostPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new NioHostPool(this, host, port);
+            NioHostPool existing = pools.putIfAbsent(key, pool);
+            if (existing != null)
+                pool = existing;
+        }
+        return pool;
+    }
+
+
+    /**
+     * Returns the event loop for a new connection.
+     */
+    NioEventLoop nextLoop() {
+        NioEventLoop[] l = loops;
+        if (l == null)
+            l = startLoops();
+        return l[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % l.length];
+    }
+
+
+    private synchronized NioEventLoop[] startLoops() {
+        if (loops == null) {
+            NioEventLoop[] l = new NioEventLoop[eventLoops];
+            try {
+                for (int i = 0; i < l.length; i++)
+                    l[i] = new NioEventLoop("url-droid-nio-" + i);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            loops = l;
+        }
+        return loops;
+    }
+}
@@ -0,0 +1,136 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A thread with a selector, which does all the I/O of the connections
+ * registered with it. Other threads hand work to the loop with
+ * {@link #execute(Runnable)}.
+ *
+ * @author ps
+ */
+final class NioEventLoop implements Runnable {
+    // Timeouts are checked with this granularity
+    private static final long SWEEP_MILLIS = 100;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // Shared by all the connections of the loop: data is parsed as soon as
+    // it is read
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean closed;
+
+
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    Selector selector() {
+        return selector;
+    }
+
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+
+    /**
+     * Run a task on the loop thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+
+    @Override
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                selector.select(SWEEP_MILLIS);
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioChannel ch = (NioChannel) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isConnectable())
+                        ch.finishConnect();
+                    if (key.isValid() && key.isWritable())
+                        ch.flush();
+                    if (key.isValid() && key.isReadable())
+                        ch.read();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_MILLIS) {
+                    lastSweep = now;
+                    for (NioChannel ch : channels())
+                        ch.sweep(now);
+                }
+            }
+        } catch (Throwable t) {
+            Logger.getLogger("it.idsolutions.util.HttpClient").log(Level.SEVERE,
+                    "NIO event loop failed", t);
+        } finally {
+            runTasks();
+            for (NioChannel ch : channels())
+                ch.fail(new IOException("Engine closed"), false);
+            try {
+                selector.close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger("it.idsolutions.util.HttpClient").log(Level.WARNING,
+                        "NIO task failed", ex);
+            }
+        }
+    }
+
+
+    private List<NioChannel> channels() {
+        List<NioChannel> channels = new ArrayList<NioChannel>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid())
+                channels.add((NioChannel) key.attachment());
+        }
+        return channels;
+    }
+}
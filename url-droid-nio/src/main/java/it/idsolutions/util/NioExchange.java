@@ -0,0 +1,604 @@
+package it.idsolutions.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A single request/response exchange of the {@link NioEngine}.
+ * <p>
+ * The request is configured with the fluent setters, then sent with
+ * {@link NioEngine#send(NioExchange, Handler)}. The response is delivered
+ * to the {@link Handler} on an event loop thread, as it is received.
+ * <p>
+ * An exchange can be sent only once.
+ *
+ * @author ps
+ */
+public final class NioExchange {
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(
+            Arrays.asList("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"));
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    // Response parser states
+    private static final int HEAD = 0;
+    private static final int BODY_LENGTH = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_END = 4;
+    private static final int TRAILERS = 5;
+    private static final int BODY_UNTIL_CLOSE = 6;
+    private static final int DONE = 7;
+
+    private final URL url;
+    private final String method;
+    private final Map<String, List<String>> headers =
+            new LinkedHashMap<String, List<String>>();
+    private Proxy proxy;
+    private byte[] body;
+    private int connectTimeout;
+    private int readTimeout;
+
+    private Handler handler;
+    private NioEngine engine;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile boolean canceled;
+    private volatile NioChannel channel;
+    int attempts;
+
+    // Parser state, only used by the event loop
+    private int state;
+    private ByteArrayOutputStream head;
+    private int lastBytes;
+    private final StringBuilder line = new StringBuilder();
+    private boolean lineComplete;
+    private long remaining;
+    private boolean responseStarted;
+    private boolean keepAlive;
+
+
+    /**
+     * Create a request.
+     *
+     * @param url Request URL, with the http protocol
+     * @param method HTTP method
+     */
+    public NioExchange(URL url, String method) {
+        if (!"http".equals(url.getProtocol()))
+            throw new IllegalArgumentException("Only http URLs are supported: " + url);
+        this.url = url;
+        this.method = method;
+    }
+
+
+    /**
+     * Add a request header.
+     *
+     * @param name Header name
+     * @param value Header value
+     * @return Self for chaining
+     */
+    public NioExchange header(String name, String value) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            headers.put(name, values);
+        }
+        values.add(value);
+        return this;
+    }
+
+
+    /**
+     * Add request headers.
+     *
+     * @param headers Headers, with a list of values for each name
+     * @return Self for chaining
+     */
+    public NioExchange headers(Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+            if (e.getKey() == null)
+                continue;
+            for (String v : e.getValue())
+                header(e.getKey(), v);
+        }
+        return this;
+    }
+
+
+    /**
+     * Set the request body. Content-Length is set automatically.
+     *
+     * @param body Body, or null if there is none
+     * @return Self for chaining
+     */
+    public NioExchange body(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+
+    /**
+     * Send the request through an HTTP proxy.
+     *
+     * @param proxy Proxy, or null for a direct connection
+     * @return Self for chaining
+     */
+    public NioExchange proxy(Proxy proxy) {
+        if (proxy != null && proxy.type() == Proxy.Type.SOCKS)
+            throw new IllegalArgumentException("SOCKS proxies are not supported");
+        this.proxy = proxy != null && proxy.type() == Proxy.Type.HTTP ? proxy : null;
+        return this;
+    }
+
+
+    /**
+     * Set the connect timeout.
+     *
+     * @param millis Timeout in milliseconds, 0 for no timeout
+     * @return Self for chaining
+     */
+    public NioExchange connectTimeout(int millis) {
+        this.connectTimeout = millis;
+        return this;
+    }
+
+
+    /**
+     * Set the read timeout: the maximum time to wait for data from the
+     * server, while a response is expected.
+     *
+     * @param millis Timeout in milliseconds, 0 for no timeout
+     * @return Self for chaining
+     */
+    public NioExchange readTimeout(int millis) {
+        this.readTimeout = millis;
+        return this;
+    }
+
+
+    /**
+     * Abort the exchange. The handler receives a failure, unless the
+     * response was already complete.
+     */
+    public void cancel() {
+        canceled = true;
+        if (finished.get())
+            return;
+        NioChannel ch = channel;
+        if (ch != null)
+            ch.cancel(this);
+        else if (engine != null && engine.pool(this).cancel(this))
+            fail(new InterruptedIOException("Canceled"));
+    }
+
+
+    /**
+     * Stop reading the response body from the network, i.e. when the
+     * consumer of the body cannot keep up. The read timeout does not apply
+     * while reading is paused.
+     */
+    public void pause() {
+        NioChannel ch = channel;
+        if (ch != null)
+            ch.reading(this, false);
+    }
+
+
+    /**
+     * Resume reading the response body after {@link #pause()}.
+     */
+    public void resume() {
+        NioChannel ch = channel;
+        if (ch != null)
+            ch.reading(this, true);
+    }
+
+
+    /**
+     * Returns true if the response was received, or the exchange failed.
+     *
+     * @return True if finished
+     */
+    public boolean isFinished() {
+        return finished.get();
+    }
+
+
+    URL url() {
+        return url;
+    }
+
+
+    Proxy proxy() {
+        return proxy;
+    }
+
+
+    int connectTimeout() {
+        return connectTimeout;
+    }
+
+
+    int readTimeout() {
+        return readTimeout;
+    }
+
+
+    boolean isCanceled() {
+        return canceled;
+    }
+
+
+    void channel(NioChannel channel) {
+        this.channel = channel;
+    }
+
+
+    /**
+     * Attach the exchange to the engine that sends it.
+     */
+    synchronized void start(NioEngine engine, Handler handler) {
+        if (this.engine != null)
+            throw new IllegalStateException("Exchange already sent");
+        this.engine = engine;
+        this.handler = handler;
+    }
+
+
+    /**
+     * Returns true if the request can be sent again, when the connection
+     * fails before any response is received.
+     */
+    boolean isRetryable() {
+        return !canceled && !responseStarted && attempts < 2 &&
+                IDEMPOTENT_METHODS.contains(method);
+    }
+
+
+    /**
+     * Returns true if the request can be pipelined: only requests without
+     * side effects and without a body.
+     */
+    boolean isPipelinable() {
+        return body == null && (method.equals("GET") || method.equals("HEAD"));
+    }
+
+
+    /**
+     * Returns true if the connection can be reused after the response.
+     */
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+
+    /**
+     * Returns true while the response body is read until the connection is
+     * closed by the server.
+     */
+    boolean readsUntilClose() {
+        return state == BODY_UNTIL_CLOSE;
+    }
+
+
+    /**
+     * Encode the request line, headers and body.
+     */
+    ByteBuffer[] encode() throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ');
+        if (proxy != null) {
+            // Absolute form, without the fragment
+            sb.append(url.getProtocol()).append("://").append(url.getAuthority());
+        }
+        sb.append(url.getPath().length() > 0 ? url.getPath() : "/");
+        if (url.getQuery() != null)
+            sb.append('?').append(url.getQuery());
+        sb.append(" HTTP/1.1\r\n");
+
+        boolean host = false;
+        for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+            if (e.getKey().equalsIgnoreCase("Content-Length") ||
+                    e.getKey().equalsIgnoreCase("Transfer-Encoding"))
+                continue;
+            host |= e.getKey().equalsIgnoreCase("Host");
+            for (String v : e.getValue())
+                sb.append(e.getKey()).append(": ").append(v).append("\r\n");
+        }
+        if (!host) {
+            sb.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+                sb.append(':').append(url.getPort());
+            sb.append("\r\n");
+        }
+        if (body != null)
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        else if (method.equals("POST") || method.equals("PUT") || method.equals("PATCH"))
+            sb.append("Content-Length: 0\r\n");
+        sb.append("\r\n");
+
+        ByteBuffer requestHead = ByteBuffer.wrap(sb.toString().getBytes("ISO-8859-1"));
+        if (body == null || body.length == 0)
+            return new ByteBuffer[] { requestHead };
+        return new ByteBuffer[] { requestHead, ByteBuffer.wrap(body) };
+    }
+
+
+    /**
+     * Prepare to parse a response, when the request is sent.
+     */
+    void reset() {
+        attempts++;
+        state = HEAD;
+        head = new ByteArrayOutputStream(512);
+        lastBytes = 0;
+        line.setLength(0);
+        lineComplete = false;
+        responseStarted = false;
+        keepAlive = false;
+    }
+
+
+    /**
+     * Parse response data.
+     *
+     * @param buf Data read from the connection
+     * @return True when the response is complete: remaining data in the
+     *     buffer belongs to the next response. The handler must then be
+     *     notified with {@link #complete()}
+     * @throws IOException If the response is not valid HTTP
+     */
+    boolean parse(ByteBuffer buf) throws IOException {
+        responseStarted = true;
+        while (buf.hasRemaining()) {
+            switch (state) {
+            case HEAD:
+                if (readHead(buf) && parseHead())
+                    return true;
+                break;
+            case BODY_LENGTH:
+            case CHUNK_DATA: {
+                int n = (int) Math.min(remaining, buf.remaining());
+                deliver(buf, n);
+                remaining -= n;
+                if (remaining == 0) {
+                    if (state == BODY_LENGTH)
+                        return done();
+                    state = CHUNK_END;
+                }
+                break;
+            }
+            case CHUNK_SIZE:
+                if (readLine(buf)) {
+                    String size = line.toString();
+                    int ext = size.indexOf(';');
+                    if (ext != -1)
+                        size = size.substring(0, ext);
+                    try {
+                        remaining = Long.parseLong(size.trim(), 16);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Invalid chunk size: " + line);
+                    }
+                    state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                }
+                break;
+            case CHUNK_END:
+                if (readLine(buf)) {
+                    if (line.length() != 0)
+                        throw new IOException("Invalid chunk end");
+                    state = CHUNK_SIZE;
+                }
+                break;
+            case TRAILERS:
+                if (readLine(buf) && line.length() == 0)
+                    return done();
+                break;
+            case BODY_UNTIL_CLOSE:
+                deliver(buf, buf.remaining());
+                break;
+            default:
+                throw new IOException("Unexpected data after the response");
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Notify the handler of a failure, if the exchange is not finished.
+     */
+    void fail(IOException ex) {
+        if (finished.compareAndSet(false, true))
+            handler.onFailure(ex);
+    }
+
+
+    private boolean readHead(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            head.write(b);
+            // Headers end with an empty line: CRLF CRLF, or LF LF
+            lastBytes = (lastBytes << 8) | (b & 0xff);
+            if (lastBytes == 0x0d0a0d0a || (lastBytes & 0xffff) == 0x0a0a) {
+                lastBytes = 0;
+                return true;
+            }
+            if (head.size() > MAX_HEAD_SIZE)
+                throw new IOException("Response headers too large");
+        }
+        return false;
+    }
+
+
+    /**
+     * Parse the status line and headers, and set up the body parsing.
+     *
+     * @return True if the response is complete (no body)
+     */
+    private boolean parseHead() throws IOException {
+        String[] lines = new String(head.toByteArray(), "ISO-8859-1").split("\r?\n");
+        String statusLine = lines[0];
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/"))
+            throw new IOException("Invalid status line: " + statusLine);
+        int code;
+        try {
+            code = Integer.parseInt(status[1]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        String message = status.length > 2 ? status[2] : "";
+
+        // Names are case insensitive; keep the first spelling received
+        Map<String, List<String>> h =
+                new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = lines[i].substring(0, colon).trim();
+            List<String> values = h.get(name);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                h.put(name, values);
+            }
+            values.add(lines[i].substring(colon + 1).trim());
+        }
+
+        if (code / 100 == 1) {
+            // Interim response (i.e. 100 Continue): wait for the final one
+            head.reset();
+            return false;
+        }
+
+        String connection = last(h, "Connection");
+        if (status[0].equals("HTTP/1.0"))
+            keepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+        else
+            keepAlive = connection == null || !connection.toLowerCase().contains("close");
+
+        String transferEncoding = last(h, "Transfer-Encoding");
+        String contentLength = last(h, "Content-Length");
+        if (method.equals("HEAD") || code == 204 || code == 304) {
+            state = DONE;
+        } else if (transferEncoding != null &&
+                transferEncoding.toLowerCase().endsWith("chunked")) {
+            state = CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            state = remaining > 0 ? BODY_LENGTH : DONE;
+        } else {
+            state = BODY_UNTIL_CLOSE;
+            keepAlive = false;
+        }
+        head = null;
+
+        handler.onHeaders(code, message, statusLine, h);
+        if (state == DONE)
+            return done();
+        return false;
+    }
+
+
+    private boolean readLine(ByteBuffer buf) throws IOException {
+        if (lineComplete) {
+            line.setLength(0);
+            lineComplete = false;
+        }
+        while (buf.hasRemaining()) {
+            char c = (char) (buf.get() & 0xff);
+            if (c == '\n') {
+                int l = line.length();
+                if (l > 0 && line.charAt(l - 1) == '\r')
+                    line.setLength(l - 1);
+                lineComplete = true;
+                return true;
+            }
+            if (line.length() > MAX_HEAD_SIZE)
+                throw new IOException("Chunk header too large");
+            line.append(c);
+        }
+        return false;
+    }
+
+
+    private void deliver(ByteBuffer buf, int n) {
+        if (n == 0)
+            return;
+        ByteBuffer data = buf.slice();
+        data.limit(n);
+        buf.position(buf.position() + n);
+        handler.onData(data);
+    }
+
+
+    private boolean done() {
+        state = DONE;
+        return true;
+    }
+
+
+    /**
+     * Notify the handler that the response is complete. Called after the
+     * connection is released, so a new request can reuse it at once.
+     */
+    void complete() {
+        if (finished.compareAndSet(false, true))
+            handler.onComplete();
+    }
+
+
+    private static String last(Map<String, List<String>> headers, String name) {
+        List<String> values = headers.get(name);
+        return values != null && !values.isEmpty() ? values.get(values.size() - 1) : null;
+    }
+
+
+    /**
+     * Receives the response of an exchange. Methods are called on an event
+     * loop thread, so they must not block.
+     */
+    public interface Handler {
+        /**
+         * Called when the status and headers are received.
+         */
+        void onHeaders(int code, String message, String statusLine,
+                Map<String, List<String>> headers);
+
+        /**
+         * Called for each part of the response body.
+         *
+         * @param data Body data, only valid until the method returns
+         */
+        void onData(ByteBuffer data);
+
+        /**
+         * Called when the response is complete.
+         */
+        void onComplete();
+
+        /**
+         * Called if the exchange fails or is canceled. Not called after
+         * {@link #onComplete()}.
+         */
+        void onFailure(IOException ex);
+    }
+}
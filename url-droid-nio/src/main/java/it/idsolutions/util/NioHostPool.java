@@ -0,0 +1,196 @@
+package it.idsolutions.util;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Connections of the {@link NioEngine} to a server (or to an HTTP proxy).
+ * <p>
+ * A request is sent on an idle connection if there is one, otherwise on a
+ * new connection if the limit is not reached. When pipelining is enabled,
+ * a GET or HEAD request can then be queued on a busy connection that only
+ * has other GET or HEAD requests in progress, and has already shown that
+ * the server keeps connections open. Otherwise the request waits for a
+ * connection to be released.
+ *
+ * @author ps
+ */
+final class NioHostPool {
+    // Name lookups block: they are made here, as a slow one on an event loop
+    // would stall all the connections of the loop
+    private static final ExecutorService resolver =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "url-droid-nio-resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final NioEngine engine;
+    private final String host;
+    private final int port;
+    private final LinkedList<NioChannel> idle = new LinkedList<NioChannel>();
+    private final List<NioChannel> active = new ArrayList<NioChannel>();
+    private final LinkedList<NioExchange> waiting = new LinkedList<NioExchange>();
+    private int open;
+
+
+    NioHostPool(NioEngine engine, String host, int port) {
+        this.engine = engine;
+        this.host = host;
+        this.port = port;
+    }
+
+
+    /**
+     * Resolve the address of the server, for a new connection. It blocks:
+     * call it with {@link #resolve(Runnable)}, never on an event loop.
+     */
+    InetSocketAddress address() {
+        return new InetSocketAddress(host, port);
+    }
+
+
+    /**
+     * Run a task which resolves the address of the server on a resolver
+     * thread.
+     */
+    static void resolve(Runnable task) {
+        resolver.execute(task);
+    }
+
+
+    synchronized int connectionCount() {
+        return open;
+    }
+
+
+    /**
+     * Send an exchange on a pooled connection, or queue it.
+     */
+    void submit(NioExchange ex) {
+        NioChannel ch;
+        boolean connect = false;
+        synchronized (this) {
+            ch = idle.poll();
+            if (ch == null && open < engine.maxConnectionsPerHost()) {
+                ch = new NioChannel(this, engine.nextLoop());
+                open++;
+                connect = true;
+            }
+            if (ch == null && ex.isPipelinable())
+                ch = pipelined();
+            if (ch == null) {
+                waiting.add(ex);
+                return;
+            }
+            if (ch.assigned == 0)
+                active.add(ch);
+            assign(ch, ex);
+        }
+        ch.start(ex, connect);
+    }
+
+
+    /**
+     * Called when an exchange is done and the connection can be reused.
+     */
+    void release(NioChannel ch, NioExchange ex) {
+        NioExchange next;
+        synchronized (this) {
+            if (ex.keepAlive())
+                ch.confirmed = true;
+            ch.assigned--;
+            if (!ex.isPipelinable())
+                ch.unsafe--;
+            if (ch.assigned > 0)
+                return;
+            next = waiting.poll();
+            if (next != null) {
+                assign(ch, next);
+            } else {
+                active.remove(ch);
+                idle.addFirst(ch);
+                ch.idleSince = System.currentTimeMillis();
+            }
+        }
+        if (next != null)
+            ch.start(next, false);
+    }
+
+
+    /**
+     * Called when a connection is closed: a new connection is opened for a
+     * waiting exchange.
+     */
+    void closed(NioChannel ch) {
+        NioExchange next = null;
+        NioChannel replacement = null;
+        synchronized (this) {
+            if (!idle.remove(ch))
+                active.remove(ch);
+            ch.assigned = 0;
+            ch.unsafe = 0;
+            open--;
+            if (!waiting.isEmpty() && open < engine.maxConnectionsPerHost()) {
+                next = waiting.poll();
+                replacement = new NioChannel(this, engine.nextLoop());
+                open++;
+                active.add(replacement);
+                assign(replacement, next);
+            }
+        }
+        if (replacement != null)
+            replacement.start(next, true);
+    }
+
+
+    /**
+     * Remove an idle connection from the pool if it expired.
+     *
+     * @return True if the connection was removed, and must be closed
+     */
+    synchronized boolean expire(NioChannel ch, long now) {
+        return ch.assigned == 0 && now - ch.idleSince > engine.keepAliveTimeout() &&
+                idle.remove(ch);
+    }
+
+
+    /**
+     * Remove a waiting exchange.
+     *
+     * @return True if the exchange was waiting
+     */
+    synchronized boolean cancel(NioExchange ex) {
+        return waiting.remove(ex);
+    }
+
+
+    private NioChannel pipelined() {
+        int depth = engine.pipelining();
+        NioChannel best = null;
+        if (depth > 1) {
+            for (NioChannel ch : active) {
+                if (ch.confirmed && ch.unsafe == 0 && ch.assigned < depth &&
+                        (best == null || ch.assigned < best.assigned))
+                    best = ch;
+            }
+        }
+        return best;
+    }
+
+
+    private static void assign(NioChannel ch, NioExchange ex) {
+        ch.assigned++;
+        if (!ex.isPipelinable())
+            ch.unsafe++;
+    }
+}
@@ -0,0 +1,258 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpEngine;
+import it.idsolutions.util.HttpEngines;
+import it.idsolutions.util.NioEngine;
+import it.idsolutions.util.NioExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Runs all the HttpClient scenarios with the NIO engine, then tests the
+ * non-blocking API.
+ *
+ * @author ps
+ */
+public class NioEngineTest extends HttpClientTest {
+    private static final int PORT = 3300;
+    private HttpEngine previous;
+    private HttpServer server;
+    private final Set<Integer> clientPorts =
+            Collections.synchronizedSet(new HashSet<Integer>());
+
+
+    @Before
+    public void useNioEngine() {
+        previous = HttpEngines.getDefault();
+        HttpEngines.setDefault(HttpEngines.get(NioEngine.NAME));
+    }
+
+
+    @After
+    public void restoreEngine() {
+        HttpEngines.setDefault(previous);
+        if (server != null)
+            server.stop(0);
+    }
+
+
+    @Test
+    public void testRegistered() {
+        assertTrue(HttpEngines.get(NioEngine.NAME) instanceof NioEngine);
+        assertSame(HttpEngines.get(NioEngine.NAME), HttpEngines.getDefault());
+    }
+
+
+    @Test
+    public void testSend() throws Exception {
+        startServer();
+        NioEngine engine = new NioEngine(2).maxConnectionsPerHost(8);
+        try {
+            int n = 200;
+            Collector collector = new Collector(n);
+            for (int i = 0; i < n; i++) {
+                engine.send(new NioExchange(url("/echo?n=" + i), "GET"),
+                        collector.handler("n=" + i));
+            }
+            assertTrue(collector.await());
+            assertEquals(n, collector.bodies.size());
+            for (int i = 0; i < n; i++)
+                assertEquals("GET n=" + i, collector.bodies.get("n=" + i));
+            assertTrue(clientPorts.size() <= 8);
+            assertTrue(engine.connectionCount() <= 8);
+        } finally {
+            engine.close();
+        }
+    }
+
+
+    @Test
+    public void testPipelining() throws Exception {
+        startServer();
+        NioEngine engine = new NioEngine(1).maxConnectionsPerHost(1).pipelining(4);
+        try {
+            // The first response shows that the server keeps connections open
+            Collector first = new Collector(1);
+            engine.send(new NioExchange(url("/echo?first"), "GET"), first.handler("first"));
+            assertTrue(first.await());
+
+            int n = 20;
+            Collector collector = new Collector(n);
+            for (int i = 0; i < n; i++) {
+                engine.send(new NioExchange(url("/echo?n=" + i), "GET"),
+                        collector.handler("n=" + i));
+            }
+            assertTrue(collector.await());
+            for (int i = 0; i < n; i++)
+                assertEquals("GET n=" + i, collector.bodies.get("n=" + i));
+            assertEquals(1, clientPorts.size());
+        } finally {
+            engine.close();
+        }
+    }
+
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        startServer();
+        NioEngine engine = new NioEngine(1);
+        try {
+            // The lookup is not made by the loop, which serves the other
+            // connection meanwhile
+            Collector collector = new Collector(2);
+            engine.send(new NioExchange(new URL("http://unknown.invalid/"), "GET"),
+                    collector.handler("unknown"));
+            engine.send(new NioExchange(url("/echo?n=1"), "GET"), collector.handler("n=1"));
+            assertTrue(collector.await());
+            assertEquals("GET n=1", collector.bodies.get("n=1"));
+            assertTrue(collector.failure.get().getMessage().contains("Unknown host"));
+        } finally {
+            engine.close();
+        }
+    }
+
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        startServer();
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/large")
+                .get();
+        assertEquals(HttpURLConnection.HTTP_OK, c.code());
+        assertEquals(1024 * 1024, ((String) c.content()).length());
+    }
+
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        startServer();
+        NioEngine engine = new NioEngine(1);
+        try {
+            Collector collector = new Collector(1);
+            engine.send(new NioExchange(url("/slow"), "GET").readTimeout(200),
+                    collector.handler("slow"));
+            assertTrue(collector.await());
+            assertTrue(collector.failure.get() instanceof SocketTimeoutException);
+        } finally {
+            engine.close();
+        }
+    }
+
+
+    private URL url(String path) throws IOException {
+        return new URL("http://localhost:" + PORT + path);
+    }
+
+
+    private void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(PORT), 100);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/slow")) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ignore) { }
+                } else if (path.equals("/large")) {
+                    // Chunked
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+                    OutputStream out = exchange.getResponseBody();
+                    byte[] b = new byte[1024];
+                    java.util.Arrays.fill(b, (byte) 'x');
+                    for (int i = 0; i < 1024; i++)
+                        out.write(b);
+                    out.close();
+                    return;
+                }
+                byte[] response = (exchange.getRequestMethod() + " " +
+                        exchange.getRequestURI().getQuery()).getBytes("UTF-8");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+    }
+
+
+    /**
+     * Collects the responses of non-blocking exchanges.
+     */
+    private static class Collector {
+        final ConcurrentMap<String, String> bodies = new ConcurrentHashMap<String, String>();
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        private final CountDownLatch done;
+
+
+        Collector(int count) {
+            done = new CountDownLatch(count);
+        }
+
+
+        boolean await() throws InterruptedException {
+            return done.await(10, TimeUnit.SECONDS);
+        }
+
+
+        NioExchange.Handler handler(final String id) {
+            return new NioExchange.Handler() {
+                private final StringBuilder body = new StringBuilder();
+
+                @Override
+                public void onHeaders(int code, String message, String statusLine,
+                        Map<String, List<String>> headers) {
+                }
+
+                @Override
+                public void onData(ByteBuffer data) {
+                    while (data.hasRemaining())
+                        body.append((char) data.get());
+                }
+
+                @Override
+                public void onComplete() {
+                    bodies.put(id, body.toString());
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(IOException ex) {
+                    failure.set(ex);
+                    done.countDown();
+                }
+            };
+        }
+    }
+}
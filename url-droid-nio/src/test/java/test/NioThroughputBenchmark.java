@@ -0,0 +1,203 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpEngine;
+import it.idsolutions.util.HttpEngines;
+import it.idsolutions.util.KeepAlive;
+import it.idsolutions.util.NioEngine;
+import it.idsolutions.util.NioExchange;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Compares the throughput of the HttpURLConnection engine and the NIO
+ * engine, with many requests in flight to a server that answers after a
+ * delay (like a slow backend).
+ * <p>
+ * Rounds:
+ * <ul>
+ * <li>HttpURLConnection, with a thread per concurrent request;</li>
+ * <li>NIO engine through HttpClient, with a thread per concurrent request
+ * (the threads only wait, the I/O is done by the event loops);</li>
+ * <li>NIO engine with the non-blocking API, from a single thread.</li>
+ * </ul>
+ * Run with: <code>gradle :url-droid-nio:benchmark -Pbench=NioThroughputBenchmark
+ * -PbenchArgs="20000 200 10"</code> (optional arguments: number of requests,
+ * concurrent requests, server delay in milliseconds).
+ *
+ * @author ps
+ */
+public class NioThroughputBenchmark {
+    private static final int PORT = 3301;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        // The test server closes connections above its idle limit (200)
+        System.setProperty("sun.net.httpserver.maxIdleConnections",
+                String.valueOf(concurrency * 2));
+
+        HttpServer server = startServer(delay, concurrency);
+        NioEngine nio = new NioEngine().maxConnectionsPerHost(concurrency);
+        KeepAlive.maxIdlePerHost(concurrency);
+        try {
+            System.out.println(String.format("requests=%d concurrency=%d delay=%d ms",
+                    requests, concurrency, delay));
+            // Warm up class loading and JIT
+            blocking("warm-up", HttpEngines.get(HttpEngines.URL_CONNECTION),
+                    requests / 10, concurrency);
+            blocking("warm-up", nio, requests / 10, concurrency);
+            nonBlocking("warm-up", nio, requests / 10, concurrency);
+
+            blocking("HttpURLConnection", HttpEngines.get(HttpEngines.URL_CONNECTION),
+                    requests, concurrency);
+            blocking("NIO via HttpClient", nio, requests, concurrency);
+            nonBlocking("NIO send()", nio, requests, concurrency);
+        } finally {
+            nio.close();
+            server.stop(0);
+            System.exit(0);
+        }
+    }
+
+
+    private static void blocking(String name, final HttpEngine engine, final int requests,
+            int concurrency) throws Exception {
+        final AtomicInteger remaining = new AtomicInteger(requests);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicLong latency = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (remaining.decrementAndGet() >= 0) {
+                        long s = System.nanoTime();
+                        try {
+                            new HttpClient("http://localhost:" + PORT + "/bench")
+                                    .engine(engine)
+                                    .keepAlive(true)
+                                    .get();
+                        } catch (RuntimeException ex) {
+                            errors.incrementAndGet();
+                        }
+                        latency.addAndGet(System.nanoTime() - s);
+                    }
+                    done.countDown();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        report(name, requests, errors.get(), System.nanoTime() - start, latency.get());
+    }
+
+
+    private static void nonBlocking(String name, NioEngine engine, int requests,
+            int concurrency) throws Exception {
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicLong latency = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(requests);
+        URL url = new URL("http://localhost:" + PORT + "/bench");
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            final long s = System.nanoTime();
+            engine.send(new NioExchange(url, "GET"), new NioExchange.Handler() {
+                @Override
+                public void onHeaders(int code, String message, String statusLine,
+                        Map<String, List<String>> headers) {
+                }
+
+                @Override
+                public void onData(ByteBuffer data) {
+                }
+
+                @Override
+                public void onComplete() {
+                    finished();
+                }
+
+                @Override
+                public void onFailure(IOException ex) {
+                    errors.incrementAndGet();
+                    finished();
+                }
+
+                private void finished() {
+                    latency.addAndGet(System.nanoTime() - s);
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        report(name, requests, errors.get(), System.nanoTime() - start, latency.get());
+    }
+
+
+    private static void report(String name, int requests, int errors, long elapsed,
+            long latency) {
+        System.out.println(String.format(
+                "%-20s %8.0f req/s  avg latency=%6.2f ms  errors=%d  peak threads=%d",
+                name, requests / (elapsed / 1e9), latency / 1e6 / requests, errors,
+                threads.getPeakThreadCount()));
+    }
+
+
+    private static HttpServer startServer(final int delay, int backlog) throws IOException {
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), backlog);
+        server.createContext("/bench", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                // Answer later without holding a server thread
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            byte[] response = "ok".getBytes("UTF-8");
+                            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK,
+                                    response.length);
+                            exchange.getResponseBody().write(response);
+                        } catch (IOException ignore) {
+                        } finally {
+                            exchange.close();
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,167 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Handshake;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+
+/**
+ * Connection of the {@link OkHttpEngine}: executes the request with a call
+ * of the shared OkHttp client.
+ *
+ * @author ps
+ */
+class OkHttpConnection extends EngineConnection {
+    private final OkHttpEngine engine;
+    private volatile Call call;
+
+
+    OkHttpConnection(OkHttpEngine engine, URL url, Proxy proxy) {
+        super(url, proxy);
+        this.engine = engine;
+    }
+
+
+    @Override
+    protected EngineConnection.Response execute(InputStream body, long length)
+            throws IOException {
+        Request.Builder rb = new Request.Builder().url(url);
+        String contentType = null;
+        for (Map.Entry<String, List<String>> h : requestHeaders().entrySet()) {
+            if (h.getKey() == null)
+                continue;
+            if (h.getKey().equalsIgnoreCase("Content-Type") && !h.getValue().isEmpty())
+                contentType = h.getValue().get(0);
+            for (String v : h.getValue())
+                rb.addHeader(h.getKey(), v);
+        }
+
+        RequestBody requestBody = null;
+        if (body instanceof EngineConnection.BufferedBody)
+            // OkHttp sends it again on a retry or a redirect
+            requestBody = RequestBody.create(
+                    contentType != null ? MediaType.parse(contentType) : null,
+                    ((EngineConnection.BufferedBody) body).bytes());
+        else if (body != null)
+            requestBody = new StreamBody(contentType, body, length);
+        else if (method.equals("POST") || method.equals("PUT") || method.equals("PATCH"))
+            requestBody = RequestBody.create(null, new byte[0]);
+        rb.method(method, requestBody);
+
+        call = engine.client(proxy(), getConnectTimeout(), getReadTimeout(),
+                getSSLSocketFactory(), getHostnameVerifier())
+                .newCall(rb.build());
+        okhttp3.Response r = call.execute();
+
+        EngineConnection.Response response = new EngineConnection.Response(
+                r.code(), r.message(),
+                statusLine(r.protocol()) + " " + r.code() + " " + r.message(),
+                headers(r.headers()), r.body().byteStream());
+        Handshake handshake = r.handshake();
+        if (handshake != null) {
+            response.ssl(handshake.cipherSuite().javaName(),
+                    handshake.localCertificates().toArray(new Certificate[0]),
+                    handshake.peerCertificates().toArray(new Certificate[0]));
+        }
+        return response;
+    }
+
+
+    /**
+     * Response headers, with names as received (Headers.toMultimap() would
+     * convert them to lower case).
+     */
+    private static Map<String, List<String>> headers(Headers headers) {
+        Map<String, List<String>> m = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < headers.size(); i++) {
+            List<String> values = m.get(headers.name(i));
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                m.put(headers.name(i), values);
+            }
+            values.add(headers.value(i));
+        }
+        return m;
+    }
+
+
+    private static String statusLine(Protocol protocol) {
+        if (protocol == Protocol.HTTP_1_0)
+            return "HTTP/1.0";
+        if (protocol == Protocol.HTTP_1_1)
+            return "HTTP/1.1";
+        return "HTTP/2";
+    }
+
+
+    @Override
+    protected void cancel() {
+        Call c = call;
+        if (c != null)
+            c.cancel();
+    }
+
+
+    /**
+     * Request body read from a stream, which can be sent only once: OkHttp
+     * does not retry or follow a redirect with it.
+     */
+    private static class StreamBody extends RequestBody {
+        private final MediaType contentType;
+        private final InputStream in;
+        private final long length;
+
+
+        StreamBody(String contentType, InputStream in, long length) {
+            this.contentType = contentType != null ? MediaType.parse(contentType) : null;
+            this.in = in;
+            this.length = length;
+        }
+
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+
+        @Override
+        public boolean isOneShot() {
+            return true;
+        }
+
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            Source source = Okio.source(in);
+            try {
+                sink.writeAll(source);
+            } finally {
+                source.close();
+            }
+        }
+    }
+}
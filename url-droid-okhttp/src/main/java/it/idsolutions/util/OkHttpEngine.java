@@ -0,0 +1,158 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.OkHttpClient;
+
+
+/**
+ * Engine backed by a shared OkHttp 3 client.
+ * <p>
+ * All requests share the connection pool and dispatcher of the client, and
+ * get HTTP/2 (negotiated with ALPN on HTTPS) and transparent gzip decoding.
+ * Requests with a different proxy, timeouts or SSL settings use a client
+ * derived from the shared one with {@link OkHttpClient#newBuilder()}, which
+ * still shares the same pool and dispatcher. The clients of the 16
+ * combinations of settings used last are cached, from their second use:
+ * one-off settings get a new derived client.
+ * <p>
+ * This engine is registered as a service, so it becomes the default engine
+ * when it is the only engine module on the classpath (with many, see
+ * {@link HttpEngines} for the choice). It can also be selected by name,
+ * {@value #NAME}, or with the system property 'urldroid.engine'.
+ *
+ * @author ps
+ */
+public class OkHttpEngine implements HttpEngine {
+    public static final String NAME = "okhttp";
+
+    private final OkHttpClient client;
+    private final DerivedClients<OkHttpClient> derived =
+            new DerivedClients<OkHttpClient>(16);
+    private volatile X509TrustManager systemTrustManager;
+
+
+    /**
+     * Create an engine with a new OkHttp client with default settings.
+     */
+    public OkHttpEngine() {
+        this(new OkHttpClient());
+    }
+
+
+    /**
+     * Create an engine with a configured OkHttp client, i.e. to set a
+     * custom connection pool, dispatcher limits, cache or interceptors.
+     *
+     * @param client OkHttp client
+     */
+    public OkHttpEngine(OkHttpClient client) {
+        this.client = client;
+    }
+
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+
+    @Override
+    public HttpURLConnection open(URL url, Proxy proxy) throws IOException {
+        return new OkHttpConnection(this, url, proxy);
+    }
+
+
+    /**
+     * Returns the shared client.
+     *
+     * @return OkHttp client
+     */
+    public OkHttpClient client() {
+        return client;
+    }
+
+
+    /**
+     * Returns a client with the settings of a connection.
+     */
+    OkHttpClient client(Proxy proxy, int connectTimeout, int readTimeout,
+            SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) {
+        // Default settings of HttpsURLConnection are also OkHttp defaults
+        if (sslSocketFactory == HttpsURLConnection.getDefaultSSLSocketFactory())
+            sslSocketFactory = null;
+        if (hostnameVerifier == HttpsURLConnection.getDefaultHostnameVerifier())
+            hostnameVerifier = null;
+        if (proxy == null && connectTimeout == client.connectTimeoutMillis()
+                && readTimeout == client.readTimeoutMillis()
+                && sslSocketFactory == null && hostnameVerifier == null)
+            return client;
+
+        final Proxy p = proxy;
+        final int ct = connectTimeout;
+        final int rt = readTimeout;
+        final SSLSocketFactory sf = sslSocketFactory;
+        final HostnameVerifier hv = hostnameVerifier;
+        return derived.get(new DerivedClients.Factory<OkHttpClient>() {
+            @Override
+            public OkHttpClient create() {
+                return derive(p, ct, rt, sf, hv);
+            }
+        }, proxy, connectTimeout, readTimeout, sslSocketFactory, hostnameVerifier);
+    }
+
+
+    private OkHttpClient derive(Proxy proxy, int connectTimeout, int readTimeout,
+            SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) {
+        OkHttpClient.Builder b = client.newBuilder()
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        if (proxy != null)
+            b.proxy(proxy);
+        if (sslSocketFactory != null) {
+            // The trust manager is only used by OkHttp to clean
+            // certificate chains: the socket factory verifies the server
+            b.sslSocketFactory(sslSocketFactory,
+                    sslSocketFactory == SslContexts.trustAllSocketFactory() ?
+                            SslContexts.trustAllManager() : systemTrustManager());
+        }
+        if (hostnameVerifier != null)
+            b.hostnameVerifier(hostnameVerifier);
+        return b.build();
+    }
+
+
+    private X509TrustManager systemTrustManager() {
+        X509TrustManager tm = systemTrustManager;
+        if (tm == null) {
+            try {
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                        TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init((KeyStore) null);
+                for (TrustManager t : tmf.getTrustManagers()) {
+                    if (t instanceof X509TrustManager)
+                        tm = (X509TrustManager) t;
+                }
+            } catch (GeneralSecurityException ex) {
+                throw new RuntimeException(ex);
+            }
+            if (tm == null)
+                throw new IllegalStateException("No system X509TrustManager");
+            systemTrustManager = tm;
+        }
+        return tm;
+    }
+}
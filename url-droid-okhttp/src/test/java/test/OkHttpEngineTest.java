@@ -0,0 +1,231 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpEngines;
+import it.idsolutions.util.OkHttpEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Runs the HttpClient scenarios with the OkHttp engine, against a local
+ * server.
+ *
+ * @author ps
+ */
+public class OkHttpEngineTest {
+    private static final int PORT = 3200;
+    private HttpServer httpServer;
+    private OkHttpEngine engine;
+    private final Set<Integer> clientPorts =
+            Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger timeouts = new AtomicInteger();
+
+
+    @Before
+    public void before() throws Exception {
+        engine = new OkHttpEngine();
+        httpServer = HttpServer.create(new InetSocketAddress(PORT), 0);
+        httpServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String path = exchange.getRequestURI().getPath();
+                byte[] request = read(exchange.getRequestBody());
+                String response;
+                int status = HttpURLConnection.HTTP_OK;
+                if (path.equals("/echo")) {
+                    response = exchange.getRequestMethod() + " " +
+                            exchange.getRequestURI().getRawQuery() + " " +
+                            exchange.getRequestHeaders().getFirst("Content-Type") + " " +
+                            new String(request, "UTF-8");
+                } else if (path.equals("/gzip")) {
+                    assertTrue(exchange.getRequestHeaders()
+                            .getFirst("Accept-Encoding").contains("gzip"));
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    GZIPOutputStream gz = new GZIPOutputStream(bytes);
+                    gz.write("unzipped".getBytes("UTF-8"));
+                    gz.close();
+                    exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                    exchange.sendResponseHeaders(status, bytes.size());
+                    exchange.getResponseBody().write(bytes.toByteArray());
+                    exchange.close();
+                    return;
+                } else if (path.equals("/timeout") && timeouts.getAndIncrement() == 0) {
+                    // OkHttp retries the request once
+                    status = HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+                    response = "timeout";
+                } else if (path.equals("/timeout")) {
+                    response = new String(request, "UTF-8");
+                } else if (path.equals("/missing")) {
+                    status = HttpURLConnection.HTTP_NOT_FOUND;
+                    response = "err";
+                } else {
+                    status = HttpURLConnection.HTTP_BAD_METHOD;
+                    response = "err";
+                }
+                byte[] bytes = response.getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Server", "Test");
+                exchange.sendResponseHeaders(status, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+    }
+
+
+    @After
+    public void after() {
+        if (httpServer != null)
+            httpServer.stop(0);
+    }
+
+
+    @Test
+    public void testRegistered() {
+        assertTrue(HttpEngines.get(OkHttpEngine.NAME) instanceof OkHttpEngine);
+        assertSame(HttpEngines.get(OkHttpEngine.NAME), HttpEngines.getDefault());
+    }
+
+
+    @Test
+    public void testGet() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/echo")
+                .engine(engine)
+                .addQueryParam("p1", "a b")
+                .get();
+        assertEquals(HttpURLConnection.HTTP_OK, c.code());
+        assertEquals("OK", c.reasonPhrase());
+        assertEquals("Test", c.responseHeaders().get("Server").get(0));
+        assertEquals("GET p1=a+b null ", c.content());
+    }
+
+
+    @Test
+    public void testPOST() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/echo")
+                .engine(engine)
+                .contentType(HttpClient.APPLICATION_FORM_URLENCODED_UTF8)
+                .addBodyParam("id", "1 2 3")
+                .post();
+        assertEquals(HttpURLConnection.HTTP_OK, c.code());
+        assertEquals("POST null " + HttpClient.APPLICATION_FORM_URLENCODED_UTF8 +
+                " id=1+2+3", c.content());
+    }
+
+
+    @Test
+    public void testRetryBody() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/timeout")
+                .engine(engine)
+                .contentType(HttpClient.APPLICATION_FORM_URLENCODED_UTF8)
+                .addBodyParam("id", "1 2 3")
+                .post();
+        assertEquals(2, timeouts.get());
+        assertEquals(HttpURLConnection.HTTP_OK, c.code());
+        assertEquals("id=1+2+3", c.content());
+    }
+
+
+    @Test
+    public void testPutJson() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/echo")
+                .engine(engine)
+                .contentType(HttpClient.APPLICATION_JSON_UTF8)
+                .entity("{\"s\":\"€\"}")
+                .put();
+        assertEquals("PUT null " + HttpClient.APPLICATION_JSON_UTF8 +
+                " {\"s\":\"€\"}", c.content());
+    }
+
+
+    @Test
+    public void testErrorStatus() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/error")
+                .engine(engine)
+                .noExceptions()
+                .delete();
+        assertEquals(HttpURLConnection.HTTP_BAD_METHOD, c.code());
+        assertEquals("err", c.content());
+
+        c = new HttpClient("http://localhost:" + PORT + "/missing")
+                .engine(engine)
+                .noExceptions()
+                .get();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, c.code());
+        assertEquals("err", c.content());
+    }
+
+
+    @Test(expected = RuntimeException.class)
+    public void testErrorStatusException() throws Exception {
+        new HttpClient("http://localhost:" + PORT + "/error")
+                .engine(engine)
+                .get();
+    }
+
+
+    @Test
+    public void testTransparentGzip() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/gzip")
+                .engine(engine)
+                .get();
+        assertEquals("unzipped", c.content());
+    }
+
+
+    @Test
+    public void testMultipart() throws Exception {
+        HttpClient c = new HttpClient("http://localhost:" + PORT + "/echo")
+                .engine(engine)
+                .addMultiPartParam("x", "y")
+                .post();
+        assertEquals(HttpURLConnection.HTTP_OK, c.code());
+        assertTrue(((String) c.content()).contains(
+                "Content-Disposition:form-data;name=\"x\""));
+    }
+
+
+    @Test
+    public void testConnectionPool() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            new HttpClient("http://localhost:" + PORT + "/echo")
+                    .engine(engine)
+                    .get();
+        }
+        assertEquals(1, clientPorts.size());
+        assertEquals(1, engine.client().connectionPool().connectionCount());
+    }
+
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int l;
+        while ((l = in.read(buf)) != -1)
+            out.write(buf, 0, l);
+        in.close();
+        return out.toByteArray();
+    }
+}
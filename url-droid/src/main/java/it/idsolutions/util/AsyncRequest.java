@@ -0,0 +1,67 @@
+package it.idsolutions.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * An asynchronous request: runs a request on an executor and notifies the
+ * callback, if any, when it is done.
+ *
+ * @author ps
+ */
+class AsyncRequest extends FutureTask<HttpClient> {
+    private final HttpClient client;
+    private final HttpClientSpec.ResponseCallback callback;
+
+
+    AsyncRequest(final HttpClient client, final String method,
+            HttpClientSpec.ResponseCallback callback) {
+        super(new Callable<HttpClient>() {
+            @Override
+            public HttpClient call() throws Exception {
+                return client.execute(method);
+            }
+        });
+        this.client = client;
+        this.callback = callback;
+    }
+
+
+    /**
+     * Cancel the request. If it is running and mayInterruptIfRunning is
+     * true, the connection is also closed, since blocking network I/O does
+     * not respond to interrupts.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean canceled = super.cancel(mayInterruptIfRunning);
+        if (canceled && mayInterruptIfRunning)
+            client.abort();
+        return canceled;
+    }
+
+
+    @Override
+    protected void done() {
+        if (callback == null)
+            return;
+        HttpClient response;
+        try {
+            response = get();
+        } catch (CancellationException ex) {
+            callback.onFailure(client, ex);
+            return;
+        } catch (ExecutionException ex) {
+            callback.onFailure(client, ex.getCause());
+            return;
+        } catch (InterruptedException ex) {
+            // Not possible: the task is done
+            Thread.currentThread().interrupt();
+            return;
+        }
+        callback.onSuccess(response);
+    }
+}
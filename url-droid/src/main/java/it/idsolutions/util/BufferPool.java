@@ -0,0 +1,174 @@
+package it.idsolutions.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A small, bounded pool of I/O buffers shared by all requests, for the
+ * request and response bodies, and of the zlib streams used to compress
+ * and decompress them.
+ * <p>
+ * Buffers are kept in a fixed array of slots: a thread takes a buffer with
+ * a compare-and-set on the first full slot, starting from a slot chosen by
+ * its id so that concurrent threads rarely contend on the same slot. When
+ * the pool is empty a new buffer is allocated, and when it is full a
+ * released buffer is left to the garbage collector, so at most
+ * {@code SLOTS} buffers of each kind are retained (64 KB each).
+ * Inflaters and Deflaters hold native memory until they are ended, so they
+ * are ended as soon as they are not retained, instead of waiting for the
+ * garbage collector.
+ * <p>
+ * The number of slots can be set with the system property
+ * 'urldroid.bufferPool' (rounded up to a power of two; 0 disables the
+ * pool).
+ *
+ * @author ps
+ */
+final class BufferPool {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int CHAR_BUFFER_SIZE = 32 * 1024;
+    // Power of two
+    private static final int SLOTS = slots(Integer.getInteger("urldroid.bufferPool", 16));
+
+    private static final AtomicReferenceArray<byte[]> BYTES =
+            new AtomicReferenceArray<byte[]>(SLOTS);
+    private static final AtomicReferenceArray<char[]> CHARS =
+            new AtomicReferenceArray<char[]>(SLOTS);
+    private static final AtomicReferenceArray<Inflater> INFLATERS =
+            new AtomicReferenceArray<Inflater>(SLOTS);
+    private static final AtomicReferenceArray<Deflater> DEFLATERS =
+            new AtomicReferenceArray<Deflater>(SLOTS);
+
+
+    private BufferPool() {
+    }
+
+
+    /**
+     * Take a buffer of {@code BUFFER_SIZE} bytes from the pool, or allocate
+     * a new one. Its content is undefined.
+     */
+    static byte[] acquire() {
+        byte[] b = take(BYTES);
+        return b != null ? b : new byte[BUFFER_SIZE];
+    }
+
+
+    /**
+     * Take a buffer of {@code CHAR_BUFFER_SIZE} chars from the pool, or
+     * allocate a new one. Its content is undefined.
+     */
+    static char[] acquireChars() {
+        char[] c = take(CHARS);
+        return c != null ? c : new char[CHAR_BUFFER_SIZE];
+    }
+
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used afterwards.
+     */
+    static void release(byte[] b) {
+        if (b != null && b.length == BUFFER_SIZE)
+            put(BYTES, b);
+    }
+
+
+    /**
+     * Return a char buffer to the pool. The buffer must not be used
+     * afterwards.
+     */
+    static void release(char[] c) {
+        if (c != null && c.length == CHAR_BUFFER_SIZE)
+            put(CHARS, c);
+    }
+
+
+    /**
+     * Take an Inflater for raw deflate data (no zlib header) from the pool,
+     * or create a new one.
+     */
+    static Inflater acquireInflater() {
+        Inflater inf = take(INFLATERS);
+        return inf != null ? inf : new Inflater(true);
+    }
+
+
+    /**
+     * Take a Deflater producing raw deflate data (no zlib header) from the
+     * pool, or create a new one.
+     *
+     * @param level Compression level, 0-9 or {@code Deflater.DEFAULT_COMPRESSION}
+     */
+    static Deflater acquireDeflater(int level) {
+        Deflater def = take(DEFLATERS);
+        if (def == null)
+            return new Deflater(level, true);
+        // Applies to the next input, the Deflater has been reset
+        def.setLevel(level);
+        return def;
+    }
+
+
+    /**
+     * Reset an Inflater and return it to the pool, or end it if the pool is
+     * full. The Inflater must not be used afterwards.
+     */
+    static void release(Inflater inf) {
+        if (inf == null)
+            return;
+        inf.reset();
+        if (!put(INFLATERS, inf))
+            inf.end();
+    }
+
+
+    /**
+     * Reset a Deflater and return it to the pool, or end it if the pool is
+     * full. The Deflater must not be used afterwards.
+     */
+    static void release(Deflater def) {
+        if (def == null)
+            return;
+        def.reset();
+        if (!put(DEFLATERS, def))
+            def.end();
+    }
+
+
+    private static <T> T take(AtomicReferenceArray<T> slots) {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < SLOTS; i++) {
+            int slot = (start + i) & (SLOTS - 1);
+            T b = slots.get(slot);
+            if (b != null && slots.compareAndSet(slot, b, null))
+                return b;
+        }
+        return null;
+    }
+
+
+    /**
+     * @return False if the pool is full
+     */
+    private static <T> boolean put(AtomicReferenceArray<T> slots, T b) {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < SLOTS; i++) {
+            int slot = (start + i) & (SLOTS - 1);
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, b))
+                return true;
+        }
+        return false;
+    }
+
+
+    private static int slots(int n) {
+        if (n <= 0)
+            return 0;
+        int slots = 1;
+        while (slots < n && slots < (1 << 16))
+            slots <<= 1;
+        return slots;
+    }
+}
@@ -0,0 +1,425 @@
+package it.idsolutions.util;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * The gzip and deflate content codings, for compressed request and response
+ * bodies.
+ * <p>
+ * Unlike GZIPInputStream and GZIPOutputStream, which create (and leave to
+ * the garbage collector) an Inflater or Deflater with its native zlib state
+ * for each body, the streams take them, with their buffer, from the
+ * {@link BufferPool}. They are returned when the stream is closed, or when
+ * a response body has been read until the end.
+ *
+ * @author ps
+ */
+final class ContentEncoding {
+    /** Value of the Accept-Encoding header for the supported codings */
+    static final String ACCEPT = "gzip, deflate";
+
+    private static final int GZIP = 0;
+    private static final int DEFLATE = 1;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+
+    private ContentEncoding() {
+    }
+
+
+    /**
+     * Returns true if the content coding can be decoded by
+     * {@link #decode(InputStream, String)}.
+     */
+    static boolean isSupported(String encoding) {
+        return format(encoding) >= 0;
+    }
+
+
+    /**
+     * Returns a stream decoding the content, or the stream itself if the
+     * coding is not supported (or is 'identity').
+     *
+     * @param in Encoded content
+     * @param encoding Value of the Content-Encoding header
+     */
+    static InputStream decode(InputStream in, String encoding) {
+        int format = format(encoding);
+        return format >= 0 ? new InflatingInputStream(in, format) : in;
+    }
+
+
+    /**
+     * Returns a stream which gzips the content written to it. Closing it
+     * closes the underlying stream.
+     *
+     * @param out Stream to write the compressed content to
+     * @param level Compression level, 0-9 or {@code Deflater.DEFAULT_COMPRESSION}
+     */
+    static OutputStream gzip(OutputStream out, int level) throws IOException {
+        return new GzipOutputStream(out, level);
+    }
+
+
+    /**
+     * Returns false for media types which are already compressed (images,
+     * audio, video, archives), where compression would spend CPU for
+     * nothing, or even make the body larger.
+     *
+     * @param contentType Value of the Content-Type header, or null
+     */
+    static boolean compressible(String contentType) {
+        if (contentType == null)
+            return true;
+        int i = contentType.indexOf(';');
+        String type = (i >= 0 ? contentType.substring(0, i) : contentType)
+                .trim().toLowerCase(Locale.US);
+        if (type.startsWith("image/"))
+            return type.equals("image/svg+xml") || type.equals("image/bmp");
+        return !(type.startsWith("audio/") || type.startsWith("video/")
+                || type.startsWith("font/woff")
+                || type.equals("application/zip")
+                || type.equals("application/gzip")
+                || type.equals("application/x-gzip")
+                || type.equals("application/x-bzip2")
+                || type.equals("application/x-xz")
+                || type.equals("application/x-7z-compressed")
+                || type.equals("application/x-rar-compressed")
+                || type.equals("application/zstd"));
+    }
+
+
+    private static int format(String encoding) {
+        if (encoding == null)
+            return -1;
+        String e = encoding.trim().toLowerCase(Locale.US);
+        if (e.equals("gzip") || e.equals("x-gzip"))
+            return GZIP;
+        if (e.equals("deflate"))
+            return DEFLATE;
+        return -1;
+    }
+
+
+    /**
+     * Decodes gzip (also with many members) or deflate content. Deflate is
+     * the zlib format according to the standard, but some servers send raw
+     * deflate data: the format is detected from the first two bytes.
+     * <p>
+     * A body which is empty, as the body of a 204 or 304 response with a
+     * Content-Encoding header, is decoded as empty.
+     */
+    private static final class InflatingInputStream extends InputStream {
+        private final InputStream in;
+        private final int format;
+        private Inflater inf;
+        private byte[] buf;
+        // Bytes of buf not yet given to the inflater, from pos to len
+        private int pos;
+        private int len;
+        private Checksum check;
+        private long written;
+        private boolean started;
+        private boolean eof;
+        private byte[] single;
+
+
+        InflatingInputStream(InputStream in, int format) {
+            this.in = in;
+            this.format = format;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            if (single == null)
+                single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (eof)
+                return -1;
+            if (n == 0)
+                return 0;
+            if (!started) {
+                started = true;
+                inf = BufferPool.acquireInflater();
+                buf = BufferPool.acquire();
+                if (!readHeader(true)) {
+                    end();
+                    return -1;
+                }
+            }
+            while (true) {
+                int k;
+                try {
+                    k = inf.inflate(b, off, n);
+                } catch (DataFormatException ex) {
+                    throw new ZipException(ex.getMessage());
+                }
+                if (k > 0) {
+                    if (check != null)
+                        check.update(b, off, k);
+                    written += k;
+                    return k;
+                }
+                if (inf.finished()) {
+                    pos = len - inf.getRemaining();
+                    readTrailer();
+                    if (format == GZIP && readHeader(false)) {
+                        // Another member follows
+                        inf.reset();
+                        continue;
+                    }
+                    end();
+                    return -1;
+                }
+                if (inf.needsDictionary())
+                    throw new ZipException("Deflate dictionaries are not supported");
+                if (inf.needsInput()) {
+                    if (pos == len && !fill())
+                        throw new EOFException("Unexpected end of compressed content");
+                    inf.setInput(buf, pos, len - pos);
+                    pos = len;
+                }
+            }
+        }
+
+
+        /**
+         * @param first False for a following gzip member
+         * @return False if the content ends here
+         */
+        private boolean readHeader(boolean first) throws IOException {
+            if (!ensure(2))
+                return false;
+            if (format == DEFLATE) {
+                int cmf = buf[pos] & 0xff;
+                int flg = len - pos > 1 ? buf[pos + 1] & 0xff : 0;
+                if (len - pos > 1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0) {
+                    if ((flg & 0x20) != 0)
+                        throw new ZipException("Deflate dictionaries are not supported");
+                    pos += 2;
+                    check = new Adler32();
+                } else {
+                    check = null;
+                }
+                return true;
+            }
+
+            if ((buf[pos] & 0xff) != 0x1f || (buf[pos + 1] & 0xff) != 0x8b) {
+                if (first)
+                    throw new ZipException("Not in GZIP format");
+                // Trailing garbage is ignored, as by GZIPInputStream
+                pos = len;
+                return false;
+            }
+            pos += 2;
+            if (readByte() != 8)
+                throw new ZipException("Unsupported compression method");
+            int flags = readByte();
+            // MTIME, XFL, OS
+            skip(6);
+            if ((flags & FEXTRA) != 0)
+                skip(readByte() | (readByte() << 8));
+            if ((flags & FNAME) != 0)
+                while (readByte() != 0) { }
+            if ((flags & FCOMMENT) != 0)
+                while (readByte() != 0) { }
+            if ((flags & FHCRC) != 0)
+                skip(2);
+            if (check == null)
+                check = new CRC32();
+            else
+                check.reset();
+            written = 0;
+            return true;
+        }
+
+
+        private void readTrailer() throws IOException {
+            if (check == null)
+                return;
+            if (format == DEFLATE) {
+                long adler = ((long) readByte() << 24) | (readByte() << 16)
+                        | (readByte() << 8) | readByte();
+                if (adler != check.getValue())
+                    throw new ZipException("Corrupt deflate content (wrong checksum)");
+                return;
+            }
+            if (readInt() != check.getValue())
+                throw new ZipException("Corrupt GZIP content (wrong CRC)");
+            if (readInt() != (written & 0xffffffffL))
+                throw new ZipException("Corrupt GZIP content (wrong size)");
+        }
+
+
+        private long readInt() throws IOException {
+            return readByte() | (readByte() << 8) | (readByte() << 16)
+                    | ((long) readByte() << 24);
+        }
+
+
+        private int readByte() throws IOException {
+            if (pos == len && !fill())
+                throw new EOFException("Unexpected end of compressed content");
+            return buf[pos++] & 0xff;
+        }
+
+
+        private void skip(int n) throws IOException {
+            for (int i = 0; i < n; i++)
+                readByte();
+        }
+
+
+        /**
+         * Read until at least n bytes are available in the buffer.
+         *
+         * @return False if the content ends before (for deflate, only if
+         *     it is empty)
+         */
+        private boolean ensure(int n) throws IOException {
+            if (len - pos >= n)
+                return true;
+            System.arraycopy(buf, pos, buf, 0, len - pos);
+            len -= pos;
+            pos = 0;
+            while (len < n) {
+                int l = in.read(buf, len, buf.length - len);
+                if (l == -1)
+                    return len > 0 && format == DEFLATE;
+                len += l;
+            }
+            return true;
+        }
+
+
+        private boolean fill() throws IOException {
+            int l = in.read(buf, 0, buf.length);
+            if (l == -1)
+                return false;
+            pos = 0;
+            len = l;
+            return true;
+        }
+
+
+        /**
+         * Return the Inflater and buffer to the pool: the stream is at the
+         * end, or closed.
+         */
+        private void end() {
+            eof = true;
+            BufferPool.release(inf);
+            BufferPool.release(buf);
+            inf = null;
+            buf = null;
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            if (!eof && started)
+                end();
+            eof = true;
+            in.close();
+        }
+    }
+
+
+    /**
+     * Writes content in the gzip format, with a single member.
+     */
+    private static final class GzipOutputStream extends FilterOutputStream {
+        private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0
+        };
+
+        private Deflater def;
+        private byte[] buf;
+        private final CRC32 crc = new CRC32();
+        private long total;
+        private boolean closed;
+
+
+        GzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out);
+            out.write(HEADER);
+            this.def = BufferPool.acquireDeflater(level);
+            this.buf = BufferPool.acquire();
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            if (closed)
+                throw new IOException("Stream closed");
+            if (n == 0)
+                return;
+            crc.update(b, off, n);
+            total += n;
+            def.setInput(b, off, n);
+            while (!def.needsInput())
+                deflate();
+        }
+
+
+        private void deflate() throws IOException {
+            int n = def.deflate(buf, 0, buf.length);
+            if (n > 0)
+                out.write(buf, 0, n);
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                def.finish();
+                while (!def.finished())
+                    deflate();
+                long c = crc.getValue();
+                int size = (int) total;
+                out.write(new byte[] {
+                    (byte) c, (byte) (c >> 8), (byte) (c >> 16), (byte) (c >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+                });
+            } finally {
+                BufferPool.release(def);
+                BufferPool.release(buf);
+                def = null;
+                buf = null;
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package it.idsolutions.util;
+
+import java.lang.ref.WeakReference;
+import java.net.Proxy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Clients of an engine derived for a combination of connection settings
+ * (proxy, timeouts, SSL): a few are kept, the least recently used ones are
+ * dropped.
+ * <p>
+ * A combination gets a cached client the second time it is used, so
+ * one-off settings (i.e. a new hostname verifier or timeout for each
+ * request) get a client which is not cached. Settings compared by
+ * identity, like socket factories, verifiers and contexts, are held
+ * through weak references: the key does not keep them alive.
+ *
+ * @param <C> Type of the clients
+ * @author ps
+ */
+final class DerivedClients<C> {
+    /**
+     * Creates a client, when it is not cached.
+     */
+    interface Factory<C> {
+        C create();
+    }
+
+
+    // Not a monitor, like the other locks of the engines
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Key, C> clients;
+    // Combinations used once: they do not evict the cached clients
+    private final Map<Key, Boolean> seen;
+
+
+    /**
+     * @param capacity Max number of cached clients, and of combinations
+     *     used once
+     */
+    DerivedClients(int capacity) {
+        this.clients = lru(capacity);
+        this.seen = lru(capacity);
+    }
+
+
+    private static <V> Map<Key, V> lru(final int capacity) {
+        return new LinkedHashMap<Key, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the client for a combination of settings, creating it if it
+     * is not cached.
+     *
+     * @param factory Creates the client
+     * @param settings Settings: numbers, strings, booleans, enums and
+     *     proxies are compared by value, other objects by identity
+     */
+    C get(Factory<C> factory, Object... settings) {
+        Key key = new Key(settings);
+        boolean cache;
+        lock.lock();
+        try {
+            C c = clients.get(key);
+            if (c != null)
+                return c;
+            cache = seen.remove(key) != null;
+            if (!cache) {
+                expunge(seen);
+                seen.put(key, Boolean.TRUE);
+            }
+        } finally {
+            lock.unlock();
+        }
+        C c = factory.create();
+        if (cache) {
+            lock.lock();
+            try {
+                C existing = clients.get(key);
+                if (existing != null)
+                    return existing;
+                expunge(clients);
+                clients.put(key, c);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return c;
+    }
+
+
+    /**
+     * @return Number of cached clients
+     */
+    int size() {
+        lock.lock();
+        try {
+            return clients.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Remove the combinations with a collected setting.
+     */
+    private static void expunge(Map<Key, ?> map) {
+        Iterator<Key> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().collected())
+                it.remove();
+        }
+    }
+
+
+    private static class Key {
+        // Values, or weak references for the settings compared by identity
+        private final Object[] settings;
+        private final int hash;
+
+
+        Key(Object[] settings) {
+            this.settings = new Object[settings.length];
+            int h = 1;
+            for (int i = 0; i < settings.length; i++) {
+                Object s = settings[i];
+                if (s == null || byValue(s)) {
+                    this.settings[i] = s;
+                    h = 31 * h + (s != null ? s.hashCode() : 0);
+                } else {
+                    this.settings[i] = new WeakReference<Object>(s);
+                    h = 31 * h + System.identityHashCode(s);
+                }
+            }
+            this.hash = h;
+        }
+
+
+        private static boolean byValue(Object s) {
+            return s instanceof Number || s instanceof String || s instanceof Boolean
+                    || s instanceof Enum<?> || s instanceof Proxy;
+        }
+
+
+        boolean collected() {
+            for (Object s : settings) {
+                if (s instanceof WeakReference<?> && ((WeakReference<?>) s).get() == null)
+                    return true;
+            }
+            return false;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            if (k.hash != hash || k.settings.length != settings.length)
+                return false;
+            for (int i = 0; i < settings.length; i++) {
+                Object a = settings[i];
+                Object b = k.settings[i];
+                if (a instanceof WeakReference<?>) {
+                    if (!(b instanceof WeakReference<?>))
+                        return false;
+                    Object r = ((WeakReference<?>) a).get();
+                    if (r == null || r != ((WeakReference<?>) b).get())
+                        return false;
+                } else if (a == null ? b != null : !a.equals(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
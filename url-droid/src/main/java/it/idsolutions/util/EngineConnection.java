@@ -0,0 +1,448 @@
+package it.idsolutions.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+
+/**
+ * Base class for engines that are not built on HttpURLConnection: it adapts
+ * a single request/response exchange to the HttpURLConnection API used by
+ * {@link HttpClient}.
+ * <p>
+ * Subclasses implement {@link #execute(InputStream, long)}, reading the
+ * request method, headers, timeouts and SSL settings from this connection.
+ * The request body is buffered, unless a streaming mode is set with
+ * {@link #setFixedLengthStreamingMode(int)} or
+ * {@link #setChunkedStreamingMode(int)}: in this case the exchange starts
+ * on a separate thread as soon as the output stream is requested, and the
+ * body is streamed to it while it is written. Fixed-length bodies up to
+ * 64 KB are still buffered, as they would not block the writer anyway.
+ * <p>
+ * The connection extends HttpsURLConnection for both HTTP and HTTPS URLs,
+ * so the SSL settings of the client are always available to the engine.
+ *
+ * @author ps
+ */
+public abstract class EngineConnection extends HttpsURLConnection {
+    private static final int PIPE_SIZE = 64 * 1024;
+    // Status line first, with a null key, then names ignoring case
+    private static final Comparator<String> HEADER_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            if (a == null)
+                return b == null ? 0 : -1;
+            if (b == null)
+                return 1;
+            return String.CASE_INSENSITIVE_ORDER.compare(a, b);
+        }
+    };
+    private static final ExecutorService streamingExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "url-droid-streaming");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Proxy proxy;
+    // Not a monitor: a virtual thread blocked on I/O while holding it would
+    // pin its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteArrayOutputStream buffer;
+    private OutputStream out;
+    private Pipe pipe;
+    private Future<Response> pending;
+    private Response response;
+
+
+    protected EngineConnection(URL url, Proxy proxy) {
+        super(url);
+        this.proxy = proxy;
+    }
+
+
+    /**
+     * Execute the request and return the response, as soon as the status
+     * and headers are received.
+     *
+     * @param body Request body, or null if there is none: a
+     *     {@link BufferedBody} if it was buffered, which can be sent again
+     *     (i.e. on a redirect or a retry), otherwise a stream which can be
+     *     read only once
+     * @param length Length of the body, or -1 if unknown
+     * @return Response
+     * @throws IOException In case of network errors
+     */
+    protected abstract Response execute(InputStream body, long length) throws IOException;
+
+
+    /**
+     * Called by {@link #disconnect()} to abort an exchange that is still in
+     * progress. Does nothing by default.
+     */
+    protected void cancel() {
+    }
+
+
+    /**
+     * Returns the proxy for this connection.
+     *
+     * @return Proxy, or null to use the engine default
+     */
+    protected Proxy proxy() {
+        return proxy;
+    }
+
+
+    /**
+     * Returns the request headers, with the names as they were set.
+     *
+     * @return Headers
+     */
+    protected Map<String, List<String>> requestHeaders() {
+        return getRequestProperties();
+    }
+
+
+    @Override
+    public void connect() throws IOException {
+        response();
+    }
+
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        lock.lock();
+        try {
+            return openOutputStream();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private OutputStream openOutputStream() throws IOException {
+        if (out != null)
+            return out;
+        if (response != null || pending != null)
+            throw new ProtocolException("Cannot write output after reading input.");
+        if (!getDoOutput())
+            throw new ProtocolException("Cannot write output: doOutput is false");
+        if ("GET".equals(method))
+            method = "POST";
+
+        if (fixedContentLength == -1 && chunkLength == -1) {
+            buffer = new ByteArrayOutputStream();
+            out = buffer;
+        } else if (fixedContentLength >= 0 && fixedContentLength <= PIPE_SIZE) {
+            // A small body of known length fits in the pipe anyway: buffer
+            // it and skip the handoff to another thread
+            buffer = new ByteArrayOutputStream(fixedContentLength);
+            out = buffer;
+        } else {
+            // Streaming: the engine reads the body while it is written
+            final long length = fixedContentLength;
+            pipe = new Pipe(PIPE_SIZE);
+            out = pipe.sink();
+            pending = streamingExecutor.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    try {
+                        return execute(pipe.source(), length);
+                    } finally {
+                        // Unblock the writer, if the engine stopped reading
+                        // the body before its end (i.e. an early response)
+                        pipe.source().close();
+                    }
+                }
+            });
+        }
+        return out;
+    }
+
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        Response r = response();
+        if (r.code >= 400) {
+            if (r.code == 404 || r.code == 410)
+                throw new FileNotFoundException(url.toString());
+            throw new IOException("Server returned HTTP response code: " +
+                    r.code + " for URL: " + url);
+        }
+        return r.body;
+    }
+
+
+    @Override
+    public InputStream getErrorStream() {
+        Response r = response;
+        return r != null && r.code >= 400 ? r.body : null;
+    }
+
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return response().code;
+    }
+
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return response().message;
+    }
+
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        Response r = responseQuietly();
+        return r != null ? r.headers : Collections.<String, List<String>>emptyMap();
+    }
+
+
+    @Override
+    public String getHeaderField(String name) {
+        Response r = responseQuietly();
+        if (r == null || name == null)
+            return null;
+        for (Map.Entry<String, List<String>> e : r.headers.entrySet()) {
+            if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty())
+                return e.getValue().get(e.getValue().size() - 1);
+        }
+        return null;
+    }
+
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        String[] field = headerField(n);
+        return field != null ? field[0] : null;
+    }
+
+
+    @Override
+    public String getHeaderField(int n) {
+        String[] field = headerField(n);
+        return field != null ? field[1] : null;
+    }
+
+
+    @Override
+    public void disconnect() {
+        Response r = response;
+        if (r != null) {
+            try {
+                r.body.close();
+            } catch (IOException ignore) { }
+        } else {
+            // A body still being streamed fails, rather than ending where
+            // the writer stopped
+            Pipe p = pipe;
+            if (p != null) {
+                try {
+                    p.source().close();
+                } catch (IOException ignore) { }
+            }
+            cancel();
+        }
+    }
+
+
+    @Override
+    public boolean usingProxy() {
+        return proxy != null && proxy.type() != Proxy.Type.DIRECT;
+    }
+
+
+    @Override
+    public String getCipherSuite() {
+        return connectedResponse().cipherSuite;
+    }
+
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+        return connectedResponse().localCertificates;
+    }
+
+
+    @Override
+    public Certificate[] getServerCertificates() throws SSLPeerUnverifiedException {
+        Certificate[] certs = connectedResponse().serverCertificates;
+        if (certs == null)
+            throw new SSLPeerUnverifiedException("No server certificates");
+        return certs;
+    }
+
+
+    private Response response() throws IOException {
+        lock.lock();
+        try {
+            return awaitResponse();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private Response awaitResponse() throws IOException {
+        if (response != null)
+            return response;
+        if (pending != null) {
+            try {
+                response = pending.get();
+            } catch (InterruptedException ex) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException)
+                    throw (IOException) ex.getCause();
+                throw new IOException(ex.getCause());
+            } finally {
+                pending = null;
+            }
+        } else {
+            byte[] body = buffer != null ? buffer.toByteArray() : null;
+            buffer = null;
+            if (body != null && fixedContentLength >= 0 && body.length != fixedContentLength)
+                throw new IOException("Expected " + fixedContentLength
+                        + " bytes of request body, written " + body.length);
+            response = execute(body != null ? new BufferedBody(body) : null,
+                    body != null ? body.length : -1);
+        }
+        connected = true;
+        return response;
+    }
+
+
+    private Response responseQuietly() {
+        try {
+            return response();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+
+    private Response connectedResponse() {
+        Response r = response;
+        if (r == null)
+            throw new IllegalStateException("connection not yet open");
+        return r;
+    }
+
+
+    private String[] headerField(int n) {
+        Response r = responseQuietly();
+        if (r == null || n < 0)
+            return null;
+        int i = 0;
+        for (Map.Entry<String, List<String>> e : r.headers.entrySet()) {
+            for (String v : e.getValue()) {
+                if (i++ == n)
+                    return new String[] { e.getKey(), v };
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Request body buffered in memory: the engine can send its bytes as
+     * many times as needed.
+     */
+    public static class BufferedBody extends ByteArrayInputStream {
+        BufferedBody(byte[] body) {
+            super(body);
+        }
+
+
+        /**
+         * @return The whole body, regardless of what has been read
+         */
+        public byte[] bytes() {
+            return buf;
+        }
+    }
+
+
+    /**
+     * Response of an exchange.
+     */
+    public static class Response {
+        private final int code;
+        private final String message;
+        private final Map<String, List<String>> headers;
+        private final InputStream body;
+        private String cipherSuite;
+        private Certificate[] localCertificates;
+        private Certificate[] serverCertificates;
+
+
+        /**
+         * @param code HTTP status code
+         * @param message HTTP reason phrase
+         * @param statusLine Status line (i.e. "HTTP/1.1 200 OK"), returned
+         *     with a null key as the first header, like HttpURLConnection does
+         * @param headers Response headers
+         * @param body Response body, which is closed on disconnect
+         */
+        public Response(int code, String message, String statusLine,
+                Map<String, List<String>> headers, InputStream body) {
+            this.code = code;
+            this.message = message;
+            // Header names are case insensitive, and HTTP/2 sends them in
+            // lower case
+            Map<String, List<String>> h = new TreeMap<String, List<String>>(HEADER_ORDER);
+            if (statusLine != null)
+                h.put(null, Collections.singletonList(statusLine));
+            for (Map.Entry<String, List<String>> e : headers.entrySet())
+                h.put(e.getKey(), Collections.unmodifiableList(
+                        new ArrayList<String>(e.getValue())));
+            this.headers = Collections.unmodifiableMap(h);
+            this.body = body != null ? body : new ByteArrayInputStream(new byte[0]);
+        }
+
+
+        /**
+         * Set the SSL details of an HTTPS exchange.
+         *
+         * @return Self for chaining
+         */
+        public Response ssl(String cipherSuite, Certificate[] localCertificates,
+                Certificate[] serverCertificates) {
+            this.cipherSuite = cipherSuite;
+            this.localCertificates = localCertificates;
+            this.serverCertificates = serverCertificates;
+            return this;
+        }
+    }
+}
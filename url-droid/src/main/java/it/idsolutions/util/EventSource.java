@@ -0,0 +1,619 @@
+package it.idsolutions.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A client of Server-Sent Events ('text/event-stream'): keeps a GET request
+ * open and dispatches the events to a listener as the server pushes them,
+ * instead of polling with repeated requests.
+ * <pre>
+ * EventSource events = new EventSource("http://localhost:3000/events")
+ *     .listener(new EventSource.Listener() { ... })
+ *     .open();
+ * ...
+ * events.close();
+ * </pre>
+ * The stream is parsed while it is read, through a pooled buffer (see
+ * {@link BufferPool}), and an event is dispatched as soon as the empty line
+ * which ends it has been received. The stream is never held in memory.
+ * <p>
+ * When the connection fails or is closed by the server, it is opened again
+ * after the reconnection delay, with a 'Last-Event-ID' header carrying the
+ * id of the last event received, so the server can resume the stream from
+ * there. The delay is set by the server with the 'retry' field, or by
+ * {@link #reconnectDelay(long)}, and doubles after each attempt which fails
+ * to open the stream, up to {@link #maxReconnectDelay(long)}.
+ * <p>
+ * A 204 response tells the client to stop. Other responses which are not a
+ * 200 'text/event-stream', except 5xx statuses, are not retried: the source
+ * is closed with an error.
+ * <p>
+ * A read timeout, from the template or {@code HttpClient.DEFAULT_READ_TIMEOUT_MS},
+ * still applies while the stream is idle: with a server sending comments as
+ * heartbeats, a short timeout detects a dead connection, which is then
+ * opened again.
+ *
+ * @author ps
+ */
+public class EventSource {
+    public static final long DEFAULT_RECONNECT_DELAY = 3000;
+    public static final long DEFAULT_MAX_RECONNECT_DELAY = 60000;
+
+    private final HttpClientTemplate template;
+    private final String url;
+    private Listener listener;
+    private Executor executor;
+    private volatile long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    private volatile String lastEventId = "";
+    private volatile boolean closed;
+    private volatile HttpClient current;
+    private final AtomicBoolean started = new AtomicBoolean();
+    // Not a monitor: a virtual thread waiting to reconnect would pin its
+    // carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition closing = lock.newCondition();
+
+
+    /**
+     * Receives the events of an {@link EventSource}. The methods are called
+     * on the thread reading the stream, one at a time: the stream is not
+     * read while they run.
+     */
+    public interface Listener {
+        /**
+         * Called when the stream is open, also after each reconnection.
+         */
+        void onOpen(EventSource source);
+
+
+        /**
+         * Called for each event, when the empty line which ends it has
+         * been received.
+         */
+        void onEvent(EventSource source, Event event);
+
+
+        /**
+         * Called when the connection fails, or is closed by the server.
+         * Not called after {@link EventSource#close()}.
+         *
+         * @param reconnecting True if the connection is opened again after
+         *     the delay, false if the source is closed
+         */
+        void onError(EventSource source, Throwable error, boolean reconnecting);
+
+
+        /**
+         * Called once, when the source is closed: by
+         * {@link EventSource#close()}, by a 204 response, or by an error
+         * which is not retried.
+         */
+        void onClosed(EventSource source);
+    }
+
+
+    /**
+     * Returns a new source of the events at the specified URL.
+     *
+     * @param url The URL, already encoded
+     */
+    public EventSource(String url) {
+        this(null, url);
+    }
+
+
+    /**
+     * Returns a new source of the events at the specified URL, whose
+     * requests have the settings of a template (credentials, headers,
+     * timeouts...).
+     *
+     * @param template Template, or null
+     * @param url The URL, already encoded
+     */
+    public EventSource(HttpClientTemplate template, String url) {
+        if (url == null)
+            throw new IllegalArgumentException("url is null");
+        this.template = template;
+        this.url = url;
+    }
+
+
+    /**
+     * Set the listener of the events.
+     *
+     * @param listener Listener
+     * @return Self for chaining
+     */
+    public EventSource listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+
+    /**
+     * Set the executor that reads the stream, for {@link #open()}. The
+     * stream keeps its thread until the source is closed.
+     *
+     * @param executor Executor, or null to use {@link HttpExecutors#getDefault()}
+     * @return Self for chaining
+     */
+    public EventSource executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    /**
+     * Set the delay before opening the connection again. A 'retry' field
+     * sent by the server replaces it.
+     *
+     * @param millis Delay in ms, default is {@code DEFAULT_RECONNECT_DELAY}
+     * @return Self for chaining
+     */
+    public EventSource reconnectDelay(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("millis must not be negative");
+        this.reconnectDelay = millis;
+        return this;
+    }
+
+
+    /**
+     * Set the max delay before opening the connection again, when the
+     * delay doubles after each failed attempt.
+     *
+     * @param millis Max delay in ms, default is {@code DEFAULT_MAX_RECONNECT_DELAY}
+     * @return Self for chaining
+     */
+    public EventSource maxReconnectDelay(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("millis must not be negative");
+        this.maxReconnectDelay = millis;
+        return this;
+    }
+
+
+    /**
+     * Set the id of the last event received, to resume a stream from a
+     * previous run. It is sent in the 'Last-Event-ID' header.
+     *
+     * @param id Event id, or null
+     * @return Self for chaining
+     */
+    public EventSource lastEventId(String id) {
+        this.lastEventId = id != null ? id : "";
+        return this;
+    }
+
+
+    /**
+     * @return Id of the last event received, or an empty string
+     */
+    public String lastEventId() {
+        return lastEventId;
+    }
+
+
+    /**
+     * @return True if the source has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+
+    /**
+     * Open the stream, and read it on the executor until the source is
+     * closed.
+     *
+     * @return Self for chaining
+     */
+    public EventSource open() {
+        start();
+        Executor e = executor != null ? executor : HttpExecutors.getDefault();
+        e.execute(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        });
+        return this;
+    }
+
+
+    /**
+     * Open the stream, and read it on the calling thread until the source
+     * is closed.
+     */
+    public void run() {
+        start();
+        loop();
+    }
+
+
+    /**
+     * Close the source: the connection is closed, and no more events are
+     * dispatched. Can be called from any thread, also from the listener.
+     */
+    public void close() {
+        closed = true;
+        HttpClient c = current;
+        if (c != null)
+            c.abort();
+        lock.lock();
+        try {
+            closing.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void start() {
+        if (listener == null)
+            throw new IllegalStateException("No listener");
+        if (!started.compareAndSet(false, true))
+            throw new IllegalStateException("Already open");
+    }
+
+
+    private void loop() {
+        int failures = 0;
+        try {
+            while (!closed) {
+                Connection c = new Connection();
+                Throwable error;
+                boolean retry;
+                try {
+                    error = c.read();
+                    retry = error != null;
+                } catch (RuntimeException ex) {
+                    Stop stop = stopCause(ex);
+                    error = stop != null ? stop.getCause() : ex;
+                    retry = stop == null;
+                }
+                if (closed)
+                    break;
+                if (error == null) {
+                    // 204: the server tells to stop
+                    closed = true;
+                    break;
+                }
+                failures = c.opened ? 0 : failures + 1;
+                if (!retry)
+                    closed = true;
+                listener.onError(this, error, retry);
+                if (retry)
+                    sleep(delay(failures));
+            }
+        } finally {
+            closed = true;
+            current = null;
+            listener.onClosed(this);
+        }
+    }
+
+
+    /**
+     * Returns the delay before the next attempt: the reconnection delay,
+     * doubled for each attempt which failed to open the stream.
+     */
+    private long delay(int failures) {
+        long delay = reconnectDelay;
+        for (int i = 1; i < failures && delay < maxReconnectDelay; i++)
+            delay *= 2;
+        return Math.min(delay, Math.max(maxReconnectDelay, reconnectDelay));
+    }
+
+
+    private void sleep(long millis) {
+        long left = TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.lock();
+        try {
+            while (!closed && left > 0) {
+                try {
+                    left = closing.awaitNanos(left);
+                } catch (InterruptedException ex) {
+                    closed = true;
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private static Stop stopCause(Throwable ex) {
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof Stop)
+                return (Stop) t;
+        }
+        return null;
+    }
+
+
+    private static boolean isEventStream(String contentType) {
+        return contentType != null && contentType.trim().toLowerCase(Locale.US)
+                .startsWith("text/event-stream");
+    }
+
+
+    /**
+     * An error which closes the source, with the reason as its cause.
+     */
+    private static class Stop extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+
+        Stop(Throwable reason) {
+            super(reason);
+        }
+    }
+
+
+    /**
+     * A request for the stream, read by a {@link Parser}.
+     */
+    private class Connection implements HttpClient.RawStreamCallback {
+        private final HttpClient client;
+        boolean opened;
+
+
+        Connection() {
+            HttpClient c = template != null ? template.request(url) : new HttpClient(url);
+            c.setHeader("Accept", "text/event-stream")
+                    .setHeader("Cache-Control", "no-cache")
+                    .compressResponse(false)
+                    .keepAlive(false)
+                    .noExceptions()
+                    .rawStreamCallback(this);
+            if (lastEventId.length() > 0)
+                c.setHeader("Last-Event-ID", lastEventId);
+            this.client = c;
+        }
+
+
+        /**
+         * Read the stream until it ends.
+         *
+         * @return The reason to reconnect, or null if the server tells to
+         *     stop
+         * @throws Stop If the source must be closed
+         */
+        Throwable read() {
+            current = client;
+            if (closed)
+                return null;
+            client.execute("GET");
+            int code = client.code();
+            if (code == 204)
+                return null;
+            if (opened)
+                return new EOFException("Stream closed by the server");
+            IOException error = new IOException("Not an event stream: " + code
+                    + " " + client.reasonPhrase());
+            if (code / 100 == 5)
+                return error;
+            throw new Stop(error);
+        }
+
+
+        @Override
+        public void onRawStream(int code, InputStream in) {
+            // The connection exists now, so close() can abort it
+            if (code != 200 || closed)
+                return;
+            String type = client.contentTypeInProgress();
+            if (!isEventStream(type))
+                throw new Stop(new IOException("Not an event stream: " + type));
+            opened = true;
+            try {
+                listener.onOpen(EventSource.this);
+            } catch (RuntimeException ex) {
+                throw new Stop(ex);
+            }
+            try {
+                new Parser().parse(in);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+
+        @Override
+        public void onRawErrorStream(int code, InputStream err) {
+            // Not an event stream
+        }
+    }
+
+
+    /**
+     * Parses the stream, line by line, and dispatches the events. The
+     * fields of an incomplete event at the end of the stream are discarded.
+     */
+    private class Parser {
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private boolean firstLine = true;
+        private boolean skipLf;
+        private final StringBuilder data = new StringBuilder();
+        private String type = "";
+        private String id = lastEventId;
+
+
+        void parse(InputStream in) throws IOException {
+            byte[] buf = BufferPool.acquire();
+            try {
+                int n;
+                while (!closed && (n = in.read(buf)) != -1) {
+                    int start = 0;
+                    for (int i = 0; i < n; i++) {
+                        byte b = buf[i];
+                        if (skipLf) {
+                            // CRLF is a single line break
+                            skipLf = false;
+                            if (b == '\n') {
+                                start = i + 1;
+                                continue;
+                            }
+                        }
+                        if (b == '\n' || b == '\r') {
+                            append(buf, start, i - start);
+                            line();
+                            if (closed)
+                                return;
+                            skipLf = b == '\r';
+                            start = i + 1;
+                        }
+                    }
+                    append(buf, start, n - start);
+                }
+            } finally {
+                BufferPool.release(buf);
+            }
+        }
+
+
+        private void append(byte[] b, int off, int len) {
+            if (len == 0)
+                return;
+            if (lineLength + len > line.length) {
+                byte[] l = new byte[Math.max(line.length * 2, lineLength + len)];
+                System.arraycopy(line, 0, l, 0, lineLength);
+                line = l;
+            }
+            System.arraycopy(b, off, line, lineLength, len);
+            lineLength += len;
+        }
+
+
+        private void line() {
+            int off = 0;
+            if (firstLine) {
+                firstLine = false;
+                // UTF-8 byte order mark
+                if (lineLength >= 3 && (line[0] & 0xff) == 0xef
+                        && (line[1] & 0xff) == 0xbb && (line[2] & 0xff) == 0xbf)
+                    off = 3;
+            }
+            String l = TextDecoder.decode(line, off, lineLength - off, TextDecoder.UTF_8);
+            lineLength = 0;
+
+            if (l.length() == 0) {
+                dispatch();
+                return;
+            }
+            if (l.charAt(0) == ':')
+                return; // Comment
+            String field = l;
+            String value = "";
+            int colon = l.indexOf(':');
+            if (colon >= 0) {
+                field = l.substring(0, colon);
+                int v = colon + 1;
+                if (v < l.length() && l.charAt(v) == ' ')
+                    v++;
+                value = l.substring(v);
+            }
+            if (field.equals("data")) {
+                data.append(value).append('\n');
+            } else if (field.equals("event")) {
+                type = value;
+            } else if (field.equals("id")) {
+                if (value.indexOf('\0') < 0)
+                    id = value;
+            } else if (field.equals("retry")) {
+                if (value.length() > 0 && value.length() < 19 && isDigits(value))
+                    reconnectDelay = Long.parseLong(value);
+            }
+            // Other fields are ignored
+        }
+
+
+        private void dispatch() {
+            lastEventId = id;
+            if (data.length() == 0) {
+                type = "";
+                return;
+            }
+            data.setLength(data.length() - 1);
+            Event event = new Event(type.length() > 0 ? type : "message",
+                    data.toString(), id);
+            data.setLength(0);
+            type = "";
+            try {
+                listener.onEvent(EventSource.this, event);
+            } catch (RuntimeException ex) {
+                throw new Stop(ex);
+            }
+        }
+
+
+        private boolean isDigits(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) < '0' || s.charAt(i) > '9')
+                    return false;
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * An event received from the server.
+     */
+    public static class Event {
+        private final String type;
+        private final String data;
+        private final String id;
+
+
+        Event(String type, String data, String id) {
+            this.type = type;
+            this.data = data;
+            this.id = id;
+        }
+
+
+        /**
+         * @return Type of the event, "message" if the server did not set one
+         */
+        public String type() {
+            return type;
+        }
+
+
+        /**
+         * @return Data of the event, with the lines of many 'data' fields
+         *     separated by '\n'
+         */
+        public String data() {
+            return data;
+        }
+
+
+        /**
+         * @return Id of the last event, or an empty string
+         */
+        public String id() {
+            return id;
+        }
+
+
+        @Override
+        public String toString() {
+            return "type=" + type + " id=" + id + " data=" + data;
+        }
+    }
+}
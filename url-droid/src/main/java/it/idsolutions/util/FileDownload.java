@@ -0,0 +1,159 @@
+package it.idsolutions.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+
+/**
+ * Writes a response body to a file, for {@link HttpClient#download(File)}.
+ * <p>
+ * The body is written to a temporary file in the same directory, which is
+ * renamed to the target only when the whole body has been received and
+ * verified, so the target never contains a partial download.
+ * <p>
+ * The body is moved with {@link FileChannel#transferFrom}, which copies
+ * through a small cached direct buffer instead of a byte[] on the heap.
+ *
+ * @author ps
+ */
+final class FileDownload {
+    // Max bytes per transferFrom call
+    private static final long CHUNK = 1024 * 1024;
+
+    private final File target;
+    private final MessageDigest digest;
+    private final String expectedDigest;
+    private String actualDigest;
+
+
+    /**
+     * @param target File to write
+     * @param digest Digest of the content to compute, or null
+     * @param expectedDigest Expected digest as hex, or null to skip
+     *     verification
+     */
+    FileDownload(File target, MessageDigest digest, String expectedDigest) {
+        this.target = target;
+        this.digest = digest;
+        this.expectedDigest = expectedDigest;
+    }
+
+
+    /**
+     * Write the stream to the target file, and close it.
+     *
+     * @param in Response body
+     * @param length Expected length, or -1 if unknown
+     * @return Number of bytes written
+     * @throws IOException If the body cannot be read or written, is
+     *     shorter than expected, or does not match the expected digest
+     */
+    long transfer(InputStream in, long length) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        File part = File.createTempFile("." + target.getName() + ".", ".part", dir);
+        boolean done = false;
+        try {
+            long written;
+            FileOutputStream out = new FileOutputStream(part);
+            try {
+                FileChannel fc = out.getChannel();
+                ReadableByteChannel src = Channels.newChannel(in);
+                if (digest != null)
+                    src = new DigestChannel(src, digest);
+                written = 0;
+                long n;
+                // A blocking source returns 0 only at the end of the stream
+                while ((n = fc.transferFrom(src, written, CHUNK)) > 0)
+                    written += n;
+                fc.force(false);
+            } finally {
+                out.close();
+                in.close();
+            }
+            if (length >= 0 && written != length)
+                throw new IOException("Incomplete download: received " + written
+                        + " of " + length + " bytes");
+            if (digest != null) {
+                actualDigest = hex(digest.digest());
+                if (expectedDigest != null && !expectedDigest.equalsIgnoreCase(actualDigest))
+                    throw new IOException(digest.getAlgorithm() + " mismatch: expected "
+                            + expectedDigest + ", got " + actualDigest);
+            }
+            // Atomic on POSIX file systems; elsewhere the target must be
+            // removed first
+            if (!part.renameTo(target) && !(target.delete() && part.renameTo(target)))
+                throw new IOException("Cannot rename " + part + " to " + target);
+            done = true;
+            return written;
+        } finally {
+            if (!done)
+                part.delete();
+        }
+    }
+
+
+    /**
+     * Returns the digest of the content as hex, after the transfer.
+     */
+    String digest() {
+        return actualDigest;
+    }
+
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Updates a digest with the bytes read from a channel.
+     */
+    private static class DigestChannel implements ReadableByteChannel {
+        private final ReadableByteChannel src;
+        private final MessageDigest digest;
+
+
+        DigestChannel(ReadableByteChannel src, MessageDigest digest) {
+            this.src = src;
+            this.digest = digest;
+        }
+
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            int n = src.read(dst);
+            if (n > 0) {
+                ByteBuffer read = dst.duplicate();
+                read.flip();
+                read.position(start);
+                digest.update(read);
+            }
+            return n;
+        }
+
+
+        @Override
+        public boolean isOpen() {
+            return src.isOpen();
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            src.close();
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package it.idsolutions.util;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Runs many independent requests with bounded concurrency.
+ * <p>
+ * At most {@link #concurrency(int)} requests are in flight at once, and at
+ * most {@link #maxPerHost(int)} to the same host (scheme, host and port).
+ * Requests start in submission order, except that a request to a busy host
+ * is skipped in favour of the next one to a host with a free slot.
+ * <p>
+ * Requests are made with connection reuse enabled by default, so each slot
+ * keeps reusing its connection instead of paying the TCP and TLS handshakes
+ * for every request. The JVM keeps at most 5 idle connections per host
+ * unless {@link KeepAlive#maxIdlePerHost(int)} is raised to the per-host
+ * cap before the first request.
+ * <pre>
+ * HttpBatch.Report r = new HttpBatch()
+ *     .concurrency(50)
+ *     .maxPerHost(10)
+ *     .addAll(requests)
+ *     .execute();
+ * for (HttpBatch.Result result : r.results()) ...
+ * </pre>
+ * Each request is executed like {@link HttpClient#get()} (or the method
+ * it was added with): errors, including error HTTP statuses unless
+ * {@link HttpClient#noExceptions()} is set, are reported in the result and
+ * do not stop the batch.
+ *
+ * @author ps
+ */
+public class HttpBatch {
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    private final List<Task> tasks = new ArrayList<Task>();
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int maxPerHost = 0;
+    private boolean keepAlive = true;
+    private Executor executor;
+
+
+    /**
+     * Callback notified of each result as soon as its request completes.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that executed the request, possibly
+         * concurrently for different requests.
+         *
+         * @param result Result of a completed request
+         */
+        void onResult(Result result);
+    }
+
+
+    /**
+     * Set the maximum number of requests in flight at once.
+     *
+     * @param concurrency Max concurrent requests, default is
+     *     {@code DEFAULT_CONCURRENCY}
+     * @return Self for chaining
+     */
+    public HttpBatch concurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency must be positive");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+
+    /**
+     * Set the maximum number of requests in flight to the same host.
+     *
+     * @param max Max concurrent requests per host, or 0 for no limit other
+     *     than {@link #concurrency(int)} (the default)
+     * @return Self for chaining
+     */
+    public HttpBatch maxPerHost(int max) {
+        if (max < 0)
+            throw new IllegalArgumentException("max must not be negative");
+        this.maxPerHost = max;
+        return this;
+    }
+
+
+    /**
+     * Enable or disable connection reuse for all the requests of the batch.
+     * It is enabled by default.
+     *
+     * @param keepAlive Enable connection reuse
+     * @return Self for chaining
+     * @see HttpClient#keepAlive(boolean)
+     */
+    public HttpBatch keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+
+    /**
+     * Set the executor that runs the requests. It should be able to run
+     * {@link #concurrency(int)} tasks at once.
+     *
+     * @param executor Executor, or null to use {@link HttpExecutors#getDefault()}
+     * @return Self for chaining
+     */
+    public HttpBatch executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    /**
+     * Add a GET request.
+     *
+     * @param request Request
+     * @return Self for chaining
+     */
+    public HttpBatch add(HttpClient request) {
+        return add(request, "GET");
+    }
+
+
+    /**
+     * Add a request.
+     *
+     * @param request Request
+     * @param method HTTP method (GET, POST, PUT, DELETE)
+     * @return Self for chaining
+     */
+    public HttpBatch add(HttpClient request, String method) {
+        if (request == null)
+            throw new IllegalArgumentException("request is null");
+        tasks.add(new Task(tasks.size(), request, method));
+        return this;
+    }
+
+
+    /**
+     * Add many GET requests.
+     *
+     * @param requests Requests
+     * @return Self for chaining
+     */
+    public HttpBatch addAll(Collection<HttpClient> requests) {
+        for (HttpClient r : requests)
+            add(r);
+        return this;
+    }
+
+
+    /**
+     * Returns the number of requests added.
+     *
+     * @return Number of requests
+     */
+    public int size() {
+        return tasks.size();
+    }
+
+
+    /**
+     * Execute all the requests and wait for them to complete.
+     *
+     * @return Report, with the results in submission order
+     * @throws InterruptedException If the thread is interrupted while
+     *     waiting: requests not yet started are skipped, and those in
+     *     progress are aborted
+     */
+    public Report execute() throws InterruptedException {
+        return execute(null);
+    }
+
+
+    /**
+     * Execute all the requests and wait for them to complete, notifying a
+     * listener of each result as soon as it is available.
+     *
+     * @param listener Listener, or null
+     * @return Report, with the results in submission order
+     * @throws InterruptedException If the thread is interrupted while
+     *     waiting: requests not yet started are skipped, and those in
+     *     progress are aborted
+     */
+    public Report execute(Listener listener) throws InterruptedException {
+        Run run = new Run(new ArrayList<Task>(tasks), listener,
+                executor != null ? executor : HttpExecutors.getDefault());
+        return run.await();
+    }
+
+
+    /**
+     * Result of a request of the batch.
+     */
+    public static class Result {
+        private final int index;
+        private final HttpClient request;
+        private final Throwable error;
+        private final long elapsedNanos;
+
+
+        Result(int index, HttpClient request, Throwable error, long elapsedNanos) {
+            this.index = index;
+            this.request = request;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+
+        /**
+         * Returns the position of the request in the batch, from 0.
+         */
+        public int index() {
+            return index;
+        }
+
+
+        /**
+         * Returns the request, from which the response can be read if it
+         * succeeded.
+         */
+        public HttpClient request() {
+            return request;
+        }
+
+
+        /**
+         * Returns true if the request completed without errors.
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+
+        /**
+         * Returns the error that made the request fail, or null.
+         */
+        public Throwable error() {
+            return error;
+        }
+
+
+        /**
+         * Returns the time taken by the request, excluding the time spent
+         * waiting for a free slot.
+         */
+        public long elapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+
+        @Override
+        public String toString() {
+            return "#" + index + " " + (error == null ? request.code() : error)
+                    + " " + elapsedMillis() + " ms";
+        }
+    }
+
+
+    /**
+     * Results and aggregate timing of a batch.
+     */
+    public static class Report {
+        private final List<Result> results;
+        private final long elapsedNanos;
+        private final int succeeded;
+        private final long totalNanos;
+        private final long maxNanos;
+
+
+        Report(List<Result> results, long elapsedNanos) {
+            this.results = Collections.unmodifiableList(results);
+            this.elapsedNanos = elapsedNanos;
+            int ok = 0;
+            long total = 0, max = 0;
+            for (Result r : results) {
+                if (r.isSuccess())
+                    ok++;
+                total += r.elapsedNanos;
+                max = Math.max(max, r.elapsedNanos);
+            }
+            this.succeeded = ok;
+            this.totalNanos = total;
+            this.maxNanos = max;
+        }
+
+
+        /**
+         * Returns the results in submission order.
+         */
+        public List<Result> results() {
+            return results;
+        }
+
+
+        /**
+         * Returns the number of requests that completed without errors.
+         */
+        public int succeeded() {
+            return succeeded;
+        }
+
+
+        /**
+         * Returns the number of requests that failed.
+         */
+        public int failed() {
+            return results.size() - succeeded;
+        }
+
+
+        /**
+         * Returns the wall-clock time taken by the whole batch.
+         */
+        public long elapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+
+        /**
+         * Returns the average time taken by a request.
+         */
+        public double averageMillis() {
+            return results.isEmpty() ? 0 : totalNanos / 1e6 / results.size();
+        }
+
+
+        /**
+         * Returns the time taken by the slowest request.
+         */
+        public long maxMillis() {
+            return maxNanos / 1000000;
+        }
+
+
+        /**
+         * Returns the number of requests completed per second.
+         */
+        public double requestsPerSecond() {
+            return elapsedNanos > 0 ? results.size() * 1e9 / elapsedNanos : 0;
+        }
+
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d failed) in %d ms: %.1f req/s,"
+                    + " average %.1f ms, max %d ms", results.size(), failed(),
+                    elapsedMillis(), requestsPerSecond(), averageMillis(), maxMillis());
+        }
+    }
+
+
+    private static class Task {
+        final int index;
+        final HttpClient request;
+        final String method;
+        final String host;
+
+
+        Task(int index, HttpClient request, String method) {
+            this.index = index;
+            this.request = request;
+            this.method = method;
+            this.host = request.origin();
+        }
+    }
+
+
+    /**
+     * Requests waiting for a slot, and those in flight, for one host.
+     */
+    private static class Host {
+        final Deque<Task> pending = new ArrayDeque<Task>();
+        int running;
+    }
+
+
+    /**
+     * State of one execution of the batch.
+     */
+    private class Run {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition finished = lock.newCondition();
+        private final Map<String, Host> hosts = new HashMap<String, Host>();
+        private final Result[] results;
+        private final List<Task> running = new ArrayList<Task>();
+        private final Listener listener;
+        private final Executor executor;
+        private final int limit;
+        private final int hostLimit;
+        private final long start = System.nanoTime();
+        private int remaining;
+        private volatile boolean aborted;
+
+
+        Run(List<Task> tasks, Listener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+            this.limit = concurrency;
+            this.hostLimit = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+            this.results = new Result[tasks.size()];
+            this.remaining = tasks.size();
+            for (Task t : tasks) {
+                Host h = hosts.get(t.host);
+                if (h == null) {
+                    h = new Host();
+                    hosts.put(t.host, h);
+                }
+                if (keepAlive)
+                    t.request.keepAlive(true);
+                h.pending.add(t);
+            }
+        }
+
+
+        Report await() throws InterruptedException {
+            lock.lock();
+            try {
+                dispatch();
+                while (remaining > 0)
+                    finished.await();
+            } catch (InterruptedException ex) {
+                abort();
+                throw ex;
+            } finally {
+                lock.unlock();
+            }
+            List<Result> list = new ArrayList<Result>(results.length);
+            Collections.addAll(list, results);
+            return new Report(list, System.nanoTime() - start);
+        }
+
+
+        /**
+         * Start requests while there are free slots, the oldest first among
+         * the hosts below their cap. Called with the lock held.
+         */
+        private void dispatch() {
+            while (running.size() < limit && !aborted) {
+                Host next = null;
+                for (Host h : hosts.values()) {
+                    if (h.running < hostLimit && !h.pending.isEmpty()
+                            && (next == null
+                                || h.pending.peek().index < next.pending.peek().index))
+                        next = h;
+                }
+                if (next == null)
+                    return;
+                final Task t = next.pending.poll();
+                next.running++;
+                running.add(t);
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            execute(t);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    // i.e. RejectedExecutionException
+                    running.remove(t);
+                    next.running--;
+                    completed(new Result(t.index, t.request, ex, 0));
+                }
+            }
+        }
+
+
+        private void execute(Task t) {
+            long begin = System.nanoTime();
+            Throwable error = null;
+            try {
+                t.request.execute(t.method);
+            } catch (Throwable ex) {
+                error = ex;
+            }
+            Result r = new Result(t.index, t.request, error, System.nanoTime() - begin);
+            if (listener != null && !aborted) {
+                try {
+                    listener.onResult(r);
+                } catch (RuntimeException ex) {
+                    // Do not stop the batch
+                }
+            }
+            lock.lock();
+            try {
+                running.remove(t);
+                hosts.get(t.host).running--;
+                completed(r);
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        private void completed(Result r) {
+            results[r.index] = r;
+            if (--remaining == 0)
+                finished.signalAll();
+        }
+
+
+        /**
+         * Skip the pending requests and abort those in flight. Called with
+         * the lock held.
+         */
+        private void abort() {
+            aborted = true;
+            for (Host h : hosts.values()) {
+                remaining -= h.pending.size();
+                h.pending.clear();
+            }
+            for (Task t : running)
+                t.request.abort();
+        }
+    }
+}
@@ -1,15 +1,14 @@
 package it.idsolutions.util;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
@@ -17,29 +16,30 @@ import java.net.Proxy;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 
 /**
@@ -50,7 +50,9 @@ import javax.net.ssl.X509TrustManager;
  * compression, Basic auth, HTTPS, HTTP and SOCKS proxies.
  * <p>
  * Each request should use its own instance of this class, unless all settings
- * are exactly the same.
+ * are exactly the same. Settings shared by many requests can be collected in
+ * a {@link HttpClientTemplate}, which is thread-safe and creates instances
+ * cheaply.
  *
  * @author ps
  */
@@ -86,19 +88,38 @@ public class HttpClient implements HttpClientSpec {
             "application/x-www-form-urlencoded; charset=UTF-8";
     public static final int DEFAULT_TIMEOUT_MS = 20000;
     public static final int DEFAULT_READ_TIMEOUT_MS = 60*60*1000; // 1h default, or getInputStream could block forever
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int STREAMING_THRESHOLD = 64 * 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    /**
+     * @deprecated Boundary of older versions: each multipart request now
+     *     has a random boundary
+     */
+    @Deprecated
     public static final String MULTIPART_BOUNDARY =
             "----------------------------443d18e49926jdiGHidf9E830fDid834675j5yhdf8Cs";
+    // Do not trust a huge Content-Length before the content arrives
+    private static final int MAX_PRESIZE = 64 * 1024 * 1024;
+    // Largest array most VMs can allocate
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
     private URL url;
     private Map<String, String> queryParams;
     private Map<String, String> bodyParams;
     private Map<String, String> pathParams;
-    private Map<String, MultiPartParam> multiPartParams;
+    private Map<String, MultiPart> multiPartParams;
     private Map<String, String> headers;
     private String entity;
     private byte[] entityBytes;
+    private Object entityObject;
+    private StreamDataAdapter entityAdapter;
+    private File entityFile;
+    private FileChannel entityChannel;
+    private BodyWriter entityWriter;
+    private long entityPosition;
+    private long entityLength;
     private String method;
-    private HttpURLConnection conn;
+    private volatile HttpURLConnection conn;
     private Integer timeoutMillis = DEFAULT_TIMEOUT_MS;
     private Integer readTimeoutMillis = DEFAULT_READ_TIMEOUT_MS;
     private int responseCode;
@@ -106,9 +127,24 @@ public class HttpClient implements HttpClientSpec {
     private String responseReasonPhrase;
     private Map<String, List<String>> responseHeaders;
     private String rawContent;
+    private byte[] rawBytes;
+    private boolean returnBytes = false;
+    private long responseMemoryLimit = -1;
+    private long maxResponseSize = -1;
+    private ResponseBuffer responseBuffer;
+    private String responseCharset;
+    private File downloadFile;
+    private String checksumAlgorithm;
+    private String expectedChecksum;
+    private String checksum;
     private RawStreamCallback rawStreamCallback;
     private boolean compressRequest = false;
+    private boolean compressResponse = true;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private long compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
     private Object deserializedResponseType;
+    private boolean returnRecords = false;
+    private RecordIterator<?> records;
     private boolean noExceptionOnServerError = false;
     private String user;
     private String password;
@@ -121,6 +157,12 @@ public class HttpClient implements HttpClientSpec {
     private HostnameVerifier hostnameVerifier;
     private DataAdapter deserializeAdapter;
     private String userAgent;
+    private boolean keepAlive = false;
+    private Boolean streaming;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private HttpClientTemplate template;
+    private HttpEngine engine;
+    private Executor executor;
 
 
     /**
@@ -144,6 +186,35 @@ public class HttpClient implements HttpClientSpec {
     }
 
 
+    /**
+     * Returns a new instance bound to the specified URL, with the settings
+     * of a template.
+     *
+     * @param template Template
+     * @param url The request URL, alredy encoded
+     * @see HttpClientTemplate#request(String)
+     */
+    HttpClient(HttpClientTemplate template, String url) {
+        this(url);
+        this.template = template;
+        this.timeoutMillis = template.timeoutMillis();
+        this.readTimeoutMillis = template.readTimeoutMillis();
+        this.sslContext = template.sslContext();
+        this.hostnameVerifier = template.hostnameVerifier();
+        this.keepAlive = template.keepAlive();
+        this.responseMemoryLimit = template.responseMemoryLimit();
+        this.maxResponseSize = template.maxResponseSize();
+        this.streaming = template.streaming();
+        this.chunkSize = template.chunkSize();
+        this.compressResponse = template.compressResponse();
+        this.compressionLevel = template.compressionLevel();
+        this.compressionThreshold = template.compressionThreshold();
+        this.noExceptionOnServerError = template.noExceptionOnServerError();
+        this.engine = template.engine();
+        this.executor = template.executor();
+    }
+
+
     /**
      * Execute a POST HTTP request.
      *
@@ -196,7 +267,188 @@ public class HttpClient implements HttpClientSpec {
     }
 
 
-    private HttpClient execute(String method) {
+    /**
+     * Execute a GET HTTP request and write the response content to a file.
+     * <p>
+     * The content is written to a temporary file in the same directory,
+     * which replaces the target only when the whole content has been
+     * received (and verified, see #verifyChecksum(String, String)): the
+     * target never contains a partial download. The content is not kept in
+     * memory; after the request #content() returns the file.
+     * <p>
+     * The file is not written if the response status is an error.
+     *
+     * @param file Target file
+     * @return Self for chaining
+     * @throws RuntimeException If the content cannot be written, is
+     *     incomplete or does not match the expected checksum
+     */
+    @Override
+    public HttpClient download(File file) {
+        downloadFile = file;
+        try {
+            execute("GET");
+        } finally {
+            downloadFile = null;
+        }
+        return this;
+    }
+
+
+    /**
+     * Compute the checksum of the content written by #download(File),
+     * and optionally verify it.
+     *
+     * @param algorithm Digest algorithm, i.e. "SHA-256" or "MD5"
+     * @param expected Expected checksum in hex, or null to compute it only
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient verifyChecksum(String algorithm, String expected) {
+        this.checksumAlgorithm = algorithm;
+        this.expectedChecksum = expected;
+        return this;
+    }
+
+
+    /**
+     * Returns the checksum of the content written by #download(File), if
+     * one was requested with #verifyChecksum(String, String).
+     *
+     * @return Checksum in hex, or null
+     */
+    @Override
+    public String checksum() {
+        return checksum;
+    }
+
+
+    /**
+     * Execute an HTTP request asynchronously, on the executor of this
+     * request.
+     * <p>
+     * The returned future completes with this instance, so the response
+     * can be read as for a synchronous request; if the request fails, the
+     * cause of the ExecutionException is the exception that the synchronous
+     * method would throw. Canceling the future closes the connection.
+     * <p>
+     * This instance must not be used until the request is done.
+     *
+     * @param method HTTP method (GET, POST, PUT, DELETE)
+     * @return Future of the executed request
+     */
+    @Override
+    public Future<HttpClient> executeAsync(String method) {
+        return executeAsync(method, null);
+    }
+
+
+    /**
+     * Execute an HTTP request asynchronously, on the executor of this
+     * request, and notify a callback when it completes.
+     *
+     * @param method HTTP method (GET, POST, PUT, DELETE)
+     * @param callback Callback notified on completion or failure
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    @Override
+    public Future<HttpClient> executeAsync(String method, ResponseCallback callback) {
+        AsyncRequest request = new AsyncRequest(this, method, callback);
+        (executor != null ? executor : HttpExecutors.getDefault()).execute(request);
+        return request;
+    }
+
+
+    /**
+     * Execute a GET HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    @Override
+    public Future<HttpClient> getAsync() {
+        return executeAsync("GET");
+    }
+
+
+    /**
+     * Execute a POST HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    @Override
+    public Future<HttpClient> postAsync() {
+        return executeAsync("POST");
+    }
+
+
+    /**
+     * Execute a PUT HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    @Override
+    public Future<HttpClient> putAsync() {
+        return executeAsync("PUT");
+    }
+
+
+    /**
+     * Execute a DELETE HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    @Override
+    public Future<HttpClient> deleteAsync() {
+        return executeAsync("DELETE");
+    }
+
+
+    /**
+     * Close the connection of a request in progress, from another thread.
+     */
+    void abort() {
+        HttpURLConnection c = conn;
+        if (c != null)
+            c.disconnect();
+    }
+
+
+    /**
+     * Returns the Content-Type of the response being read, for a
+     * #rawStreamCallback(), which is called before the response headers
+     * are stored.
+     */
+    String contentTypeInProgress() {
+        HttpURLConnection c = conn;
+        return c != null ? c.getContentType() : null;
+    }
+
+
+    /**
+     * Returns a header of the response being read, for a
+     * #rawStreamCallback().
+     */
+    String headerInProgress(String name) {
+        HttpURLConnection c = conn;
+        return c != null ? c.getHeaderField(name) : null;
+    }
+
+
+    /**
+     * Returns the scheme, host and port of the request URL.
+     */
+    String origin() {
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+
+
+    HttpClient execute(String method) {
+        discardContent();
         responseCode = 0;
         responseContent = null;
         responseReasonPhrase = null;
@@ -204,7 +456,9 @@ public class HttpClient implements HttpClientSpec {
 
         String actualUrl = url();
 
-        if (entity == null) {
+        if (entity == null && entityBytes == null && entityObject == null
+                && entityFile == null && entityChannel == null
+                && entityWriter == null) {
             if (bodyParams != null) {
                 entity = "";
                 for (Map.Entry<String, String> e : bodyParams.entrySet())
@@ -215,15 +469,26 @@ public class HttpClient implements HttpClientSpec {
             }
         }
 
+        // Requests created from a template use the settings already resolved
+        // by the template, unless they are overridden by the request
+        boolean templateAuth = template != null && user == null && password == null;
+        boolean templateProxy = template != null && proxy == null && !noProxy
+                && proxyUser == null && proxyPassword == null && nonProxyHosts == null;
+        Proxy requestProxy = null;
+        String proxyAuthorization = null;
+
         // HTTP Authentication
-        if (user == null)
-            user = System.getProperty("http.user");
-        if (password == null)
-            password = System.getProperty("http.password");
-        if (user != null && password != null) {
-            String base64Encoded = Base64.encodeString(
-                    user + ":" + password).trim();
-            setHeader("Authorization", "Basic " + base64Encoded);
+        // (with a template, the Authorization header is in template headers)
+        if (!templateAuth) {
+            if (user == null)
+                user = System.getProperty("http.user");
+            if (password == null)
+                password = System.getProperty("http.password");
+            if (user != null && password != null) {
+                String base64Encoded = Base64.encodeString(
+                        user + ":" + password).trim();
+                setHeader("Authorization", "Basic " + base64Encoded);
+            }
         }
         // Or use global auth for this url
         /*
@@ -236,7 +501,11 @@ public class HttpClient implements HttpClientSpec {
         // By default, HttpURLConnection class will connect directly to the
         // origin server (RFC2616).
         // Both HTTP and SOCKS proxies are supported, using HTTP by default
-        if (!noProxy) {
+        if (templateProxy) {
+            requestProxy = template.proxyFor(url.getHost());
+            if (requestProxy != null && requestProxy != Proxy.NO_PROXY)
+                proxyAuthorization = template.proxyAuthorization();
+        } else if (!noProxy) {
             // First check if proxy is allowed for this url
             boolean canUseProxy = isProxyAllowed();
             if (canUseProxy) {
@@ -269,34 +538,17 @@ public class HttpClient implements HttpClientSpec {
             // explicitly set DIRECT connection
             proxy = Proxy.NO_PROXY;
         }
+        if (!templateProxy)
+            requestProxy = proxy;
 
+        // Only a connection whose response has been read can be reused
+        boolean completed = false;
+        CloseTrackingInputStream response = null;
         try {
-            // Get the HttpURLConnection object,
-            // either the OkHttp implementation
-            // (http://square.github.io/okhttp/)
-            // if available, or the system default implementation
-            //TODO OkHttp does not support this anymore
-            Class<?> c;
-            try {
-                c = Class.forName("com.squareup.okhttp.OkHttpClient");
-            } catch (Exception ex) {
-                c = null;
-            }
-            if (c != null) {
-                Object okHttp = c.newInstance();
-                if (proxy != null)
-                    c.getMethod("setProxy", Proxy.class).invoke(okHttp, proxy);
-                conn = (HttpURLConnection) c.getMethod("open", URL.class)
-                        .invoke(okHttp, new URL(actualUrl));
-            }
-            else {
-                // this does no network IO
-                if (proxy == null) {
-                    conn = (HttpURLConnection) new URL(actualUrl).openConnection();
-                } else {
-                    conn = (HttpURLConnection) new URL(actualUrl).openConnection(proxy);
-                }
-            }
+            // Get the HttpURLConnection object from the engine
+            // (the default one, unless set for this request)
+            HttpEngine requestEngine = engine != null ? engine : HttpEngines.getDefault();
+            conn = requestEngine.open(new URL(actualUrl), requestProxy);
 
             conn.setConnectTimeout(timeoutMillis);
             if (readTimeoutMillis != null) {
@@ -306,52 +558,14 @@ public class HttpClient implements HttpClientSpec {
             this.method = method;
 
             // HTTPS
+            // Socket factories are shared, so TLS sessions can be resumed
             if (conn instanceof HttpsURLConnection) {
-                if (sslContext == null) {
-                    SSLContext sc = SSLContext.getInstance("TLS");
-                    // Trust anyone
-                    TrustManager tm = new X509TrustManager() {
-                        @Override
-                        public void checkClientTrusted(
-                                X509Certificate[] chain, String authType)
-                                throws CertificateException {
-                        }
-
-
-                        @Override
-                        public void checkServerTrusted(
-                                X509Certificate[] chain, String authType)
-                                throws CertificateException {
-                        }
-
-
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-                    };
-                    sc.init(null, new TrustManager[] { tm }, null);
-                    ((HttpsURLConnection) conn).setSSLSocketFactory(
-                            sc.getSocketFactory());
-                }
-                else {
-                    ((HttpsURLConnection) conn).setSSLSocketFactory(
-                            sslContext.getSocketFactory());
-                }
-
-                if (hostnameVerifier == null) {
-                    ((HttpsURLConnection) conn).setHostnameVerifier(
-                            new HostnameVerifier() {
-                                @Override
-                                public boolean verify(String arg0, SSLSession arg1) {
-                                    // Allow all
-                                    return true;
-                                }
-                            });
-                }
-                else {
-                    ((HttpsURLConnection) conn).setHostnameVerifier(hostnameVerifier);
-                }
+                ((HttpsURLConnection) conn).setSSLSocketFactory(sslContext == null ?
+                        SslContexts.trustAllSocketFactory()
+                        : SslContexts.socketFactory(sslContext));
+                ((HttpsURLConnection) conn).setHostnameVerifier(hostnameVerifier == null ?
+                        SslContexts.TRUST_ALL_HOSTNAMES
+                        : hostnameVerifier);
             }
 
             // Enable cache via HttpResponseCache (it's a no-op for HttpUrlConnection?)
@@ -359,18 +573,32 @@ public class HttpClient implements HttpClientSpec {
 
             if (userAgent != null)
                 setHeader("User-Agent", userAgent);
-            else
+            else if (template == null)
                 setHeader("User-Agent", "UrlDroid/" + conn.getClass().getName() + "/" + VERSION);
+            else if (template.userAgent() == null)
+                conn.setRequestProperty("User-Agent", "UrlDroid/" + conn.getClass().getName() + "/" + VERSION);
+
+            // Before the other headers, which can override it
+            if (compressResponse)
+                conn.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPT);
 
+            MultipartBody multipart = null;
             if (multiPartParams != null && !multiPartParams.isEmpty() &&
                     "POST".equalsIgnoreCase(method)) {
                 // override content-type if we have multipart data
-                setHeader("Content-Type", "multipart/form-data;boundary=" + MULTIPART_BOUNDARY);
+                multipart = new MultipartBody(multiPartParams.values());
+                setHeader("Content-Type", multipart.contentType());
             }
 
+            if (template != null) {
+                for (Map.Entry<String, String> e : template.headers().entrySet())
+                    conn.setRequestProperty(e.getKey(), e.getValue());
+                if (proxyAuthorization != null)
+                    conn.setRequestProperty("Proxy-Authorization", proxyAuthorization);
+            }
             if (headers != null) {
                 for (Map.Entry<String, String> e : headers.entrySet())
-                    conn.addRequestProperty(e.getKey(), e.getValue());
+                    conn.setRequestProperty(e.getKey(), e.getValue());
             }
 
             // If required by the HTTP method, send the body entity.
@@ -380,73 +608,70 @@ public class HttpClient implements HttpClientSpec {
             // requests.
             if (entityBytes != null || (entity != null && !entity.equals(""))) {
                 byte[] payload = entityBytes;
-                if (payload == null)
-                    payload = entity.getBytes("UTF-8");
-                // still no IO
-                conn.setDoOutput(true);
-                // Set content length? Can cause problems in some 
-                // configurations of java6 and web servers
-                // conn.setFixedLengthStreamingMode(payload.length);
-                // this opens a connection, then sends POST & headers, then
-                // writes body entity
-                OutputStream out = conn.getOutputStream();
-                if (compressRequest) {
-                    out = new GZIPOutputStream(conn.getOutputStream());
+                int length = payload != null ? payload.length : -1;
+                byte[] pooled = null;
+                if (payload == null) {
+                    // Encode in a pooled buffer if it fits
+                    pooled = BufferPool.acquire();
+                    length = TextDecoder.encodeUtf8(entity, pooled);
+                    if (length >= 0) {
+                        payload = pooled;
+                    } else {
+                        payload = entity.getBytes("UTF-8");
+                        length = payload.length;
+                    }
                 }
                 try {
-                    out.write(payload);
+                    // this opens a connection, then sends POST & headers, then
+                    // writes body entity
+                    OutputStream out = openBody(length);
+                    boolean written = false;
+                    try {
+                        out.write(payload, 0, length);
+                        written = true;
+                    } finally {
+                        closeBody(out, written);
+                    }
                 } finally {
-                    out.close();
+                    BufferPool.release(pooled);
                 }
             }
-            else if (multiPartParams != null && !multiPartParams.isEmpty() &&
-                    "POST".equalsIgnoreCase(method)) {
-                // Build a multipart/form-data request
-                conn.setDoOutput(true);
-                DataOutputStream os;
-                if (compressRequest) {
-                    os = new DataOutputStream(new GZIPOutputStream(conn.getOutputStream()));
-                } else {
-                    os = new DataOutputStream(conn.getOutputStream());
+            else if (entityObject != null) {
+                // Serialize straight to the connection
+                OutputStream out = openBody(-1);
+                boolean written = false;
+                try {
+                    entityAdapter.serialize(entityObject, out);
+                    written = true;
+                } finally {
+                    closeBody(out, written);
                 }
-                final int maxBufferSize = 1024;
-                for (MultiPartParam p : multiPartParams.values()) {
-                    String multiPartHeaders =
-                            "Content-Disposition:form-data;" +
-                            "name=\"" + p.getName() + "\"" +
-                            (p.getFilename() != null ? 
-                                    ";filename=\"" + p.getFilename() + "\"" 
-                                    : "") +
-                            "\r\n" +
-                            "Content-Type: " +
-                            (p.getType() != null ?
-                                    p.getType()
-                                    : "application/octet-stream") +
-                            "\r\n";
-                    os.writeBytes("--" + MULTIPART_BOUNDARY + "\r\n");
-                    os.writeBytes(multiPartHeaders + "\r\n");
-                    if (p.getData() == null && p.getValue() != null) {
-                        // data is a string
-                        os.writeBytes(p.getValue());
-                    }
-                    else {
-                        // data is an inputstream, buffer write
-                        int bytesAvailable = p.getData().available();
-                        int bufferSize = Math.min(bytesAvailable, maxBufferSize);
-                        byte[] buffer = new byte[bufferSize];
-                        int read = p.getData().read(buffer, 0, bufferSize);
-                        while (read > 0) {
-                            os.write(buffer, 0, bufferSize);
-                            bytesAvailable = p.getData().available();
-                            bufferSize = Math
-                                    .min(bytesAvailable, maxBufferSize);
-                            read = p.getData().read(buffer, 0, bufferSize);
-                        }
-                    }
-                    os.writeBytes("\r\n");
+            }
+            else if (entityFile != null || entityChannel != null) {
+                writeFileEntity();
+            }
+            else if (entityWriter != null) {
+                // Small writes are collected before they reach the
+                // connection (or the compressor)
+                OutputStream out = new PooledBufferedOutputStream(openBody(-1));
+                boolean written = false;
+                try {
+                    entityWriter.writeTo(out);
+                    written = true;
+                } finally {
+                    closeBody(out, written);
+                }
+            }
+            else if (multipart != null) {
+                // Build a multipart/form-data request
+                OutputStream out = openBody(multipart.length());
+                boolean written = false;
+                try {
+                    multipart.writeTo(out);
+                    written = true;
+                } finally {
+                    closeBody(out, written);
                 }
-                os.writeBytes("--" + MULTIPART_BOUNDARY + "--\r\n");
-                os.close();
             }
             
             if (Logger.getLogger("it.idsolutions.util.HttpClient").isLoggable(Level.FINE)) {
@@ -457,22 +682,51 @@ public class HttpClient implements HttpClientSpec {
             // In case of POST/PUT the connection is already open, otherwise 
             // it will be opened here
             this.rawContent = null;
+            this.rawBytes = null;
+            this.checksum = null;
+            this.records = null;
             boolean readFromErr = false;
             try {
-                InputStream in = conn.getInputStream();
-                String enc = conn.getContentEncoding();
-                if ("gzip".equals(enc)) {
-                    // manually decode gzip because some implementations do not handle it
-                    in = new GZIPInputStream(in);
-                    enc = "UTF-8";
+                InputStream in = response = new CloseTrackingInputStream(conn.getInputStream());
+                // Content-Encoding is a compression, the charset is a param of
+                // the Content-Type
+                String charset = TextDecoder.charset(conn.getContentType());
+                long length = contentLength(conn);
+                if (ContentEncoding.isSupported(conn.getContentEncoding())) {
+                    // manually decode because some implementations do not handle it
+                    in = ContentEncoding.decode(in, conn.getContentEncoding());
+                    length = -1;
+                }
+                if (maxResponseSize >= 0 && this.rawStreamCallback == null) {
+                    // After decompression: also bounds gzip bombs
+                    in = new LimitedInputStream(in, maxResponseSize);
                 }
                 if (this.rawStreamCallback != null) {
                     // Do not consume input stream, let the callback handle it.
                     // Cannot store the input stream for later because the connection will be closed
                     this.rawStreamCallback.onRawStream(conn.getResponseCode(), in);
+                } else if (returnRecords) {
+                    // Read by the caller, which then releases the connection
+                    this.records = new RecordIterator<Object>(conn, in,
+                            TextDecoder.forName(charset), deserializedResponseType,
+                            deserializeAdapter, keepAlive);
+                    this.responseContent = records;
+                } else if (downloadFile != null) {
+                    downloadTo(downloadFile, in, length);
+                } else if (responseMemoryLimit >= 0 && !(deserializedResponseType != null
+                        && deserializeAdapter instanceof StreamDataAdapter)) {
+                    bufferEntity(in, length, charset);
+                } else if (returnBytes) {
+                    this.rawBytes = getEntityAsBytes(in, length);
+                } else if (deserializedResponseType != null
+                        && deserializeAdapter instanceof StreamDataAdapter) {
+                    // Parse while reading, without a String copy
+                    this.responseContent = deserializeStream(in, charset);
                 } else {
-                    this.rawContent = getEntityAsString(in, enc);
+                    this.rawContent = getEntityAsString(in, length, charset);
                 }
+            } catch (ResponseTooLargeException ex) {
+                throw ex;
             } catch (FileNotFoundException ignore) {
                 // That's OK: there was no response content
                 // But this is thrown even for 404 responses with a body that we want to read
@@ -489,46 +743,55 @@ public class HttpClient implements HttpClientSpec {
                 // If the HTTP status was an error, the response content is in the error stream
                 try {
                     InputStream es = conn.getErrorStream();
+                    if (es != null)
+                        es = response = new CloseTrackingInputStream(es);
+                    String charset = TextDecoder.charset(conn.getContentType());
+                    long length = contentLength(conn);
+                    if (es != null && ContentEncoding.isSupported(conn.getContentEncoding())) {
+                        es = ContentEncoding.decode(es, conn.getContentEncoding());
+                        length = -1;
+                    }
+                    if (es != null && maxResponseSize >= 0 && this.rawStreamCallback == null)
+                        es = new LimitedInputStream(es, maxResponseSize);
                     if (this.rawStreamCallback != null)
                         this.rawStreamCallback.onRawErrorStream(this.responseCode, es);
+                    else if (es != null && responseMemoryLimit >= 0)
+                        bufferEntity(es, length, charset);
+                    else if (returnBytes)
+                        this.rawBytes = getEntityAsBytes(es, length);
                     else
-                        this.rawContent = getEntityAsString(es, conn.getContentEncoding());
+                        this.rawContent = getEntityAsString(es, length, charset);
+                } catch (ResponseTooLargeException ex) {
+                    // The limit applies to error responses too
+                    throw ex;
                 } catch (Exception ignore2) {
                     // No response content
                 }
+                completed = true;
                 if (!noExceptionOnServerError && (responseCode / 100 != 2)) {
                     throw new RuntimeException(responseCode + " " +
                             responseReasonPhrase);
                 }
             }
             
-            if (this.rawContent != null) {
-                if (deserializedResponseType != null &&
-                        deserializeAdapter != null) {
-                    // Deserialize according to the expected type
-                    try {
-                        if (deserializedResponseType instanceof Class<?>)
-                            this.responseContent = deserializeAdapter
-                                    .deserialize(this.rawContent, (Class<?>)deserializedResponseType);
-                        else
-                            this.responseContent = deserializeAdapter
-                                    .deserializeRef(this.rawContent, deserializedResponseType);
-                    } catch (Exception ex) {
-                        throw new RuntimeException(ex);
-                    }
-                } else {
-                    // Do not deserialize, get response content as string
-                    this.responseContent = this.rawContent;
-                }
-            }
+            setResponseContent();
             this.responseCode = conn.getResponseCode();
             this.responseReasonPhrase = conn.getResponseMessage();
             this.responseHeaders = conn.getHeaderFields();
+            completed = true;
         } catch (Exception ex) {
+            if (records != null)
+                records.close();
+            // Nobody reads the content of a failed request
+            discardContent();
             throw new RuntimeException(ex);
         } finally {
-            if (conn != null)
-                conn.disconnect();
+            if (conn != null && records == null) {
+                if (keepAlive && completed)
+                    KeepAlive.release(conn, response != null && response.closed);
+                else
+                    conn.disconnect();
+            }
         }
         
         if (Logger.getLogger("it.idsolutions.util.HttpClient").isLoggable(Level.FINE)) {
@@ -655,24 +918,12 @@ public class HttpClient implements HttpClientSpec {
      * @param name
      *            Content-disposition name
      * @param value
-     *            Text value that will be written to the request, without any
-     *            encoding
+     *            Text value that will be written to the request as UTF-8
      * @return Self for chaining
      */
     @Override
     public HttpClient addMultiPartParam(String name, String value) {
-        if (multiPartParams == null)
-            multiPartParams = new HashMap<String, MultiPartParam>();
-        try {
-            MultiPartParam p = new MultiPartParam();
-            p.setName(name);
-            p.setValue(value);
-            multiPartParams.put(name, p);
-        } catch (Exception ex) {
-            // We use utf-8 hardcoded, should never throw
-            throw new RuntimeException(ex);
-        }
-        return this;
+        return addMultiPart(MultiPart.text(name, value));
     }
 
 
@@ -692,25 +943,33 @@ public class HttpClient implements HttpClientSpec {
      *            Content-type of the part. If null, 'application/octet-stream'
      *            will be used
      * @param data
-     *            Binary data that will be written to the request
+     *            Binary data that will be written to the request, until the
+     *            end of the stream
      * @return Self for chaining
      */
     @Override
     public HttpClient addMultiPartParam(String name, String filename,
             String type, InputStream data) {
+        return addMultiPart(MultiPart.stream(name, filename, type, data, -1));
+    }
+
+
+    /**
+     * Add a part to a multipart/form-data request.
+     * <p>
+     * Parts are sent in the order they are added; a part replaces any
+     * previous part with the same name. If the length of every part is
+     * known, the request is sent with a Content-Length.
+     *
+     * @param part
+     *            The part
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient addMultiPart(MultiPart part) {
         if (multiPartParams == null)
-            multiPartParams = new HashMap<String, MultiPartParam>();
-        try {
-            MultiPartParam p = new MultiPartParam();
-            p.setName(name);
-            p.setFilename(filename);
-            p.setType(type);
-            p.setData(data);
-            multiPartParams.put(name, p);
-        } catch (Exception ex) {
-            // We use utf-8 hardcoded, should never throw
-            throw new RuntimeException(ex);
-        }
+            multiPartParams = new LinkedHashMap<String, MultiPart>();
+        multiPartParams.put(part.name(), part);
         return this;
     }
 
@@ -786,6 +1045,7 @@ public class HttpClient implements HttpClientSpec {
      */
     @Override
     public HttpClient entity(String data) {
+        clearEntity();
         entity = data;
         return this;
     }
@@ -803,13 +1063,97 @@ public class HttpClient implements HttpClientSpec {
      */
     @Override
     public HttpClient entity(byte[] data) {
+        clearEntity();
         entityBytes = data;
         return this;
     }
 
 
+    /**
+     * Set the request entity from a file.
+     * <p>
+     * The file is not loaded in memory: it is read when the request is
+     * executed and sent with a fixed Content-Length, so the connection
+     * does not buffer it either.
+     *
+     * @param file
+     *            File to send
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient entity(File file) {
+        clearEntity();
+        entityFile = file;
+        return this;
+    }
+
+
+    /**
+     * Set the request entity from a region of a file.
+     * <p>
+     * The region is read when the request is executed and sent with a
+     * fixed Content-Length. The channel is not closed, and its position is
+     * not changed.
+     *
+     * @param channel
+     *            Channel to read
+     * @param position
+     *            Position of the first byte to send
+     * @param length
+     *            Number of bytes to send
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient entity(FileChannel channel, long position, long length) {
+        if (position < 0 || length < 0)
+            throw new IllegalArgumentException("position and length must not be negative");
+        clearEntity();
+        entityChannel = channel;
+        entityPosition = position;
+        entityLength = length;
+        return this;
+    }
+
+
+    private void clearEntity() {
+        entity = null;
+        entityBytes = null;
+        entityObject = null;
+        entityAdapter = null;
+        entityFile = null;
+        entityChannel = null;
+        entityWriter = null;
+    }
+
+
+    /**
+     * Set a callback that writes the request entity when the request is
+     * executed, straight to the connection.
+     * <p>
+     * The body is generated while it is sent, in chunks, so large bodies
+     * (e.g. an export read from a database cursor) never need to be held
+     * in memory, also when the request is compressed. The stream given to
+     * the writer is buffered, and closed when the writer returns.
+     * <p>
+     * The writer is called once for each execution of the request.
+     *
+     * @param writer
+     *            Callback writing the body
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient entity(BodyWriter writer) {
+        clearEntity();
+        entityWriter = writer;
+        return this;
+    }
+
+
     /**
      * Set the request entity as serialized JSON.
+     * <p>
+     * If the adapter is a {@link StreamDataAdapter}, the object is
+     * serialized when the request is executed, straight to the connection.
      *
      * @param entity
      *            Entity object, which will be serialized as JSON
@@ -821,6 +1165,14 @@ public class HttpClient implements HttpClientSpec {
      */
     @Override
     public HttpClient entity(Object entity, DataAdapter adapter) {
+        if (adapter instanceof StreamDataAdapter) {
+            setHeader("Content-Type", APPLICATION_JSON_UTF8);
+            clearEntity();
+            this.entityObject = entity;
+            this.entityAdapter = (StreamDataAdapter) adapter;
+            return this;
+        }
+
         String data;
         try {
             data = adapter.serialize(entity);
@@ -914,82 +1266,383 @@ public class HttpClient implements HttpClientSpec {
     
     
     /**
-     * Set a callback that will be invoked on the raw response stream.
+     * Read the response content as newline-delimited records
+     * ('application/x-ndjson', JSON Lines), each deserialized as the
+     * specified type.
+     * <p>
+     * The content is not read by the request: the connection stays open,
+     * and the records are read and deserialized one at a time from
+     * #records(), as the caller iterates them. The iterator must be read
+     * until the end or closed, to release the connection. An error status
+     * is read as usual, and has no records.
      *
-     * @param callback Callback
+     * @param type
+     *            Type of each record, used as an hint for the deserializer.
+     * @param adapter
+     *            Implementation of DataAdapter used for deserialization
      * @return Self for chaining
+     * @see RecordIterator
      */
     @Override
-    public HttpClient rawStreamCallback(RawStreamCallback callback) {
-        this.rawStreamCallback = callback;
+    public HttpClient returnRecords(Class<?> type, DataAdapter adapter) {
+        deserializedResponseType = type;
+        this.deserializeAdapter = adapter;
+        this.returnRecords = true;
         return this;
     }
-    
-    
+
+
     /**
-     * Enable or disable request compression.
-     * When enabled, header 'Content-Encoding: gzip' will be added and the
-     * request body will be gzipped.
-     * 
-     * @param compress
-     *            Enable request compression
+     * Read the response content as newline-delimited records, each
+     * deserialized as the specified type.
+     *
+     * @param type
+     *            Type of each record, used as an hint for the deserializer.
+     *            Use this method to specify a type in case of type erasure.
+     * @param adapter
+     *            Implementation of DataAdapter used for deserialization
      * @return Self for chaining
+     * @see #returnRecords(Class, DataAdapter)
      */
     @Override
-    public HttpClient compressRequest(boolean compress) {
-        this.compressRequest = compress;
-        if (compress) {
-            setHeader("Content-Encoding", "gzip");
-        } else {
-            if (headers != null && headers.containsKey("Content-Encoding"))
-                headers.remove("Content-Encoding");
-        }
+    public HttpClient returnRecords(Object type, DataAdapter adapter) {
+        deserializedResponseType = type;
+        this.deserializeAdapter = adapter;
+        this.returnRecords = true;
         return this;
     }
 
 
     /**
-     * Specify that no exceptions be raised in case the response HTTP 
-     * status is an error (i.e. it's not 2XX).
+     * Read the response content as bytes, without decoding it as text.
+     * <p>
+     * Use this for binary responses (images, protobuf, archives...): the
+     * content is read into a byte array, sized from the Content-Length
+     * header when it is known, and is then available from #rawBytes() and
+     * #content(). #rawContent() returns null.
      *
      * @return Self for chaining
      */
     @Override
-    public HttpClient noExceptions() {
-        this.noExceptionOnServerError = true;
+    public HttpClient returnBytes() {
+        this.returnBytes = true;
         return this;
     }
 
 
     /**
-     * Set the request timeout.
+     * Set the max size of a response content kept in memory.
      * <p>
-     * If a timeout is not explicitly set, {@code DEFAULT_TIMEOUT_MS} will be
-     * used.
+     * A larger content is written to a temporary file while it is read,
+     * and is read back only when #content(), #rawContent() or #rawBytes()
+     * is called; the file is then deleted. Call #discardContent() to
+     * delete it if the content is not needed: otherwise it is deleted only
+     * by the next execution of this client. The file of a request which
+     * fails (also for an error status) is always deleted, and its content
+     * is not available. A content larger than an array can hold (about 2
+     * GB) always goes to the file. Responses deserialized from
+     * the stream by a {@link StreamDataAdapter} are not buffered.
+     * <p>
+     * By default the content is always kept in memory.
      *
-     * @param timeoutMillis
-     *            The request timeout in milliseconds
+     * @param bytes
+     *            Max bytes in memory, or -1 for no limit
      * @return Self for chaining
      */
     @Override
-    public HttpClient timeout(int timeoutMillis) {
-        this.timeoutMillis = timeoutMillis;
+    public HttpClient responseMemoryLimit(long bytes) {
+        this.responseMemoryLimit = bytes < 0 ? -1 : bytes;
         return this;
     }
 
 
     /**
-     * Set the read timeout.
+     * Set the max size of a response content. If the content is larger,
+     * the read is aborted and the request fails with a RuntimeException,
+     * also with #noExceptions().
      * <p>
-     * If a timeout is not explicitly set, default from HttpURLConnection will
-     * be used.
+     * The limit applies to the decompressed content, which is read, parsed
+     * or downloaded; it does not apply to a #rawStreamCallback().
      *
-     * @param readTimeoutMillis
-     *            The request timeout in milliseconds
+     * @param bytes
+     *            Max bytes, or -1 for no limit (default)
      * @return Self for chaining
      */
     @Override
-    public HttpClient readTimeout(int readTimeoutMillis) {
+    public HttpClient maxResponseSize(long bytes) {
+        this.maxResponseSize = bytes < 0 ? -1 : bytes;
+        return this;
+    }
+
+
+    /**
+     * Delete the temporary file of a response content larger than the
+     * #responseMemoryLimit(long), if it has not been read. The content is
+     * no longer available afterwards.
+     *
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient discardContent() {
+        ResponseBuffer b = responseBuffer;
+        responseBuffer = null;
+        if (b != null)
+            b.delete();
+        return this;
+    }
+
+
+    /**
+     * Set a callback that will be invoked on the raw response stream.
+     *
+     * @param callback Callback
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient rawStreamCallback(RawStreamCallback callback) {
+        this.rawStreamCallback = callback;
+        return this;
+    }
+    
+    
+    /**
+     * Enable or disable request compression.
+     * When enabled, header 'Content-Encoding: gzip' will be added and the
+     * request body will be gzipped.
+     * <p>
+     * Bodies smaller than the #compressionThreshold(long), and bodies with
+     * a Content-Type which is already compressed (images, audio, video,
+     * archives), are sent as they are.
+     * 
+     * @param compress
+     *            Enable request compression
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient compressRequest(boolean compress) {
+        this.compressRequest = compress;
+        return this;
+    }
+
+
+    /**
+     * Enable or disable compressed responses.
+     * <p>
+     * When enabled (the default), header 'Accept-Encoding: gzip, deflate'
+     * is sent, unless the request sets its own, and responses compressed by
+     * the server are decoded while they are read. Responses compressed
+     * anyway by the server are always decoded.
+     *
+     * @param compress
+     *            Accept compressed responses
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient compressResponse(boolean compress) {
+        this.compressResponse = compress;
+        return this;
+    }
+
+
+    /**
+     * Set the compression level of request bodies, from 1 (fastest) to 9
+     * (smallest). The default level (6) is a good trade-off for text;
+     * lower levels save CPU on large bodies sent over fast networks.
+     *
+     * @param level
+     *            Compression level, or {@code Deflater.DEFAULT_COMPRESSION}
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient compressionLevel(int level) {
+        if ((level < 1 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        this.compressionLevel = level;
+        return this;
+    }
+
+
+    /**
+     * Set the min size of a request body to compress it, when request
+     * compression is enabled. The compressed format adds some bytes and
+     * some CPU time, which small bodies do not pay back. Bodies of unknown
+     * length are always compressed.
+     *
+     * @param bytes
+     *            Min size in bytes, default is {@code DEFAULT_COMPRESSION_THRESHOLD}
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient compressionThreshold(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes must not be negative");
+        this.compressionThreshold = bytes;
+        return this;
+    }
+
+
+    /**
+     * Enable or disable connection reuse.
+     * <p>
+     * When enabled, the connection is not closed after the request: the
+     * response stream is drained and closed, so the connection can go back
+     * to the cache of persistent connections and be reused by the next
+     * request to the same host, saving the TCP and TLS handshakes.
+     * Cache settings and statistics are available in {@link KeepAlive}.
+     * <p>
+     * When disabled (the default), the connection is closed after each
+     * request.
+     *
+     * @param keepAlive
+     *            Enable connection reuse
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+
+    /**
+     * Enable or disable streaming of the request body.
+     * <p>
+     * When enabled (the default), the body is sent while it is written:
+     * with a fixed Content-Length if its size is known (strings, byte
+     * arrays, form params, files), otherwise with chunked transfer
+     * encoding. When disabled, the connection buffers the whole body to
+     * compute its length before sending it, which doubles the memory used
+     * and delays the first byte on the wire, but works with old servers
+     * and proxies that do not accept chunked requests.
+     * <p>
+     * The default can be changed by setting the system property
+     * 'urldroid.streaming' to 'false'.
+     * <p>
+     * Note that HttpURLConnection cannot resend a streamed body, so it
+     * does not follow redirects or retry authentication for these
+     * requests.
+     *
+     * @param streaming
+     *            Enable streaming of the request body
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient streaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+
+    /**
+     * Set the size of the chunks used to send request bodies of unknown
+     * length, when streaming is enabled.
+     *
+     * @param chunkSize
+     *            Chunk size in bytes, default is {@code DEFAULT_CHUNK_SIZE}
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient chunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+
+    /**
+     * Set the engine used to open the connection for this request.
+     * <p>
+     * If not set, the default engine from {@link HttpEngines} will be used.
+     *
+     * @param engine
+     *            Engine
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient engine(HttpEngine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+
+    /**
+     * Set the engine used to open the connection for this request.
+     *
+     * @param name
+     *            Name of a registered engine
+     * @return Self for chaining
+     * @throws IllegalArgumentException
+     *             If no engine has the given name
+     */
+    public HttpClient engine(String name) {
+        HttpEngine e = HttpEngines.get(name);
+        if (e == null)
+            throw new IllegalArgumentException("Unknown HTTP engine: " + name);
+        return engine(e);
+    }
+
+
+    /**
+     * Set the executor used to run this request when it is executed
+     * asynchronously.
+     * <p>
+     * If not set, the default executor from {@link HttpExecutors} will be
+     * used.
+     *
+     * @param executor
+     *            Executor
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    /**
+     * Specify that no exceptions be raised in case the response HTTP 
+     * status is an error (i.e. it's not 2XX).
+     *
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient noExceptions() {
+        this.noExceptionOnServerError = true;
+        return this;
+    }
+
+
+    /**
+     * Set the request timeout.
+     * <p>
+     * If a timeout is not explicitly set, {@code DEFAULT_TIMEOUT_MS} will be
+     * used.
+     *
+     * @param timeoutMillis
+     *            The request timeout in milliseconds
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient timeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+
+    /**
+     * Set the read timeout.
+     * <p>
+     * If a timeout is not explicitly set, default from HttpURLConnection will
+     * be used.
+     *
+     * @param readTimeoutMillis
+     *            The request timeout in milliseconds
+     * @return Self for chaining
+     */
+    @Override
+    public HttpClient readTimeout(int readTimeoutMillis) {
         this.readTimeoutMillis = readTimeoutMillis;
         return this;
     }
@@ -1107,6 +1760,8 @@ public class HttpClient implements HttpClientSpec {
      */
     @Override
     public boolean isProxyAllowed() {
+        if (nonProxyHosts == null && template != null)
+            return template.isProxyAllowed(url.getHost());
         boolean canUseProxy = true;
         if (nonProxyHosts == null) {
             String nonProxyHostsProp = System.getProperty("http.nonProxyHosts");
@@ -1182,6 +1837,7 @@ public class HttpClient implements HttpClientSpec {
      */
     @Override
     public Object content() {
+        readBufferedContent();
         return responseContent;
     }
 
@@ -1189,15 +1845,50 @@ public class HttpClient implements HttpClientSpec {
     /**
      * Returns the raw content of the HTTP response. This method must be called
      * after the request has been executed.
+     * <p>
+     * If the response was deserialized from the stream by a
+     * {@link StreamDataAdapter}, the raw content is not kept and this
+     * method returns null.
      *
      * @return The response content as text
      */
     @Override
     public String rawContent() {
+        readBufferedContent();
         return rawContent;
     }
 
 
+    /**
+     * Returns the raw content of the HTTP response as bytes, if the request
+     * was made with #returnBytes(). This method must be called after the
+     * request has been executed.
+     *
+     * @return The response content, not decoded
+     */
+    @Override
+    public byte[] rawBytes() {
+        readBufferedContent();
+        return rawBytes;
+    }
+
+
+    /**
+     * Returns the records of the HTTP response, if the request was made
+     * with #returnRecords(Class, DataAdapter) and the status was not an
+     * error. This method must be called after the request has been
+     * executed.
+     *
+     * @param <T> Type of the records
+     * @return Lazy iterator of the records, or null
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> RecordIterator<T> records() {
+        return (RecordIterator<T>) records;
+    }
+
+
     /**
      * Returns the HTTP reason phrase of the response, which is a textual
      * description of the status code.
@@ -1257,41 +1948,335 @@ public class HttpClient implements HttpClientSpec {
 
 
     /**
-     * Read the response content in a string. This method tries to decode 
-     * the content according to the specified encoding, which is UTF-8 by 
-     * default.
+     * Read the response content in a string. The content is read as bytes,
+     * in a pooled buffer if it fits (otherwise in an array sized from the
+     * expected length, if known), then decoded in a single pass with the
+     * given charset, which is UTF-8 if not specified or not supported.
      *
-     * @return Self for chaining
-     * @throws Exception When the content cannot be read or decoded
+     * @param length Content length, or -1 if unknown
+     * @param charset Charset name, or null
+     * @throws IOException When the content cannot be read
      */
-    private String getEntityAsString(InputStream responseEntity,
-            String encoding) throws Exception {
-        String r = null;
-        Writer writer = null;
-        Reader reader = null;
+    private static String getEntityAsString(InputStream responseEntity,
+            long length, String charset) throws IOException {
+        byte[] pooled = BufferPool.acquire();
         try {
-            // Stream length could be greater than the response Content-Length,
-            // because the stream will unzip content transparently
-            reader = new BufferedReader(new InputStreamReader(responseEntity,
-                    encoding == null ? "UTF-8" : encoding), 8192);
-            writer = new StringWriter();
-            int l;
-            char[] buf = new char[8192];
-            // better not check for -1 to end loop, some implementations return 0 sometimes
-            while ((l = reader.read(buf)) > 0) {
-                writer.write(buf, 0, l);
+            byte[] buf = length <= pooled.length ? pooled
+                    : new byte[(int) Math.min(length, MAX_PRESIZE)];
+            int n = 0;
+            while (true) {
+                if (n == buf.length) {
+                    // Expected end, or more content than declared
+                    int b = responseEntity.read();
+                    if (b == -1)
+                        break;
+                    buf = grow(buf, n);
+                    buf[n++] = (byte) b;
+                }
+                int l = responseEntity.read(buf, n, buf.length - n);
+                if (l == -1)
+                    break;
+                n += l;
             }
-            r = writer.toString();
+            return TextDecoder.decode(buf, 0, n, TextDecoder.forName(charset));
         } finally {
-            if (writer != null)
-                writer.close();
-            if (reader != null)
-                reader.close();
+            BufferPool.release(pooled);
+            responseEntity.close();
         }
-        return r;
     }
     
     
+    /**
+     * Read the response content in a byte array. The array is allocated
+     * with the expected length, if known, so in the common case the content
+     * is read into it without further copies.
+     *
+     * @param length Content length, or -1 if unknown
+     */
+    private static byte[] getEntityAsBytes(InputStream responseEntity,
+            long length) throws IOException {
+        try {
+            byte[] buf = new byte[length >= 0 ? (int) Math.min(length, MAX_PRESIZE) : 8192];
+            int n = 0;
+            while (true) {
+                if (n == buf.length) {
+                    // Expected end, or more content than declared
+                    int b = responseEntity.read();
+                    if (b == -1)
+                        return buf;
+                    buf = grow(buf, n);
+                    buf[n++] = (byte) b;
+                }
+                int l = responseEntity.read(buf, n, buf.length - n);
+                if (l == -1)
+                    break;
+                n += l;
+            }
+            return n == buf.length ? buf : Arrays.copyOf(buf, n);
+        } finally {
+            responseEntity.close();
+        }
+    }
+
+
+    /**
+     * Grow a full buffer holding {@code n} bytes, doubling it up to the
+     * largest array size.
+     *
+     * @throws IOException When the buffer is already as large as possible
+     */
+    private static byte[] grow(byte[] buf, int n) throws IOException {
+        if (buf.length >= MAX_ARRAY_SIZE)
+            throw tooLarge((long) n + 1);
+        long size = Math.max((long) buf.length * 2, 8192);
+        return Arrays.copyOf(buf, (int) Math.min(size, MAX_ARRAY_SIZE));
+    }
+
+
+    private static IOException tooLarge(long length) {
+        return new IOException("Response too large for a byte array: "
+                + length + " bytes");
+    }
+
+
+    /**
+     * Set the response content from the raw content, deserializing it if
+     * required.
+     */
+    private void setResponseContent() {
+        if (this.rawBytes != null) {
+            this.responseContent = this.rawBytes;
+        } else if (this.rawContent != null) {
+            if (deserializedResponseType != null &&
+                    deserializeAdapter != null) {
+                // Deserialize according to the expected type
+                try {
+                    if (deserializedResponseType instanceof Class<?>)
+                        this.responseContent = deserializeAdapter
+                                .deserialize(this.rawContent, (Class<?>)deserializedResponseType);
+                    else
+                        this.responseContent = deserializeAdapter
+                                .deserializeRef(this.rawContent, deserializedResponseType);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            } else {
+                // Do not deserialize, get response content as string
+                this.responseContent = this.rawContent;
+            }
+        }
+    }
+
+
+    /**
+     * Read the response content with the memory limit: a small content is
+     * decoded at once, a larger one is kept in a temporary file until the
+     * content is requested. Errors are not IOExceptions (i.e. the temporary
+     * file cannot be written), so they cannot be taken for an error
+     * response; except for a content over the #maxResponseSize(long).
+     */
+    private void bufferEntity(InputStream in, long length, String charset)
+            throws ResponseTooLargeException {
+        ResponseBuffer b;
+        try {
+            b = ResponseBuffer.read(in, length, responseMemoryLimit);
+        } catch (ResponseTooLargeException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (b.inMemory()) {
+            if (returnBytes)
+                this.rawBytes = b.bytes();
+            else
+                this.rawContent = TextDecoder.decode(b.bytes(), 0, b.bytes().length,
+                        TextDecoder.forName(charset));
+        } else {
+            this.responseBuffer = b;
+            this.responseCharset = charset;
+        }
+    }
+
+
+    /**
+     * Read back the content kept in a temporary file, if any, then delete
+     * the file.
+     */
+    private void readBufferedContent() {
+        ResponseBuffer b = responseBuffer;
+        if (b == null)
+            return;
+        responseBuffer = null;
+        try {
+            if (returnBytes) {
+                if (b.length() > MAX_ARRAY_SIZE)
+                    throw tooLarge(b.length());
+                this.rawBytes = getEntityAsBytes(b.open(), b.length());
+            } else {
+                this.rawContent = getEntityAsString(b.open(), b.length(), responseCharset);
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            b.delete();
+        }
+        setResponseContent();
+    }
+
+
+    /**
+     * Prepare the connection to send a body, and return the stream to
+     * write it to (compressed if required, and worth it).
+     * <p>
+     * Unless streaming is disabled, the body is sent while it is written:
+     * with a fixed length if it is known, otherwise in chunks. Compressed
+     * bodies are always chunked, as their length is not known in advance,
+     * and so are bodies over 2 GB, which the Java 6 API cannot declare.
+     * Bodies of known length up to {@code STREAMING_THRESHOLD} are still
+     * buffered: they cost little memory, are sent with the same
+     * Content-Length, and the connection can resend them if a cached
+     * keep-alive connection turns out to be closed.
+     *
+     * @param length Length of the body, or -1 if unknown
+     */
+    private OutputStream openBody(long length) throws IOException {
+        // still no IO
+        conn.setDoOutput(true);
+        boolean compress = compressRequest
+                && (length < 0 || length >= compressionThreshold)
+                && ContentEncoding.compressible(conn.getRequestProperty("Content-Type"));
+        if (compress)
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        boolean stream = streaming != null ? streaming :
+                !"false".equals(System.getProperty("urldroid.streaming"));
+        if (stream) {
+            if (compress || length < 0 || length > Integer.MAX_VALUE)
+                conn.setChunkedStreamingMode(chunkSize);
+            else if (length > STREAMING_THRESHOLD)
+                conn.setFixedLengthStreamingMode((int) length);
+        }
+        OutputStream out = conn.getOutputStream();
+        if (compress) {
+            out = ContentEncoding.gzip(out, compressionLevel);
+        }
+        return out;
+    }
+
+
+    /**
+     * Close the body stream after the whole body has been written, which
+     * sends its end (the last chunk, the gzip trailer). If writing failed
+     * the connection is closed instead, without ending the body: the
+     * server sees an incomplete request, rather than a truncated body which
+     * looks complete.
+     */
+    private void closeBody(OutputStream out, boolean written) throws IOException {
+        if (written)
+            out.close();
+        else
+            abort();
+    }
+
+
+    /**
+     * Send the file entity, without loading it in memory.
+     */
+    private void writeFileEntity() throws IOException {
+        FileInputStream fin = null;
+        FileChannel ch = entityChannel;
+        long position = entityPosition;
+        long length = entityLength;
+        if (entityFile != null) {
+            fin = new FileInputStream(entityFile);
+            ch = fin.getChannel();
+            position = 0;
+            length = ch.size();
+        }
+        try {
+            OutputStream out = openBody(length);
+            byte[] buf = BufferPool.acquire();
+            boolean written = false;
+            try {
+                // The connection stream is not a channel: read the file
+                // into a pooled buffer (positional reads do not change the
+                // channel position)
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                long sent = 0;
+                while (sent < length) {
+                    bb.clear();
+                    if (length - sent < buf.length)
+                        bb.limit((int) (length - sent));
+                    int n = ch.read(bb, position + sent);
+                    if (n <= 0)
+                        throw new EOFException("File is shorter than the entity length");
+                    out.write(buf, 0, n);
+                    sent += n;
+                }
+                written = true;
+            } finally {
+                BufferPool.release(buf);
+                closeBody(out, written);
+            }
+        } finally {
+            if (fin != null)
+                fin.close();
+        }
+    }
+
+
+    /**
+     * Returns the Content-Length of the response, which may not fit in an
+     * int, or -1 if unknown.
+     */
+    private static long contentLength(HttpURLConnection conn) {
+        String value = conn.getHeaderField("Content-Length");
+        if (value == null)
+            return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Write the response content to a file. Errors are not IOExceptions,
+     * so they cannot be taken for an error response.
+     */
+    private void downloadTo(File file, InputStream in, long length) {
+        try {
+            MessageDigest digest = checksumAlgorithm != null ?
+                    MessageDigest.getInstance(checksumAlgorithm) : null;
+            FileDownload download = new FileDownload(file, digest, expectedChecksum);
+            download.transfer(in, length);
+            this.checksum = download.digest();
+            this.responseContent = file;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    /**
+     * Deserialize the response content from the stream, according to the
+     * expected type. Errors are not IOExceptions, so they cannot be taken
+     * for an error response.
+     */
+    private Object deserializeStream(InputStream in, String contentCharset) {
+        StreamDataAdapter adapter = (StreamDataAdapter) deserializeAdapter;
+        String charset = TextDecoder.forName(contentCharset).name();
+        try {
+            if (deserializedResponseType instanceof Class<?>)
+                return adapter.deserialize(in, charset, (Class<?>) deserializedResponseType);
+            else
+                return adapter.deserializeRef(in, charset, deserializedResponseType);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
     /**
      * Build a string describing the full HTTP request for debugging /
      * logging purposes.
@@ -1308,6 +2293,12 @@ public class HttpClient implements HttpClientSpec {
             sb.append("\n");
             sb.append("HTTP Method: ").append(method).append("\n");
             sb.append(url()).append("\n").append("\n");
+            if (template != null) {
+                for (Entry<String, String> h : template.headers().entrySet()) {
+                    if (headers == null || !headers.containsKey(h.getKey()))
+                        sb.append(h.getKey()).append(": ").append(h.getValue()).append("\n");
+                }
+            }
             if (headers != null) {
                 for (Entry<String, String> h : headers.entrySet()) {
                     sb.append(h.getKey()).append(": ").append(h.getValue()).append("\n");
@@ -1318,6 +2309,12 @@ public class HttpClient implements HttpClientSpec {
                 sb.append(entity).append("\n");
             } else if (entityBytes != null) {
                     sb.append(new String(entityBytes, "UTF-8")).append("\n");
+            } else if (entityFile != null) {
+                sb.append("<file ").append(entityFile).append(">\n");
+            } else if (entityChannel != null) {
+                sb.append("<").append(entityLength).append(" bytes from channel>\n");
+            } else if (entityWriter != null) {
+                sb.append("<streamed body>\n");
             }
         } catch (Exception ignored) { }
         return sb.toString();
@@ -1348,72 +2345,165 @@ public class HttpClient implements HttpClientSpec {
             sb.append("\n");
             if (rawContent != null) {
                 sb.append(rawContent).append("\n");
+            } else if (responseBuffer != null) {
+                sb.append("<").append(responseBuffer.length()).append(" bytes in temporary file>\n");
             }
         } catch (Exception ignored) { }
         return sb.toString();
     }
 
 
-    private static class MultiPartParam {
-        private String name;
-        private String filename;
-        private String type;
-        private InputStream data;
-        private String value;
+    /**
+     * Thrown when the response content is larger than #maxResponseSize(long).
+     */
+    private static class ResponseTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
 
 
-        public MultiPartParam() {
+        ResponseTooLargeException(long max) {
+            super("Response content larger than " + max + " bytes");
+        }
+    }
+
+
+    /**
+     * Records if the response stream has been closed, so a connection is not
+     * drained from a closed stream (which fails like a broken connection).
+     */
+    private static class CloseTrackingInputStream extends FilterInputStream {
+        boolean closed;
+
 
+        CloseTrackingInputStream(InputStream in) {
+            super(in);
         }
 
 
-        public String getName() {
-            return name;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
         }
 
 
-        public void setName(String name) {
-            this.name = name;
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            in.close();
         }
+    }
 
 
-        public String getFilename() {
-            return filename;
+    /**
+     * Fails when more than max bytes are read.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long max;
+        private long count;
+
+
+        LimitedInputStream(InputStream in, long max) {
+            super(in);
+            this.max = max;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1)
+                count(1);
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                count(n);
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count(skipped);
+            return skipped;
         }
 
 
-        public void setFilename(String filename) {
-            this.filename = filename;
+        private void count(long n) throws IOException {
+            count += n;
+            if (count > max)
+                throw new ResponseTooLargeException(max);
         }
+    }
+
+
+    /**
+     * A buffered stream, with a buffer from the pool. The buffer is
+     * returned when the stream is closed.
+     */
+    private static class PooledBufferedOutputStream extends FilterOutputStream {
+        private byte[] buf = BufferPool.acquire();
+        private int count;
 
 
-        public String getType() {
-            return type;
+        PooledBufferedOutputStream(OutputStream out) {
+            super(out);
         }
 
 
-        public void setType(String type) {
-            this.type = type;
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length)
+                flushBuffer();
+            buf[count++] = (byte) b;
         }
 
 
-        public InputStream getData() {
-            return data;
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buf.length) {
+                // Larger than the buffer: no need to copy it
+                flushBuffer();
+                out.write(b, off, len);
+                return;
+            }
+            if (len > buf.length - count)
+                flushBuffer();
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
         }
 
 
-        public void setData(InputStream data) {
-            this.data = data;
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
         }
 
 
-        public String getValue() {
-            return value;
+        @Override
+        public void close() throws IOException {
+            if (buf == null)
+                return;
+            try {
+                flushBuffer();
+                out.close();
+            } finally {
+                BufferPool.release(buf);
+                buf = null;
+            }
         }
 
 
-        public void setValue(String value) {
-            this.value = value;
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
+            }
         }
     }
 
@@ -1,9 +1,15 @@
 package it.idsolutions.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Proxy;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 
@@ -23,6 +29,20 @@ public interface HttpClientSpec {
         <T> T deserializeRef(String content, Object typeRef);
     }
     
+    /**
+     * Adapter that can also serialize to and deserialize from streams.
+     * <p>
+     * When the adapter of a request implements this interface, the response
+     * is parsed while it is read and the request entity is written straight
+     * to the connection, without holding the content in a String.
+     * The streams must not be closed by the adapter.
+     */
+    public interface StreamDataAdapter extends DataAdapter {
+        void serialize(Object content, OutputStream out) throws IOException;
+        <T> T deserialize(InputStream in, String charset, Class<T> type) throws IOException;
+        <T> T deserializeRef(InputStream in, String charset, Object typeRef) throws IOException;
+    }
+    
     public interface RawStreamCallback {
         /**
          * Called on the response stream when it is received.
@@ -42,6 +62,40 @@ public interface HttpClientSpec {
         void onRawErrorStream(final int code, final InputStream err);
     }
     
+    public interface BodyWriter {
+        /**
+         * Called to write the request body, when the request is executed.
+         * The stream does not need to be closed.
+         * 
+         * @param out The request body stream
+         * @throws IOException If the body cannot be written: the connection
+         *     is closed without ending the body, so the server does not
+         *     receive a truncated one as complete
+         */
+        void writeTo(final OutputStream out) throws IOException;
+    }
+    
+    public interface ResponseCallback {
+        /**
+         * Called when an async request completes, on the thread that
+         * executed it.
+         * 
+         * @param response The executed request, with the response
+         */
+        void onSuccess(HttpClient response);
+        
+        /**
+         * Called when an async request fails or is canceled, on the thread
+         * that executed it (or on the thread that canceled it).
+         * 
+         * @param request The request
+         * @param error The error, as it would be thrown by the synchronous
+         *     method (i.e. a RuntimeException for an error HTTP status), or a
+         *     CancellationException
+         */
+        void onFailure(HttpClient request, Throwable error);
+    }
+    
     /**
      * Set the 'Accept' request header, which specifies the expected type
      * of the response content.
@@ -87,8 +141,7 @@ public interface HttpClientSpec {
      * @param name
      *            Content-disposition name
      * @param value
-     *            Text value that will be written to the request, without any
-     *            encoding
+     *            Text value that will be written to the request as UTF-8
      * @return Self for chaining
      */
     HttpClient addMultiPartParam(String name, String value);
@@ -114,6 +167,15 @@ public interface HttpClientSpec {
      */
     HttpClient addMultiPartParam(String name, String filename, String type, InputStream data);
 
+    /**
+     * Add a part to a multipart/form-data request.
+     *
+     * @param part
+     *            The part
+     * @return Self for chaining
+     */
+    HttpClient addMultiPart(MultiPart part);
+
     /**
      * Set a param in the URL path of the request.
      * <p>
@@ -193,6 +255,33 @@ public interface HttpClientSpec {
      */
     HttpClient delete();
 
+    /**
+     * Execute a GET HTTP request and write the response content to a file,
+     * which is replaced only when the whole content has been received.
+     *
+     * @param file Target file
+     * @return Self for chaining
+     */
+    HttpClient download(File file);
+
+    /**
+     * Compute the checksum of the content written by #download(File),
+     * and optionally verify it.
+     *
+     * @param algorithm Digest algorithm, i.e. "SHA-256" or "MD5"
+     * @param expected Expected checksum in hex, or null to compute it only
+     * @return Self for chaining
+     */
+    HttpClient verifyChecksum(String algorithm, String expected);
+
+    /**
+     * Returns the checksum of the content written by #download(File), if
+     * one was requested with #verifyChecksum(String, String).
+     *
+     * @return Checksum in hex, or null
+     */
+    String checksum();
+
     /**
      * Get the request entity, already encoded.
      * It will be non-null only after the request is made.
@@ -225,6 +314,40 @@ public interface HttpClientSpec {
      */
     HttpClient entity(byte[] data);
 
+    /**
+     * Set the request entity from a file, which is streamed when the
+     * request is executed.
+     *
+     * @param file
+     *            File to send
+     * @return Self for chaining
+     */
+    HttpClient entity(File file);
+
+    /**
+     * Set the request entity from a region of a file, which is streamed
+     * when the request is executed.
+     *
+     * @param channel
+     *            Channel to read
+     * @param position
+     *            Position of the first byte to send
+     * @param length
+     *            Number of bytes to send
+     * @return Self for chaining
+     */
+    HttpClient entity(FileChannel channel, long position, long length);
+
+    /**
+     * Set a callback that writes the request entity when the request is
+     * executed, straight to the connection.
+     *
+     * @param writer
+     *            Callback writing the body
+     * @return Self for chaining
+     */
+    HttpClient entity(BodyWriter writer);
+
     /**
      * Set the request entity as serialized JSON.
      *
@@ -266,6 +389,123 @@ public interface HttpClientSpec {
      */
     boolean isProxyAllowed();
 
+    /**
+     * Enable or disable streaming of the request body. When disabled, the
+     * connection buffers the whole body before sending it, with its length.
+     *
+     * @param streaming
+     *            Enable streaming of the request body
+     * @return Self for chaining
+     */
+    HttpClient streaming(boolean streaming);
+
+    /**
+     * Set the size of the chunks used to send request bodies of unknown
+     * length, when streaming is enabled.
+     *
+     * @param chunkSize
+     *            Chunk size in bytes
+     * @return Self for chaining
+     */
+    HttpClient chunkSize(int chunkSize);
+
+    /**
+     * Enable or disable connection reuse.
+     * <p>
+     * When enabled, the connection is not closed after the request: the
+     * response stream is drained and closed, so the connection can be reused
+     * by the next request to the same host.
+     *
+     * @param keepAlive
+     *            Enable connection reuse
+     * @return Self for chaining
+     */
+    HttpClient keepAlive(boolean keepAlive);
+
+    /**
+     * Set the engine used to open the connection for this request.
+     * <p>
+     * If not set, the default engine from {@link HttpEngines} will be used.
+     *
+     * @param engine
+     *            Engine
+     * @return Self for chaining
+     */
+    HttpClient engine(HttpEngine engine);
+
+    /**
+     * Set the executor used to run this request when it is executed
+     * asynchronously.
+     * <p>
+     * If not set, the default executor from {@link HttpExecutors} will be
+     * used.
+     *
+     * @param executor
+     *            Executor
+     * @return Self for chaining
+     */
+    HttpClient executor(Executor executor);
+
+    /**
+     * Execute an HTTP request asynchronously, on the executor of this
+     * request.
+     * <p>
+     * The returned future completes with this instance, so the response
+     * can be read as for a synchronous request; if the request fails, the
+     * cause of the ExecutionException is the exception that the synchronous
+     * method would throw. Canceling the future closes the connection.
+     *
+     * @param method
+     *            HTTP method (GET, POST, PUT, DELETE)
+     * @return Future of the executed request
+     */
+    Future<HttpClient> executeAsync(String method);
+
+    /**
+     * Execute an HTTP request asynchronously, on the executor of this
+     * request, and notify a callback when it completes.
+     *
+     * @param method
+     *            HTTP method (GET, POST, PUT, DELETE)
+     * @param callback
+     *            Callback notified on completion or failure
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    Future<HttpClient> executeAsync(String method, ResponseCallback callback);
+
+    /**
+     * Execute a GET HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    Future<HttpClient> getAsync();
+
+    /**
+     * Execute a POST HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    Future<HttpClient> postAsync();
+
+    /**
+     * Execute a PUT HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    Future<HttpClient> putAsync();
+
+    /**
+     * Execute a DELETE HTTP request asynchronously.
+     *
+     * @return Future of the executed request
+     * @see #executeAsync(String)
+     */
+    Future<HttpClient> deleteAsync();
+
     /**
      * Specify that no exceptions be raised in case the response HTTP
      * status is an error (i.e. it's not 2XX).
@@ -357,6 +597,24 @@ public interface HttpClientSpec {
      */
     String rawContent();
 
+    /**
+     * Returns the raw content of the HTTP response as bytes, if the request
+     * was made with #returnBytes(). This method must be called after the
+     * request has been executed.
+     *
+     * @return The response content, not decoded
+     */
+    byte[] rawBytes();
+
+    /**
+     * Returns the records of the HTTP response, if the request was made
+     * with #returnRecords(Class, DataAdapter). The iterator must be read
+     * until the end or closed, to release the connection.
+     *
+     * @return Lazy iterator of the records, or null
+     */
+    <T> RecordIterator<T> records();
+
     /**
      * Set the read timeout.
      * <p>
@@ -410,6 +668,69 @@ public interface HttpClientSpec {
      * @return Self for chaining
      */
     HttpClient returnType(Object type, DataAdapter adapter);
+
+    /**
+     * Read the response content as newline-delimited records
+     * ('application/x-ndjson', JSON Lines), deserialized lazily from the
+     * open connection as they are iterated with #records().
+     *
+     * @param type
+     *            Type of each record, used as an hint for the deserializer.
+     * @param adapter
+     *            Implementation of DataAdapter used for deserialization
+     * @return Self for chaining
+     */
+    HttpClient returnRecords(Class<?> type, DataAdapter adapter);
+
+    /**
+     * Read the response content as newline-delimited records, each
+     * deserialized as the specified type. Use this method to specify a type
+     * in case of type erasure.
+     *
+     * @param type
+     *            Type of each record, used as an hint for the deserializer.
+     * @param adapter
+     *            Implementation of DataAdapter used for deserialization
+     * @return Self for chaining
+     */
+    HttpClient returnRecords(Object type, DataAdapter adapter);
+
+    /**
+     * Read the response content as bytes, without decoding it as text.
+     * Use this for binary responses (images, protobuf, archives...).
+     * The content is then available from #rawBytes() and #content().
+     *
+     * @return Self for chaining
+     */
+    HttpClient returnBytes();
+
+    /**
+     * Set the max size of a response content kept in memory. A larger
+     * content is written to a temporary file, and read back when requested.
+     *
+     * @param bytes
+     *            Max bytes in memory, or -1 for no limit
+     * @return Self for chaining
+     */
+    HttpClient responseMemoryLimit(long bytes);
+
+    /**
+     * Set the max size of a response content. If the content is larger,
+     * the request fails.
+     *
+     * @param bytes
+     *            Max bytes, or -1 for no limit
+     * @return Self for chaining
+     */
+    HttpClient maxResponseSize(long bytes);
+
+    /**
+     * Delete the temporary file of a response content larger than the
+     * memory limit, if it has not been read.
+     *
+     * @return Self for chaining
+     */
+    HttpClient discardContent();
     
     /**
      * Set a callback that will be invoked on the raw response stream.
@@ -431,6 +752,40 @@ public interface HttpClientSpec {
      */
     HttpClient compressRequest(boolean compress);
 
+    /**
+     * Enable or disable compressed responses. When enabled (the default),
+     * header 'Accept-Encoding: gzip, deflate' will be added and compressed
+     * responses will be decoded.
+     *
+     * @param compress
+     *            Accept compressed responses
+     *
+     * @return Self for chaining
+     */
+    HttpClient compressResponse(boolean compress);
+
+    /**
+     * Set the compression level of request bodies.
+     *
+     * @param level
+     *            Compression level from 1 (fastest) to 9 (smallest), or
+     *            {@code Deflater.DEFAULT_COMPRESSION}
+     *
+     * @return Self for chaining
+     */
+    HttpClient compressionLevel(int level);
+
+    /**
+     * Set the min size of a request body to compress it, when request
+     * compression is enabled.
+     *
+     * @param bytes
+     *            Min size in bytes
+     *
+     * @return Self for chaining
+     */
+    HttpClient compressionThreshold(long bytes);
+
     /**
      * Add a request header. If the header was already set it will be
      * overwritten.
@@ -0,0 +1,510 @@
+package it.idsolutions.util;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * Immutable, thread-safe set of settings shared by many requests.
+ * <p>
+ * A template is built once with a {@link Builder}, which resolves system
+ * properties ('http.user', 'http.proxyHost', ...) and encodes credentials
+ * at build time. Requests created with {@link #request(String)} reuse these
+ * settings without any further work, so a single template can be shared by
+ * all threads and requests can be created cheaply on hot paths.
+ * <p>
+ * Each request is a normal HttpClient instance: any setting changed on it
+ * overrides the template for that request only.
+ * <pre>
+ * HttpClientTemplate t = new HttpClientTemplate.Builder()
+ *     .credentials("user", "password")
+ *     .timeout(5000)
+ *     .keepAlive(true)
+ *     .build();
+ * HttpClient c = t.request("http://localhost:3000/test").get();
+ * </pre>
+ *
+ * @author ps
+ */
+public final class HttpClientTemplate {
+    private final Map<String, String> headers;
+    private final String userAgent;
+    private final Proxy proxy;
+    private final String proxyAuthorization;
+    private final Set<String> nonProxyHosts;
+    private final SSLContext sslContext;
+    private final HostnameVerifier hostnameVerifier;
+    private final int timeoutMillis;
+    private final int readTimeoutMillis;
+    private final boolean keepAlive;
+    private final boolean streaming;
+    private final int chunkSize;
+    private final boolean compressResponse;
+    private final int compressionLevel;
+    private final long compressionThreshold;
+    private final long responseMemoryLimit;
+    private final long maxResponseSize;
+    private final boolean noExceptionOnServerError;
+    private final HttpEngine engine;
+    private final Executor executor;
+
+
+    private HttpClientTemplate(Builder b) {
+        Map<String, String> h = new LinkedHashMap<String, String>(b.headers);
+
+        // HTTP Authentication
+        String user = b.user != null ? b.user : System.getProperty("http.user");
+        String password = b.password != null ? b.password : System.getProperty("http.password");
+        if (user != null && password != null) {
+            h.put("Authorization", "Basic " +
+                    Base64.encodeString(user + ":" + password).trim());
+        }
+
+        if (b.userAgent != null)
+            h.put("User-Agent", b.userAgent);
+        this.userAgent = b.userAgent;
+
+        // Proxy
+        Proxy p = null;
+        String pAuth = null;
+        Set<String> nph = new HashSet<String>();
+        if (b.noProxy) {
+            p = Proxy.NO_PROXY;
+        } else {
+            p = b.proxy;
+            if (p == null) {
+                String proxyHost = System.getProperty("http.proxyHost");
+                String proxyPortString = System.getProperty("http.proxyPort");
+                if (proxyHost != null && !proxyHost.equals("")
+                    && proxyPortString != null && !proxyPortString.equals("")) {
+                    int proxyPort = Integer.parseInt(proxyPortString);
+                    p = new Proxy(Proxy.Type.HTTP,
+                            new InetSocketAddress(proxyHost, proxyPort));
+                }
+            }
+            if (b.nonProxyHosts != null) {
+                Collections.addAll(nph, b.nonProxyHosts);
+            } else {
+                String nonProxyHostsProp = System.getProperty("http.nonProxyHosts");
+                if (nonProxyHostsProp != null && !nonProxyHostsProp.isEmpty())
+                    Collections.addAll(nph, nonProxyHostsProp.split("\\|"));
+            }
+            if (p != null) {
+                String proxyUser = b.proxyUser != null ?
+                        b.proxyUser : System.getProperty("http.proxyUser");
+                String proxyPassword = b.proxyPassword != null ?
+                        b.proxyPassword : System.getProperty("http.proxyPassword");
+                if (proxyUser != null && !proxyUser.equals("")
+                    && proxyPassword != null && !proxyPassword.equals("")) {
+                    pAuth = "Basic " + Base64.encodeString(
+                            proxyUser + ":" + proxyPassword).trim();
+                }
+            }
+        }
+
+        this.headers = Collections.unmodifiableMap(h);
+        this.proxy = p;
+        this.proxyAuthorization = pAuth;
+        this.nonProxyHosts = Collections.unmodifiableSet(nph);
+        this.sslContext = b.sslContext;
+        this.hostnameVerifier = b.hostnameVerifier;
+        this.timeoutMillis = b.timeoutMillis;
+        this.readTimeoutMillis = b.readTimeoutMillis;
+        this.keepAlive = b.keepAlive;
+        this.streaming = b.streaming != null ? b.streaming :
+                !"false".equals(System.getProperty("urldroid.streaming"));
+        this.chunkSize = b.chunkSize;
+        this.compressResponse = b.compressResponse;
+        this.compressionLevel = b.compressionLevel;
+        this.compressionThreshold = b.compressionThreshold;
+        this.responseMemoryLimit = b.responseMemoryLimit;
+        this.maxResponseSize = b.maxResponseSize;
+        this.noExceptionOnServerError = b.noExceptionOnServerError;
+        this.engine = b.engine;
+        this.executor = b.executor;
+    }
+
+
+    /**
+     * Returns a new request bound to the specified URL, with all the
+     * settings of this template.
+     *
+     * @param url The request URL, alredy encoded
+     *     (see {@link HttpClient#HttpClient(String)})
+     * @return New request
+     */
+    public HttpClient request(String url) {
+        return new HttpClient(this, url);
+    }
+
+
+    /**
+     * Check if using the proxy is allowed for the given host.
+     *
+     * @param host Host name
+     * @return True if using a proxy is allowed
+     */
+    public boolean isProxyAllowed(String host) {
+        return !nonProxyHosts.contains(host);
+    }
+
+
+    /**
+     * Returns the proxy to use for the given host.
+     *
+     * @param host Host name
+     * @return Proxy, or null to use the system default
+     */
+    Proxy proxyFor(String host) {
+        if (proxy == Proxy.NO_PROXY)
+            return proxy;
+        return isProxyAllowed(host) ? proxy : null;
+    }
+
+
+    /**
+     * Request headers, including the already encoded authorization and
+     * the user agent, if set.
+     */
+    Map<String, String> headers() {
+        return headers;
+    }
+
+
+    String userAgent() {
+        return userAgent;
+    }
+
+
+    String proxyAuthorization() {
+        return proxyAuthorization;
+    }
+
+
+    SSLContext sslContext() {
+        return sslContext;
+    }
+
+
+    HostnameVerifier hostnameVerifier() {
+        return hostnameVerifier;
+    }
+
+
+    int timeoutMillis() {
+        return timeoutMillis;
+    }
+
+
+    int readTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+
+    boolean streaming() {
+        return streaming;
+    }
+
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+
+    boolean compressResponse() {
+        return compressResponse;
+    }
+
+
+    int compressionLevel() {
+        return compressionLevel;
+    }
+
+
+    long compressionThreshold() {
+        return compressionThreshold;
+    }
+
+
+    long responseMemoryLimit() {
+        return responseMemoryLimit;
+    }
+
+
+    long maxResponseSize() {
+        return maxResponseSize;
+    }
+
+
+    boolean noExceptionOnServerError() {
+        return noExceptionOnServerError;
+    }
+
+
+    HttpEngine engine() {
+        return engine;
+    }
+
+
+    Executor executor() {
+        return executor;
+    }
+
+
+    /**
+     * Builder for templates. Settings have the same meaning as the
+     * corresponding methods of {@link HttpClient}.
+     */
+    public static class Builder {
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private String userAgent;
+        private String user;
+        private String password;
+        private Proxy proxy;
+        private String proxyUser;
+        private String proxyPassword;
+        private String[] nonProxyHosts;
+        private boolean noProxy = false;
+        private SSLContext sslContext;
+        private HostnameVerifier hostnameVerifier;
+        private int timeoutMillis = HttpClient.DEFAULT_TIMEOUT_MS;
+        private int readTimeoutMillis = HttpClient.DEFAULT_READ_TIMEOUT_MS;
+        private boolean keepAlive = false;
+        private Boolean streaming;
+        private int chunkSize = HttpClient.DEFAULT_CHUNK_SIZE;
+        private boolean compressResponse = true;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private long compressionThreshold = HttpClient.DEFAULT_COMPRESSION_THRESHOLD;
+        private long responseMemoryLimit = -1;
+        private long maxResponseSize = -1;
+        private boolean noExceptionOnServerError = false;
+        private HttpEngine engine;
+        private Executor executor;
+
+
+        /**
+         * @see HttpClient#setHeader(String, String)
+         */
+        public Builder setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#accept(String)
+         */
+        public Builder accept(String type) {
+            if (type != null && !type.equals(""))
+                setHeader("Accept", type);
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#userAgent(String)
+         */
+        public Builder userAgent(String userAgent) {
+            this.userAgent = userAgent;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#credentials(String, String)
+         */
+        public Builder credentials(String user, String password) {
+            this.user = user;
+            this.password = password;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#proxy(Proxy, String, String, String[])
+         */
+        public Builder proxy(Proxy proxy, String proxyUser,
+                String proxyPassword, String[] nonProxyHosts) {
+            this.proxy = proxy;
+            this.proxyUser = proxyUser;
+            this.proxyPassword = proxyPassword;
+            this.nonProxyHosts = nonProxyHosts == null ? null : nonProxyHosts.clone();
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#noProxy()
+         */
+        public Builder noProxy() {
+            this.noProxy = true;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#sslContext(SSLContext)
+         */
+        public Builder sslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#sslHostnameVerifier(HostnameVerifier)
+         */
+        public Builder sslHostnameVerifier(HostnameVerifier hostnameVerifier) {
+            this.hostnameVerifier = hostnameVerifier;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#timeout(int)
+         */
+        public Builder timeout(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#readTimeout(int)
+         */
+        public Builder readTimeout(int readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#keepAlive(boolean)
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#streaming(boolean)
+         */
+        public Builder streaming(boolean streaming) {
+            this.streaming = streaming;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#chunkSize(int)
+         */
+        public Builder chunkSize(int chunkSize) {
+            if (chunkSize < 1)
+                throw new IllegalArgumentException("chunkSize must be positive");
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#compressResponse(boolean)
+         */
+        public Builder compressResponse(boolean compress) {
+            this.compressResponse = compress;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#compressionLevel(int)
+         */
+        public Builder compressionLevel(int level) {
+            if ((level < 1 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+                throw new IllegalArgumentException("level must be between 1 and 9");
+            this.compressionLevel = level;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#compressionThreshold(long)
+         */
+        public Builder compressionThreshold(long bytes) {
+            if (bytes < 0)
+                throw new IllegalArgumentException("bytes must not be negative");
+            this.compressionThreshold = bytes;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#responseMemoryLimit(long)
+         */
+        public Builder responseMemoryLimit(long bytes) {
+            this.responseMemoryLimit = bytes < 0 ? -1 : bytes;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#maxResponseSize(long)
+         */
+        public Builder maxResponseSize(long bytes) {
+            this.maxResponseSize = bytes < 0 ? -1 : bytes;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#noExceptions()
+         */
+        public Builder noExceptions() {
+            this.noExceptionOnServerError = true;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#engine(HttpEngine)
+         */
+        public Builder engine(HttpEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+
+        /**
+         * @see HttpClient#executor(Executor)
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+
+        /**
+         * Build the template. System properties are read at this time.
+         *
+         * @return New immutable template
+         */
+        public HttpClientTemplate build() {
+            return new HttpClientTemplate(this);
+        }
+    }
+}
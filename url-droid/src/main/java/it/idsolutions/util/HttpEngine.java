@@ -0,0 +1,41 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+
+/**
+ * Transport used by {@link HttpClient} to open connections.
+ * <p>
+ * Implementations must be thread-safe: a single instance is shared by all
+ * requests, so it can hold connection pools and other expensive state.
+ * <p>
+ * Engines found on the classpath are registered automatically when listed
+ * in a <code>META-INF/services/it.idsolutions.util.HttpEngine</code> file.
+ * See {@link HttpEngines} for how the default engine is chosen.
+ *
+ * @author ps
+ */
+public interface HttpEngine {
+    /**
+     * Returns the name of this engine, used to select it explicitly.
+     *
+     * @return Engine name
+     */
+    String name();
+
+    /**
+     * Returns a new connection to the given URL. Like
+     * {@link URL#openConnection()}, this method should not do any network
+     * I/O: the connection will be configured and then used by the client.
+     *
+     * @param url Request URL
+     * @param proxy Proxy to use, {@link Proxy#NO_PROXY} for a direct
+     *     connection, or null to use the system default
+     * @return New connection
+     * @throws IOException If the connection cannot be created
+     */
+    HttpURLConnection open(URL url, Proxy proxy) throws IOException;
+}
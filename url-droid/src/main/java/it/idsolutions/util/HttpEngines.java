@@ -0,0 +1,176 @@
+package it.idsolutions.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Registry of the available {@link HttpEngine} implementations.
+ * <p>
+ * Engines are looked up only once, when this class is initialized:
+ * <ul>
+ * <li>the system HttpURLConnection engine, named
+ * {@value #URL_CONNECTION}, which is always available;</li>
+ * <li>engines listed in <code>META-INF/services/it.idsolutions.util.HttpEngine</code>
+ * files on the classpath;</li>
+ * <li>the HttpURLConnection implementation of OkHttp 1.x/2.x, if found,
+ * named {@value #OKHTTP_LEGACY}.</li>
+ * </ul>
+ * The default engine is the one named by the system property
+ * 'urldroid.engine', if set; otherwise the service engine, if there is only
+ * one, then legacy OkHttp, then the system HttpURLConnection.
+ * <p>
+ * When there are many service engines and the property is not set, the
+ * choice does not depend on the order of the jars on the classpath: the
+ * first one in {@link #PRIORITY} is chosen (other engines follow, ordered by
+ * name), and a warning is logged, since the choice should be explicit.
+ * <p>
+ * Any request can use a specific engine with
+ * {@link HttpClient#engine(HttpEngine)}.
+ *
+ * @author ps
+ */
+public final class HttpEngines {
+    public static final String URL_CONNECTION = "urlconnection";
+    public static final String OKHTTP_LEGACY = LegacyOkHttpEngine.NAME;
+
+    /**
+     * Names of the engines of this project, in order of preference for the
+     * default engine when many are found
+     */
+    public static final List<String> PRIORITY = Collections.unmodifiableList(
+            Arrays.asList("okhttp", "jdk", "nio"));
+
+    private static final Map<String, HttpEngine> engines =
+            new LinkedHashMap<String, HttpEngine>();
+    private static volatile HttpEngine defaultEngine;
+
+    static {
+        Logger log = Logger.getLogger("it.idsolutions.util.HttpClient");
+        HttpEngine system = new UrlConnectionEngine();
+        engines.put(system.name(), system);
+        List<HttpEngine> services = new ArrayList<HttpEngine>();
+        try {
+            Iterator<HttpEngine> it = ServiceLoader.load(HttpEngine.class,
+                    HttpEngines.class.getClassLoader()).iterator();
+            while (it.hasNext()) {
+                HttpEngine e = it.next();
+                engines.put(e.name(), e);
+                services.add(e);
+            }
+        } catch (ServiceConfigurationError ex) {
+            log.log(Level.WARNING, "Cannot load HTTP engines", ex);
+        }
+        HttpEngine okHttp = LegacyOkHttpEngine.lookup();
+        if (okHttp != null)
+            engines.put(okHttp.name(), okHttp);
+
+        Collections.sort(services, new Comparator<HttpEngine>() {
+            @Override
+            public int compare(HttpEngine a, HttpEngine b) {
+                int c = rank(a) - rank(b);
+                return c != 0 ? c : a.name().compareTo(b.name());
+            }
+        });
+        HttpEngine preferred = !services.isEmpty() ? services.get(0) : okHttp;
+
+        String name = System.getProperty("urldroid.engine");
+        if (name != null && engines.containsKey(name)) {
+            defaultEngine = engines.get(name);
+        } else {
+            if (name != null)
+                log.warning("Unknown HTTP engine '" + name + "' in urldroid.engine");
+            defaultEngine = preferred != null ? preferred : system;
+            if (services.size() > 1) {
+                List<String> names = new ArrayList<String>();
+                for (HttpEngine e : services)
+                    names.add(e.name());
+                log.warning("Many HTTP engines on the classpath " + names
+                        + ", using '" + defaultEngine.name()
+                        + "': set the system property urldroid.engine to choose one");
+            }
+        }
+    }
+
+
+    private static int rank(HttpEngine e) {
+        int i = PRIORITY.indexOf(e.name());
+        return i >= 0 ? i : PRIORITY.size();
+    }
+
+
+    private HttpEngines() {
+    }
+
+
+    /**
+     * Returns the engine used by requests that do not specify one.
+     *
+     * @return Default engine
+     */
+    public static HttpEngine getDefault() {
+        return defaultEngine;
+    }
+
+
+    /**
+     * Set the engine used by requests that do not specify one. The engine
+     * is also registered.
+     *
+     * @param engine Engine
+     */
+    public static void setDefault(HttpEngine engine) {
+        if (engine == null)
+            throw new IllegalArgumentException("engine is null");
+        register(engine);
+        defaultEngine = engine;
+    }
+
+
+    /**
+     * Returns a registered engine.
+     *
+     * @param name Engine name
+     * @return The engine, or null if no engine has the given name
+     */
+    public static HttpEngine get(String name) {
+        synchronized (engines) {
+            return engines.get(name);
+        }
+    }
+
+
+    /**
+     * Register an engine, replacing any engine with the same name.
+     *
+     * @param engine Engine
+     */
+    public static void register(HttpEngine engine) {
+        synchronized (engines) {
+            engines.put(engine.name(), engine);
+        }
+    }
+
+
+    /**
+     * Returns all the registered engines.
+     *
+     * @return Engines, in registration order
+     */
+    public static Collection<HttpEngine> all() {
+        synchronized (engines) {
+            return new ArrayList<HttpEngine>(engines.values());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package it.idsolutions.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Executors for asynchronous requests.
+ * <p>
+ * Requests made with {@link HttpClient#executeAsync(String)} and the other
+ * async methods run on the executor set with
+ * {@link HttpClient#executor(Executor)}, or on the default executor.
+ * The default executor is a shared pool of daemon threads, which grows as
+ * needed and reuses idle threads.
+ * <p>
+ * On Java 21+ requests can run on virtual threads instead, see
+ * {@link #virtualThreads()}: a blocked request then costs a few KB of heap
+ * rather than a platform thread, so thousands of slow requests can be in
+ * flight at once. Set the system property <code>urldroid.executor</code>
+ * to <code>virtual</code> to make it the default executor.
+ *
+ * @author ps
+ */
+public final class HttpExecutors {
+    private static volatile Executor defaultExecutor;
+
+
+    private HttpExecutors() {
+    }
+
+
+    /**
+     * Returns the executor used by async requests that do not specify one.
+     *
+     * @return Default executor
+     */
+    public static Executor getDefault() {
+        Executor e = defaultExecutor;
+        return e != null ? e : SharedPool.POOL;
+    }
+
+
+    /**
+     * Returns true if the JVM supports virtual threads (Java 21+).
+     *
+     * @return true if {@link #virtualThreads()} can be used
+     */
+    public static boolean virtualThreadsAvailable() {
+        return VirtualThreads.POOL != null;
+    }
+
+
+    /**
+     * Returns a shared executor that runs each request on a new virtual
+     * thread.
+     *
+     * @return Executor
+     * @throws UnsupportedOperationException if the JVM is older than
+     *     Java 21
+     */
+    public static Executor virtualThreads() {
+        if (VirtualThreads.POOL == null)
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later");
+        return VirtualThreads.POOL;
+    }
+
+
+    /**
+     * Set the executor used by async requests that do not specify one.
+     *
+     * @param executor Executor, or null to use the shared pool
+     */
+    public static void setDefault(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+
+    /**
+     * Created on first use.
+     */
+    private static class SharedPool {
+        static final Executor POOL = create();
+
+
+        private static Executor create() {
+            if ("virtual".equals(System.getProperty("urldroid.executor"))) {
+                if (VirtualThreads.POOL != null)
+                    return VirtualThreads.POOL;
+                Logger.getLogger("it.idsolutions.util.HttpClient").log(Level.WARNING,
+                        "Virtual threads are not available, using platform threads");
+            }
+            return Executors.newCachedThreadPool(daemonThreads("url-droid-async-"));
+        }
+    }
+
+
+    /**
+     * Looked up by reflection, so the library still runs on Java 6.
+     */
+    private static class VirtualThreads {
+        static final ExecutorService POOL = create();
+
+
+        private static ExecutorService create() {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) m.invoke(null);
+            } catch (Exception ex) {
+                // Before Java 21, or a preview feature not enabled on 19/20
+                return null;
+            }
+        }
+    }
+
+
+    /**
+     * Returns a factory of daemon threads, so pending requests do not keep
+     * the JVM running.
+     *
+     * @param prefix Thread name prefix
+     * @return Thread factory
+     */
+    static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,235 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Settings and statistics for the persistent connections cache used when
+ * requests are made with {@link HttpClient#keepAlive(boolean)} enabled.
+ * <p>
+ * HttpURLConnection keeps idle connections in a JVM-wide cache, which is
+ * configured through system properties. The methods of this class set those
+ * properties, so they should be called once, before the first request is
+ * made: most implementations read them only when the cache is created.
+ * <p>
+ * A connection can be put back in the cache only if its response stream
+ * has been read until the end and closed. The client drains any unread
+ * content, up to {@link #maxDrainBytes(long)} bytes; if more content is
+ * left the connection is closed instead, because reading it would cost more
+ * than opening a new one.
+ *
+ * @author ps
+ */
+public final class KeepAlive {
+    public static final long DEFAULT_MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static volatile long maxDrainBytes = DEFAULT_MAX_DRAIN_BYTES;
+    private static final AtomicLong released = new AtomicLong();
+    private static final AtomicLong discarded = new AtomicLong();
+    private static final AtomicLong drainedBytes = new AtomicLong();
+
+
+    private KeepAlive() {
+    }
+
+
+    /**
+     * Enable or disable persistent connections for the whole JVM
+     * (system property 'http.keepAlive'). They are enabled by default.
+     *
+     * @param enabled Enable persistent connections
+     */
+    public static void enabled(boolean enabled) {
+        System.setProperty("http.keepAlive", String.valueOf(enabled));
+    }
+
+
+    /**
+     * Set the maximum number of idle connections kept for each host
+     * (system property 'http.maxConnections', default is 5).
+     *
+     * @param max Max idle connections per host
+     */
+    public static void maxIdlePerHost(int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("max must be positive");
+        System.setProperty("http.maxConnections", String.valueOf(max));
+    }
+
+
+    /**
+     * Set how long an idle connection is kept in the cache before being
+     * evicted, unless the server asks for a shorter time with the
+     * 'Keep-Alive' response header.
+     * <p>
+     * Sets system properties 'http.keepAlive.time.server' and
+     * 'http.keepAlive.time.proxy' (honoured by JDK 20+, older JDKs always
+     * use 5 seconds) and 'http.keepAliveDuration' (honoured by Android and
+     * the OkHttp implementation).
+     *
+     * @param seconds Idle time in seconds
+     */
+    public static void idleTimeout(int seconds) {
+        if (seconds < 1)
+            throw new IllegalArgumentException("seconds must be positive");
+        System.setProperty("http.keepAlive.time.server", String.valueOf(seconds));
+        System.setProperty("http.keepAlive.time.proxy", String.valueOf(seconds));
+        System.setProperty("http.keepAliveDuration", String.valueOf(seconds * 1000L));
+    }
+
+
+    /**
+     * Set the maximum number of unread response bytes that will be drained
+     * to put a connection back in the cache.
+     *
+     * @param max Max bytes, default is {@code DEFAULT_MAX_DRAIN_BYTES}
+     */
+    public static void maxDrainBytes(long max) {
+        if (max < 0)
+            throw new IllegalArgumentException("max must not be negative");
+        maxDrainBytes = max;
+    }
+
+
+    /**
+     * Returns a snapshot of the statistics collected so far.
+     *
+     * @return Statistics
+     */
+    public static Stats stats() {
+        return new Stats(released.get(), discarded.get(), drainedBytes.get());
+    }
+
+
+    /**
+     * Reset the statistics counters.
+     */
+    public static void resetStats() {
+        released.set(0);
+        discarded.set(0);
+        drainedBytes.set(0);
+    }
+
+
+    /**
+     * Release a connection after its response has been handled: drain and
+     * close the response stream so the connection can be reused, or
+     * disconnect if that is not possible (the rest of the content is too
+     * large, or cannot be read).
+     * <p>
+     * Only for a request which has completed normally: a failed request
+     * must be disconnected instead, since reading its response could block
+     * or start a new exchange.
+     *
+     * @param conn Connection
+     * @param closed True if the response stream has already been closed by
+     *     the client: the implementation has then decided what to do with
+     *     the connection
+     */
+    static void release(HttpURLConnection conn, boolean closed) {
+        if (closed) {
+            released.incrementAndGet();
+            return;
+        }
+        InputStream in;
+        try {
+            in = conn.getInputStream();
+        } catch (IOException ex) {
+            // Error status: the content, if any, is in the error stream
+            in = conn.getErrorStream();
+        }
+        if (drain(in)) {
+            released.incrementAndGet();
+        } else {
+            discarded.incrementAndGet();
+            conn.disconnect();
+        }
+    }
+
+
+    /**
+     * Read the stream until the end, up to the max drain size, then close it.
+     *
+     * @return True if the stream was fully read
+     */
+    private static boolean drain(InputStream in) {
+        if (in == null)
+            return true;
+        boolean complete = false;
+        byte[] buf = BufferPool.acquire();
+        try {
+            long left = maxDrainBytes;
+            long total = 0;
+            int l;
+            // Read at most one byte more than allowed, to know if the
+            // content is longer
+            while (left >= 0 &&
+                    (l = in.read(buf, 0, (int) Math.min(buf.length - 1, left) + 1)) != -1) {
+                total += l;
+                left -= l;
+            }
+            complete = left >= 0;
+            drainedBytes.addAndGet(total);
+        } catch (IOException ignore) {
+            // A broken connection must not be reused
+            complete = false;
+        } finally {
+            BufferPool.release(buf);
+            try {
+                in.close();
+            } catch (IOException ignore) { }
+        }
+        return complete;
+    }
+
+
+    /**
+     * Statistics about released connections.
+     */
+    public static class Stats {
+        private final long released;
+        private final long discarded;
+        private final long drainedBytes;
+
+
+        Stats(long released, long discarded, long drainedBytes) {
+            this.released = released;
+            this.discarded = discarded;
+            this.drainedBytes = drainedBytes;
+        }
+
+
+        /**
+         * @return Connections released to the cache for reuse
+         */
+        public long released() {
+            return released;
+        }
+
+
+        /**
+         * @return Connections closed because they could not be reused
+         */
+        public long discarded() {
+            return discarded;
+        }
+
+
+        /**
+         * @return Unread response bytes drained to allow reuse
+         */
+        public long drainedBytes() {
+            return drainedBytes;
+        }
+
+
+        @Override
+        public String toString() {
+            return "released=" + released + " discarded=" + discarded +
+                    " drainedBytes=" + drainedBytes;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Engine using the HttpURLConnection implementation of OkHttp 1.x or 2.x
+ * (package com.squareup.okhttp), if it is on the classpath.
+ * <p>
+ * The library is looked up with reflection only once. A single OkHttp
+ * client, with its connection pool, is shared by all the requests using
+ * the same proxy.
+ *
+ * @author ps
+ */
+class LegacyOkHttpEngine implements HttpEngine {
+    static final String NAME = "okhttp-legacy";
+
+    private final Class<?> clientClass;
+    private final Method setProxy;
+    // OkHttp 1.x: OkHttpClient.open(URL)
+    private final Method clientOpen;
+    // OkHttp 2.x: new OkUrlFactory(OkHttpClient).open(URL)
+    private final Constructor<?> newFactory;
+    private final Method factoryOpen;
+    // Client (1.x) or factory (2.x) for each proxy
+    private final ConcurrentMap<Object, Object> openers =
+            new ConcurrentHashMap<Object, Object>();
+    private static final Object DEFAULT_PROXY = new Object();
+
+
+    private LegacyOkHttpEngine(Class<?> clientClass) throws Exception {
+        this.clientClass = clientClass;
+        this.setProxy = clientClass.getMethod("setProxy", Proxy.class);
+        Class<?> factoryClass;
+        try {
+            factoryClass = Class.forName("com.squareup.okhttp.OkUrlFactory");
+        } catch (ClassNotFoundException ex) {
+            factoryClass = null;
+        }
+        if (factoryClass != null) {
+            this.newFactory = factoryClass.getConstructor(clientClass);
+            this.factoryOpen = factoryClass.getMethod("open", URL.class);
+            this.clientOpen = null;
+        } else {
+            this.newFactory = null;
+            this.factoryOpen = null;
+            this.clientOpen = clientClass.getMethod("open", URL.class);
+        }
+    }
+
+
+    /**
+     * Returns the engine, or null if OkHttp is not available.
+     */
+    static LegacyOkHttpEngine lookup() {
+        try {
+            return new LegacyOkHttpEngine(
+                    Class.forName("com.squareup.okhttp.OkHttpClient"));
+        } catch (Exception ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
+        }
+    }
+
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+
+    @Override
+    public HttpURLConnection open(URL url, Proxy proxy) throws IOException {
+        try {
+            Object opener = opener(proxy);
+            if (factoryOpen != null)
+                return (HttpURLConnection) factoryOpen.invoke(opener, url);
+            else
+                return (HttpURLConnection) clientOpen.invoke(opener, url);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    private Object opener(Proxy proxy) {
+        Object key = proxy == null ? DEFAULT_PROXY : proxy;
+        Object opener = openers.get(key);
+        if (opener == null) {
+            try {
+                Object client = clientClass.newInstance();
+                if (proxy != null)
+                    setProxy.invoke(client, proxy);
+                opener = newFactory != null ? newFactory.newInstance(client) : client;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            Object existing = openers.putIfAbsent(key, opener);
+            if (existing != null)
+                opener = existing;
+        }
+        return opener;
+    }
+}
@@ -0,0 +1,278 @@
+package it.idsolutions.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A part of a multipart/form-data request, added with
+ * {@link HttpClient#addMultiPart(MultiPart)}.
+ * <p>
+ * Parts are created with the static factory methods, then customized with
+ * the fluent setters. The size of text, byte array and file parts is
+ * known in advance, as is the size of streams created with a length: if
+ * the size of every part is known, the request is sent with a
+ * Content-Length instead of in chunks.
+ * <p>
+ * The content of streams and files is read when the request is executed.
+ * Files are closed after they have been sent; streams are not.
+ *
+ * @author ps
+ */
+public final class MultiPart {
+    /** Content sent as is (default) */
+    public static final String BINARY = "binary";
+    /** Content sent as is, declared as 8bit */
+    public static final String EIGHT_BIT = "8bit";
+    /** Content encoded as base64, in lines of 76 chars */
+    public static final String BASE64 = "base64";
+
+    private final String name;
+    private String filename;
+    private String type;
+    private String transferEncoding = BINARY;
+    private Map<String, String> headers;
+
+    private final byte[] bytes;
+    private final File file;
+    private final InputStream data;
+    private final long length;
+
+
+    private MultiPart(String name, byte[] bytes, File file, InputStream data,
+            long length) {
+        if (name == null)
+            throw new IllegalArgumentException("name must not be null");
+        this.name = name;
+        this.bytes = bytes;
+        this.file = file;
+        this.data = data;
+        this.length = length;
+    }
+
+
+    /**
+     * Create a text part, encoded as UTF-8.
+     *
+     * @param name
+     *            Content-disposition name
+     * @param value
+     *            Text value
+     * @return The part
+     */
+    public static MultiPart text(String name, String value) {
+        try {
+            byte[] b = value.getBytes("UTF-8");
+            return new MultiPart(name, b, null, null, b.length);
+        } catch (UnsupportedEncodingException ex) {
+            // We use utf-8 hardcoded, should never throw
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    /**
+     * Create a binary part from a byte array.
+     *
+     * @param name
+     *            Content-disposition name
+     * @param filename
+     *            Content-disposition filename, or null
+     * @param type
+     *            Content-type, or null for 'application/octet-stream'
+     * @param data
+     *            Content
+     * @return The part
+     */
+    public static MultiPart bytes(String name, String filename, String type,
+            byte[] data) {
+        return new MultiPart(name, data, null, null, data.length)
+                .filename(filename)
+                .contentType(type);
+    }
+
+
+    /**
+     * Create a part from a file. The filename is the name of the file, and
+     * the length is read when the request is executed.
+     *
+     * @param name
+     *            Content-disposition name
+     * @param file
+     *            File to send
+     * @return The part
+     */
+    public static MultiPart file(String name, File file) {
+        return new MultiPart(name, null, file, null, -1)
+                .filename(file.getName());
+    }
+
+
+    /**
+     * Create a part from a stream.
+     *
+     * @param name
+     *            Content-disposition name
+     * @param filename
+     *            Content-disposition filename, or null
+     * @param type
+     *            Content-type, or null for 'application/octet-stream'
+     * @param data
+     *            Content, which is not closed
+     * @param length
+     *            Number of bytes to read from the stream, or -1 to read it
+     *            to the end (the size of the request is then unknown)
+     * @return The part
+     */
+    public static MultiPart stream(String name, String filename, String type,
+            InputStream data, long length) {
+        if (data == null)
+            throw new IllegalArgumentException("data must not be null");
+        return new MultiPart(name, null, null, data, length < 0 ? -1 : length)
+                .filename(filename)
+                .contentType(type);
+    }
+
+
+    /**
+     * Set the content-disposition filename.
+     *
+     * @param filename
+     *            Filename, or null to omit it
+     * @return Self for chaining
+     */
+    public MultiPart filename(String filename) {
+        this.filename = filename;
+        return this;
+    }
+
+
+    /**
+     * Set the content-type of the part.
+     *
+     * @param type
+     *            Content-type, or null for 'application/octet-stream'
+     * @return Self for chaining
+     */
+    public MultiPart contentType(String type) {
+        this.type = type;
+        return this;
+    }
+
+
+    /**
+     * Set the Content-Transfer-Encoding of the part. Only needed by servers
+     * that expect binary content to be encoded.
+     *
+     * @param encoding
+     *            One of {@code BINARY} (default), {@code EIGHT_BIT} or
+     *            {@code BASE64}
+     * @return Self for chaining
+     */
+    public MultiPart transferEncoding(String encoding) {
+        if (!BINARY.equalsIgnoreCase(encoding) && !EIGHT_BIT.equalsIgnoreCase(encoding)
+                && !BASE64.equalsIgnoreCase(encoding))
+            throw new IllegalArgumentException("Unsupported transfer encoding: " + encoding);
+        this.transferEncoding = encoding.toLowerCase();
+        return this;
+    }
+
+
+    /**
+     * Add a header to the part.
+     *
+     * @param name
+     *            Header name
+     * @param value
+     *            Header value
+     * @return Self for chaining
+     */
+    public MultiPart header(String name, String value) {
+        if (name.indexOf('\r') >= 0 || name.indexOf('\n') >= 0
+                || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("Invalid header: " + name);
+        if (headers == null)
+            headers = new LinkedHashMap<String, String>();
+        headers.put(name, value);
+        return this;
+    }
+
+
+    String name() {
+        return name;
+    }
+
+
+    /**
+     * Build the headers of the part, terminated by an empty line.
+     */
+    String head() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("Content-Disposition:form-data;name=\"").append(quote(name)).append('"');
+        if (filename != null)
+            sb.append(";filename=\"").append(quote(filename)).append('"');
+        sb.append("\r\n");
+        sb.append("Content-Type: ").append(type != null ? type : "application/octet-stream")
+                .append("\r\n");
+        if (!BINARY.equals(transferEncoding))
+            sb.append("Content-Transfer-Encoding: ").append(transferEncoding).append("\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> e : headers.entrySet())
+                sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns the length of the content before encoding, or -1 if unknown.
+     */
+    long length() {
+        return file != null ? file.length() : length;
+    }
+
+
+    boolean isBase64() {
+        return BASE64.equals(transferEncoding);
+    }
+
+
+    /**
+     * Returns the content, if it is in memory, or null.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+
+    /**
+     * Open the content. The stream must be closed only if {@link #ownsStream()}.
+     */
+    InputStream open() throws IOException {
+        if (bytes != null)
+            return new ByteArrayInputStream(bytes);
+        if (file != null)
+            return new FileInputStream(file);
+        return data;
+    }
+
+
+    boolean ownsStream() {
+        return data == null;
+    }
+
+
+    /**
+     * Escape a name for a quoted header param, as browsers do.
+     */
+    private static String quote(String s) {
+        return s.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+}
@@ -0,0 +1,220 @@
+package it.idsolutions.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Encodes the parts of a multipart/form-data request.
+ * <p>
+ * Each request has a random boundary. The length of the body is computed
+ * in advance when the length of every part is known. Content is copied
+ * through a pooled 64 KB buffer, and base64 parts are encoded in the same
+ * buffer, so no memory is allocated per part.
+ *
+ * @author ps
+ */
+final class MultipartBody {
+    private static final byte[] CRLF = { '\r', '\n' };
+    // Bytes in a line of 76 base64 chars
+    private static final int BASE64_LINE = 57;
+    // Input bytes encoded at once: whole lines, leaving room in the buffer
+    // for their encoding (78 bytes per line, with CRLF)
+    private static final int BASE64_BLOCK =
+            BufferPool.BUFFER_SIZE / (BASE64_LINE + 78) * BASE64_LINE;
+    private static final byte[] BASE64_CHARS = ascii(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+
+    private final String boundary;
+    private final List<MultiPart> parts;
+    private final byte[][] heads;
+    private final byte[] tail;
+    private final long length;
+
+
+    MultipartBody(Collection<MultiPart> parts) {
+        this.boundary = newBoundary();
+        this.parts = new ArrayList<MultiPart>(parts);
+        this.heads = new byte[this.parts.size()][];
+        long total = 0;
+        for (int i = 0; i < heads.length; i++) {
+            MultiPart p = this.parts.get(i);
+            heads[i] = utf8("--" + boundary + "\r\n" + p.head());
+            long l = p.length();
+            if (l >= 0 && p.isBase64())
+                l = base64Length(l);
+            if (l < 0 || total < 0)
+                total = -1;
+            else
+                total += heads[i].length + l + CRLF.length;
+        }
+        tail = ascii("--" + boundary + "--\r\n");
+        this.length = total < 0 ? -1 : total + tail.length;
+    }
+
+
+    String contentType() {
+        return "multipart/form-data;boundary=" + boundary;
+    }
+
+
+    /**
+     * Returns the length of the encoded body, or -1 if unknown.
+     */
+    long length() {
+        return length;
+    }
+
+
+    void writeTo(OutputStream out) throws IOException {
+        byte[] buf = BufferPool.acquire();
+        try {
+            for (int i = 0; i < heads.length; i++) {
+                MultiPart p = parts.get(i);
+                out.write(heads[i]);
+                if (p.bytes() != null && !p.isBase64()) {
+                    out.write(p.bytes());
+                } else {
+                    long expected = p.length();
+                    InputStream in = p.open();
+                    try {
+                        long n = p.isBase64() ? copyBase64(in, expected, out, buf)
+                                : copy(in, expected, out, buf);
+                        if (expected >= 0 && n < expected)
+                            throw new EOFException("Part " + p.name() + ": expected "
+                                    + expected + " bytes, read " + n);
+                    } finally {
+                        if (p.ownsStream())
+                            in.close();
+                    }
+                }
+                out.write(CRLF);
+            }
+            out.write(tail);
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+
+    /**
+     * Copy at most length bytes (or the whole stream, if length is -1).
+     */
+    private static long copy(InputStream in, long length, OutputStream out,
+            byte[] buf) throws IOException {
+        long total = 0;
+        while (length < 0 || total < length) {
+            int max = length < 0 ? buf.length : (int) Math.min(buf.length, length - total);
+            int n = in.read(buf, 0, max);
+            if (n == -1)
+                break;
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+
+    /**
+     * Encode at most length bytes (or the whole stream, if length is -1) as
+     * base64 lines. The input is read at the start of the buffer, in blocks
+     * of whole lines, and encoded after it.
+     */
+    private static long copyBase64(InputStream in, long length, OutputStream out,
+            byte[] buf) throws IOException {
+        long total = 0;
+        boolean firstLine = true;
+        boolean eof = false;
+        while (!eof) {
+            int want = length < 0 ? BASE64_BLOCK : (int) Math.min(BASE64_BLOCK, length - total);
+            int fill = 0;
+            int n = 0;
+            while (fill < want && (n = in.read(buf, fill, want - fill)) != -1)
+                fill += n;
+            total += fill;
+            eof = n == -1 || fill < BASE64_BLOCK;
+            int o = BASE64_BLOCK;
+            for (int off = 0; off < fill; off += BASE64_LINE) {
+                if (!firstLine) {
+                    buf[o++] = '\r';
+                    buf[o++] = '\n';
+                }
+                firstLine = false;
+                o = encode(buf, off, Math.min(BASE64_LINE, fill - off), buf, o);
+            }
+            out.write(buf, BASE64_BLOCK, o - BASE64_BLOCK);
+        }
+        return total;
+    }
+
+
+    private static int encode(byte[] in, int off, int len, byte[] out, int o) {
+        int end = off + len;
+        for (int i = off; i < end; i += 3) {
+            int b0 = in[i] & 0xff;
+            int b1 = i + 1 < end ? in[i + 1] & 0xff : 0;
+            int b2 = i + 2 < end ? in[i + 2] & 0xff : 0;
+            out[o++] = BASE64_CHARS[b0 >>> 2];
+            out[o++] = BASE64_CHARS[((b0 & 0x3) << 4) | (b1 >>> 4)];
+            out[o++] = i + 1 < end ? BASE64_CHARS[((b1 & 0xf) << 2) | (b2 >>> 6)] : (byte) '=';
+            out[o++] = i + 2 < end ? BASE64_CHARS[b2 & 0x3f] : (byte) '=';
+        }
+        return o;
+    }
+
+
+    /**
+     * Length of n bytes encoded as base64 lines of 76 chars, separated by
+     * CRLF.
+     */
+    static long base64Length(long n) {
+        long chars = (n + 2) / 3 * 4;
+        long lines = (chars + 75) / 76;
+        return lines == 0 ? 0 : chars + (lines - 1) * 2;
+    }
+
+
+    private static String newBoundary() {
+        byte[] b = new byte[16];
+        Random.INSTANCE.nextBytes(b);
+        StringBuilder sb = new StringBuilder("----UrlDroidBoundary");
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(x & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    /**
+     * Seeded on first use.
+     */
+    private static class Random {
+        static final SecureRandom INSTANCE = new SecureRandom();
+    }
+}
@@ -0,0 +1,165 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded byte pipe between a writer thread and a reader thread.
+ * <p>
+ * Like PipedInputStream/PipedOutputStream, but it waits on a lock instead
+ * of a monitor, so a virtual thread blocked on the pipe does not pin its
+ * carrier thread; and it does not poll, or check that the threads are
+ * alive.
+ *
+ * @author ps
+ */
+final class Pipe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+    private final byte[] buffer;
+    private int readPos;
+    private int count;
+    private boolean sinkClosed;
+    private boolean sourceClosed;
+
+    private final InputStream source = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (sourceClosed)
+                        throw new IOException("Pipe closed");
+                    if (sinkClosed)
+                        return -1;
+                    await(readable);
+                }
+                int n = Math.min(len, Math.min(count, buffer.length - readPos));
+                System.arraycopy(buffer, readPos, b, off, n);
+                readPos = (readPos + n) % buffer.length;
+                count -= n;
+                writable.signalAll();
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                sourceClosed = true;
+                count = 0;
+                writable.signalAll();
+                readable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    while (count == buffer.length && !sourceClosed)
+                        await(writable);
+                    if (sourceClosed)
+                        throw new IOException("Pipe closed by the reader");
+                    if (sinkClosed)
+                        throw new IOException("Pipe closed");
+                    int writePos = (readPos + count) % buffer.length;
+                    int n = Math.min(len, Math.min(buffer.length - count,
+                            buffer.length - writePos));
+                    System.arraycopy(b, off, buffer, writePos, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    readable.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                sinkClosed = true;
+                readable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+
+    Pipe(int size) {
+        buffer = new byte[size];
+    }
+
+
+    /**
+     * Returns the end of the pipe to read from.
+     */
+    InputStream source() {
+        return source;
+    }
+
+
+    /**
+     * Returns the end of the pipe to write to. Closing it signals the end
+     * of the data to the reader.
+     */
+    OutputStream sink() {
+        return sink;
+    }
+
+
+    private static void await(Condition c) throws InterruptedIOException {
+        try {
+            c.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
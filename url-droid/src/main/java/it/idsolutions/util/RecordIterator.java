@@ -0,0 +1,283 @@
+package it.idsolutions.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * The records of a newline-delimited response ('application/x-ndjson',
+ * JSON Lines), read lazily from the open connection: returned by
+ * {@link HttpClient#records()} for a request made with
+ * {@link HttpClient#returnRecords(Class, HttpClientSpec.DataAdapter)}.
+ * <pre>
+ * HttpClient c = new HttpClient("http://localhost:3000/export")
+ *     .returnRecords(Item.class, new JacksonAdapter())
+ *     .get();
+ * RecordIterator&lt;Item&gt; items = c.records();
+ * try {
+ *     for (Item item : items)
+ *         process(item);
+ * } finally {
+ *     items.close();
+ * }
+ * </pre>
+ * Each record is a line, deserialized by the adapter when the caller asks
+ * for it, so only one line at a time is held in memory, whatever the size
+ * of the response. A {@link HttpClientSpec.StreamDataAdapter} parses the
+ * line from its bytes, without decoding it to a String first. Blank lines
+ * are skipped, and CRLF line breaks are accepted. The charset must be
+ * ASCII-compatible (NDJSON is always UTF-8).
+ * <p>
+ * The connection is released when the last record has been read. A caller
+ * which stops before the end must close the iterator: the connection is
+ * then closed, rather than reading the rest of the response to reuse it.
+ *
+ * @param <T> Type of the records
+ * @author ps
+ */
+public class RecordIterator<T> implements Iterator<T>, Iterable<T>, Closeable {
+    private final HttpURLConnection conn;
+    private final InputStream in;
+    private final Charset charset;
+    private final Object type;
+    private final HttpClientSpec.DataAdapter adapter;
+    private final boolean keepAlive;
+    private byte[] buf;
+    private int pos;
+    private int len;
+    // A line which spans many reads
+    private byte[] line = new byte[0];
+    private int lineLength;
+    private final LineInputStream lineStream = new LineInputStream();
+    private long lineNumber;
+    private T next;
+    private boolean ready;
+    private boolean eof;
+    private boolean closed;
+    private boolean iterated;
+
+
+    RecordIterator(HttpURLConnection conn, InputStream in, Charset charset,
+            Object type, HttpClientSpec.DataAdapter adapter, boolean keepAlive) {
+        this.conn = conn;
+        this.in = in;
+        this.charset = charset;
+        this.type = type;
+        this.adapter = adapter;
+        this.keepAlive = keepAlive;
+        this.buf = BufferPool.acquire();
+    }
+
+
+    /**
+     * Returns this iterator, for a for-each loop. The records can be
+     * iterated only once.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        if (iterated)
+            throw new IllegalStateException("Records can be iterated only once");
+        iterated = true;
+        return this;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        if (!ready && !closed)
+            ready = advance();
+        return ready;
+    }
+
+
+    /**
+     * Returns the next record.
+     *
+     * @throws RuntimeException If the response cannot be read, or a line
+     *     cannot be deserialized: the iterator is closed
+     */
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        T record = next;
+        next = null;
+        ready = false;
+        return record;
+    }
+
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * @return Number of lines read so far, blank lines included
+     */
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+
+    /**
+     * Release the connection: it is reused only if the response has been
+     * read until the end.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        ready = false;
+        next = null;
+        BufferPool.release(buf);
+        buf = null;
+        line = null;
+        if (eof) {
+            if (keepAlive)
+                KeepAlive.release(conn, false);
+            else
+                conn.disconnect();
+            return;
+        }
+        conn.disconnect();
+        try {
+            // Returns the Inflater of a compressed response to the pool
+            in.close();
+        } catch (IOException ignore) {
+            // Already disconnected
+        }
+    }
+
+
+    /**
+     * Read the next non-blank line and deserialize it.
+     *
+     * @return False at the end of the response
+     */
+    private boolean advance() {
+        while (true) {
+            if (pos == len && !fill()) {
+                eof = true;
+                if (lineLength > 0) {
+                    int n = lineLength;
+                    lineLength = 0;
+                    if (record(line, 0, n))
+                        return true;
+                }
+                close();
+                return false;
+            }
+            int nl = pos;
+            while (nl < len && buf[nl] != '\n')
+                nl++;
+            if (nl == len) {
+                append(buf, pos, len - pos);
+                pos = len;
+                continue;
+            }
+            int start = pos;
+            pos = nl + 1;
+            if (lineLength > 0) {
+                append(buf, start, nl - start);
+                int n = lineLength;
+                lineLength = 0;
+                if (record(line, 0, n))
+                    return true;
+            } else if (record(buf, start, nl - start)) {
+                // Parsed in place, without copying the line
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Deserialize a line into {@link #next}.
+     *
+     * @return False if the line is blank
+     */
+    @SuppressWarnings("unchecked")
+    private boolean record(byte[] b, int off, int n) {
+        lineNumber++;
+        if (n > 0 && b[off + n - 1] == '\r')
+            n--;
+        int i = off;
+        while (i < off + n && (b[i] == ' ' || b[i] == '\t'))
+            i++;
+        if (i == off + n)
+            return false;
+        try {
+            if (adapter instanceof HttpClientSpec.StreamDataAdapter) {
+                HttpClientSpec.StreamDataAdapter a = (HttpClientSpec.StreamDataAdapter) adapter;
+                lineStream.set(b, off, n);
+                if (type instanceof Class<?>)
+                    next = (T) a.deserialize(lineStream, charset.name(), (Class<?>) type);
+                else
+                    next = a.<T>deserializeRef(lineStream, charset.name(), type);
+            } else {
+                String s = TextDecoder.decode(b, off, n, charset);
+                if (type instanceof Class<?>)
+                    next = (T) adapter.deserialize(s, (Class<?>) type);
+                else
+                    next = adapter.<T>deserializeRef(s, type);
+            }
+        } catch (Exception ex) {
+            close();
+            throw new RuntimeException("Invalid record at line " + lineNumber, ex);
+        }
+        return true;
+    }
+
+
+    private boolean fill() {
+        try {
+            int l = in.read(buf, 0, buf.length);
+            if (l == -1)
+                return false;
+            pos = 0;
+            len = l;
+            return true;
+        } catch (IOException ex) {
+            close();
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    private void append(byte[] b, int off, int n) {
+        if (lineLength + n > line.length) {
+            byte[] l = new byte[Math.max(Math.max(256, line.length * 2), lineLength + n)];
+            System.arraycopy(line, 0, l, 0, lineLength);
+            line = l;
+        }
+        System.arraycopy(b, off, line, lineLength, n);
+        lineLength += n;
+    }
+
+
+    /**
+     * A stream over a line, reused for all the lines.
+     */
+    private static class LineInputStream extends ByteArrayInputStream {
+        LineInputStream() {
+            super(new byte[0]);
+        }
+
+
+        void set(byte[] b, int off, int n) {
+            this.buf = b;
+            this.pos = off;
+            this.count = off + n;
+            this.mark = off;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package it.idsolutions.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+
+/**
+ * A response body read in memory up to a limit, and spilled to a temporary
+ * file beyond it, for {@link HttpClient#responseMemoryLimit(long)}.
+ * <p>
+ * The file is deleted by {@link #delete()}, which is called by the client
+ * when the content has been read back, discarded, or replaced by the
+ * response of a new execution, and when the request fails. It is not
+ * deleted on garbage collection: a content which is never read stays on
+ * disk until the client discards it.
+ *
+ * @author ps
+ */
+final class ResponseBuffer {
+    // Largest array most JVMs can allocate
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final byte[] bytes;
+    private final File file;
+    private final long length;
+
+
+    private ResponseBuffer(byte[] bytes, File file, long length) {
+        this.bytes = bytes;
+        this.file = file;
+        this.length = length;
+    }
+
+
+    /**
+     * Read a stream until the end, and close it.
+     *
+     * @param in Response body
+     * @param expected Expected length, or -1 if unknown
+     * @param memoryLimit Max bytes kept in memory: a larger content than
+     *     an array can hold always goes to the file
+     */
+    static ResponseBuffer read(InputStream in, long expected, long memoryLimit)
+            throws IOException {
+        memoryLimit = Math.min(memoryLimit, MAX_ARRAY_SIZE);
+        try {
+            if (expected > memoryLimit)
+                return spill(in, new byte[0], 0, -1);
+            // The expected length is only a hint: the body may be longer
+            byte[] buf = new byte[(int) Math.min(memoryLimit, expected >= 0 ? expected : 8192)];
+            int n = 0;
+            while (true) {
+                if (n == buf.length) {
+                    int b = in.read();
+                    if (b == -1)
+                        return new ResponseBuffer(buf, null, n);
+                    if (n >= memoryLimit)
+                        return spill(in, buf, n, b);
+                    buf = Arrays.copyOf(buf, (int) Math.min(memoryLimit, Math.max(buf.length * 2L, 8192)));
+                    buf[n++] = (byte) b;
+                }
+                int l = in.read(buf, n, buf.length - n);
+                if (l == -1)
+                    return new ResponseBuffer(Arrays.copyOf(buf, n), null, n);
+                n += l;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Write the bytes read so far (and the next byte, if not -1), then the
+     * rest of the stream, to a temporary file.
+     */
+    private static ResponseBuffer spill(InputStream in, byte[] head, int n,
+            int next) throws IOException {
+        File file = File.createTempFile("url-droid", ".body");
+        boolean done = false;
+        try {
+            long length = n;
+            OutputStream out = new FileOutputStream(file);
+            byte[] buf = BufferPool.acquire();
+            try {
+                out.write(head, 0, n);
+                if (next != -1) {
+                    out.write(next);
+                    length++;
+                }
+                int l;
+                while ((l = in.read(buf)) != -1) {
+                    out.write(buf, 0, l);
+                    length += l;
+                }
+            } finally {
+                BufferPool.release(buf);
+                out.close();
+            }
+            done = true;
+            return new ResponseBuffer(null, file, length);
+        } finally {
+            if (!done)
+                file.delete();
+        }
+    }
+
+
+    boolean inMemory() {
+        return file == null;
+    }
+
+
+    /**
+     * Returns the content, if it is in memory.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+
+    long length() {
+        return length;
+    }
+
+
+    InputStream open() throws IOException {
+        return bytes != null ? new ByteArrayInputStream(bytes) : new FileInputStream(file);
+    }
+
+
+    void delete() {
+        if (file != null)
+            file.delete();
+    }
+}
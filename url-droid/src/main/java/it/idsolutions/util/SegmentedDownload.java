@@ -0,0 +1,760 @@
+package it.idsolutions.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Downloads a large file with many concurrent requests, each for a range
+ * of its bytes, to make better use of links with a high latency than a
+ * single connection can.
+ * <p>
+ * A HEAD request reads the length of the content and checks that the
+ * server accepts ranges ('Accept-Ranges: bytes'). The content is then split
+ * into {@link #segments(int)} ranges, fetched concurrently and written
+ * each in its own region of a file pre-allocated to the full length. If the
+ * server does not accept ranges, the file is downloaded with a single
+ * request, as by {@link HttpClient#download(File)}.
+ * <pre>
+ * SegmentedDownload.Report r = new SegmentedDownload("http://localhost:3000/big.iso")
+ *     .segments(8)
+ *     .verifyChecksum("SHA-256", expected)
+ *     .download(new File("big.iso"));
+ * </pre>
+ * The content is written to a hidden '.part' file in the same directory,
+ * which replaces the target only when all the ranges have been received
+ * (and verified), so the target never contains a partial download.
+ * <p>
+ * A failed range is requested again from its first missing byte, up to
+ * {@link #retries(int)} times in a row without progress. If a range still
+ * fails, the download fails, but the bytes received so far are kept, with
+ * a '.part.state' file describing them: a new download of the same URL to
+ * the same target requests only the missing ranges, if the content has not
+ * changed on the server (according to its ETag or Last-Modified date). The
+ * same check is sent with each range request ('If-Range'), so a content
+ * changed during the download is never mixed with the old one.
+ *
+ * @author ps
+ */
+public class SegmentedDownload {
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_RETRIES = 3;
+    private static final long RETRY_DELAY_MS = 500;
+
+    private final HttpClientTemplate template;
+    private final String url;
+    private int segments = DEFAULT_SEGMENTS;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private int retries = DEFAULT_RETRIES;
+    private Executor executor;
+    private String checksumAlgorithm;
+    private String expectedChecksum;
+
+
+    /**
+     * Returns a new download of the specified URL.
+     *
+     * @param url The URL, already encoded
+     */
+    public SegmentedDownload(String url) {
+        this(null, url);
+    }
+
+
+    /**
+     * Returns a new download of the specified URL, whose requests have the
+     * settings of a template (credentials, proxy, timeouts...).
+     *
+     * @param template Template, or null
+     * @param url The URL, already encoded
+     */
+    public SegmentedDownload(HttpClientTemplate template, String url) {
+        if (url == null)
+            throw new IllegalArgumentException("url is null");
+        this.template = template;
+        this.url = url;
+    }
+
+
+    /**
+     * Set the number of ranges fetched concurrently.
+     *
+     * @param segments Number of ranges, default is {@code DEFAULT_SEGMENTS}
+     * @return Self for chaining
+     */
+    public SegmentedDownload segments(int segments) {
+        if (segments < 1)
+            throw new IllegalArgumentException("segments must be positive");
+        this.segments = segments;
+        return this;
+    }
+
+
+    /**
+     * Set the min size of a range: smaller files are split in fewer ranges,
+     * as the requests would cost more than they save.
+     *
+     * @param bytes Min size in bytes, default is {@code DEFAULT_MIN_SEGMENT_SIZE}
+     * @return Self for chaining
+     */
+    public SegmentedDownload minSegmentSize(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("bytes must be positive");
+        this.minSegmentSize = bytes;
+        return this;
+    }
+
+
+    /**
+     * Set how many times a range is requested again after a failure without
+     * any progress. The counter restarts when a failed request has received
+     * some bytes.
+     *
+     * @param retries Max retries, default is {@code DEFAULT_RETRIES}
+     * @return Self for chaining
+     */
+    public SegmentedDownload retries(int retries) {
+        if (retries < 0)
+            throw new IllegalArgumentException("retries must not be negative");
+        this.retries = retries;
+        return this;
+    }
+
+
+    /**
+     * Set the executor that runs the range requests. It should be able to
+     * run {@link #segments(int)} tasks at once.
+     *
+     * @param executor Executor, or null to use {@link HttpExecutors#getDefault()}
+     * @return Self for chaining
+     */
+    public SegmentedDownload executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    /**
+     * Compute the checksum of the downloaded file, and optionally verify it.
+     *
+     * @param algorithm Digest algorithm, i.e. "SHA-256" or "MD5"
+     * @param expected Expected checksum in hex, or null to compute it only
+     * @return Self for chaining
+     * @see HttpClient#verifyChecksum(String, String)
+     */
+    public SegmentedDownload verifyChecksum(String algorithm, String expected) {
+        this.checksumAlgorithm = algorithm;
+        this.expectedChecksum = expected;
+        return this;
+    }
+
+
+    /**
+     * Download the content to a file, and wait for all the ranges to be
+     * received.
+     *
+     * @param file Target file
+     * @return Report
+     * @throws RuntimeException If the download fails: unless the content
+     *     has changed on the server, the bytes received are kept for the
+     *     next attempt
+     * @throws InterruptedException If the thread is interrupted while
+     *     waiting: the requests in progress are aborted, and the bytes
+     *     received are kept for the next attempt
+     */
+    public Report download(File file) throws InterruptedException {
+        long begin = System.nanoTime();
+        HttpClient probe = request()
+                .noExceptions()
+                .rawStreamCallback(new HttpClient.RawStreamCallback() {
+                    @Override
+                    public void onRawStream(int code, InputStream in) {
+                        // No content
+                    }
+
+
+                    @Override
+                    public void onRawErrorStream(int code, InputStream err) {
+                        // Not ranged, the GET request will tell
+                    }
+                });
+        probe.execute("HEAD");
+        long length = parseLong(header(probe, "Content-Length"));
+        boolean ranged = probe.code() / 100 == 2 && length > 0
+                && "bytes".equalsIgnoreCase(header(probe, "Accept-Ranges"))
+                && header(probe, "Content-Encoding") == null;
+        if (!ranged) {
+            HttpClient c = request();
+            if (checksumAlgorithm != null)
+                c.verifyChecksum(checksumAlgorithm, expectedChecksum);
+            c.download(file);
+            return new Report(file.length(), 1, 0, 0, c.checksum(),
+                    System.nanoTime() - begin);
+        }
+
+        String etag = header(probe, "ETag");
+        String validator = etag != null && !etag.startsWith("W/") ?
+                etag : header(probe, "Last-Modified");
+        return new Run(file, length, validator).await(begin);
+    }
+
+
+    /**
+     * Returns a new request for the URL, with the settings of the template.
+     * Ranges must not be compressed.
+     */
+    private HttpClient request() {
+        HttpClient c = template != null ? template.request(url) : new HttpClient(url);
+        return c.keepAlive(true).compressResponse(false);
+    }
+
+
+    /**
+     * Returns the first value of a response header, ignoring the case of
+     * its name.
+     */
+    static String header(HttpClient c, String name) {
+        Map<String, List<String>> headers = c.responseHeaders();
+        if (headers == null)
+            return null;
+        for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+            if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty())
+                return e.getValue().get(0);
+        }
+        return null;
+    }
+
+
+    /**
+     * Parse a Content-Range header, "bytes first-last/length" (the length
+     * may be "*").
+     *
+     * @return First byte, last byte and length (-1 if unknown), or null if
+     *     the header is missing or invalid
+     */
+    static long[] contentRange(String value) {
+        if (value == null)
+            return null;
+        value = value.trim();
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6))
+            return null;
+        int dash = value.indexOf('-', 6);
+        int slash = value.indexOf('/', dash + 1);
+        if (dash < 0 || slash < 0)
+            return null;
+        long first = parseLong(value.substring(6, dash));
+        long last = parseLong(value.substring(dash + 1, slash));
+        String total = value.substring(slash + 1).trim();
+        long length = total.equals("*") ? -1 : parseLong(total);
+        if (first < 0 || last < first || (length < 0 && !total.equals("*")))
+            return null;
+        return new long[] { first, last, length };
+    }
+
+
+    private static long parseLong(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Report of a completed download.
+     */
+    public static class Report {
+        private final long length;
+        private final int segments;
+        private final long resumedBytes;
+        private final int retries;
+        private final String checksum;
+        private final long elapsedNanos;
+
+
+        Report(long length, int segments, long resumedBytes, int retries,
+                String checksum, long elapsedNanos) {
+            this.length = length;
+            this.segments = segments;
+            this.resumedBytes = resumedBytes;
+            this.retries = retries;
+            this.checksum = checksum;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+
+        /**
+         * @return Length of the file
+         */
+        public long length() {
+            return length;
+        }
+
+
+        /**
+         * @return Number of ranges, 1 if the server does not accept ranges
+         */
+        public int segments() {
+            return segments;
+        }
+
+
+        /**
+         * @return Bytes received by a previous, failed download
+         */
+        public long resumedBytes() {
+            return resumedBytes;
+        }
+
+
+        /**
+         * @return Range requests made again after a failure
+         */
+        public int retries() {
+            return retries;
+        }
+
+
+        /**
+         * @return Checksum in hex, if requested with
+         *     {@link SegmentedDownload#verifyChecksum(String, String)}
+         */
+        public String checksum() {
+            return checksum;
+        }
+
+
+        /**
+         * @return Wall-clock time of the download
+         */
+        public long elapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+
+        @Override
+        public String toString() {
+            return "length=" + length + " segments=" + segments + " resumedBytes="
+                    + resumedBytes + " retries=" + retries + " elapsedMillis="
+                    + elapsedMillis();
+        }
+    }
+
+
+    /**
+     * The content is no longer the one being downloaded, or the server
+     * ignored the range: retrying would not help.
+     */
+    private static class ContentChangedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+
+        ContentChangedException(String message) {
+            super(message);
+        }
+    }
+
+
+    /**
+     * State of one execution of {@link SegmentedDownload#download(File)}.
+     */
+    private class Run {
+        private final File target;
+        private final File part;
+        private final File state;
+        private final long length;
+        private final String validator;
+        private final List<Segment> list = new ArrayList<Segment>();
+        private final AtomicInteger retried = new AtomicInteger();
+        // Not a monitor: a virtual thread forcing the file to disk while
+        // holding it would pin its carrier thread
+        private final ReentrantLock stateLock = new ReentrantLock();
+        private FileChannel channel;
+        private long resumed;
+        private volatile boolean stop;
+
+
+        Run(File target, long length, String validator) {
+            File dir = target.getAbsoluteFile().getParentFile();
+            this.target = target;
+            this.part = new File(dir, "." + target.getName() + ".part");
+            this.state = new File(dir, "." + target.getName() + ".part.state");
+            this.length = length;
+            this.validator = validator;
+        }
+
+
+        Report await(long begin) throws InterruptedException {
+            RandomAccessFile raf = null;
+            boolean changed = false;
+            try {
+                boolean resume = loadState();
+                raf = new RandomAccessFile(part, "rw");
+                if (!resume) {
+                    state.delete();
+                    split();
+                    // Reserve the space now: it fails early if the disk is
+                    // full, and the ranges can be written in any order
+                    raf.setLength(0);
+                    raf.setLength(length);
+                }
+                channel = raf.getChannel();
+
+                CountDownLatch latch = new CountDownLatch(list.size());
+                Executor e = executor != null ? executor : HttpExecutors.getDefault();
+                for (Segment s : list)
+                    s.start(e, latch);
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    stop = true;
+                    for (Segment s : list)
+                        s.abort();
+                    awaitQuietly(latch);
+                    throw ex;
+                }
+
+                Throwable error = null;
+                long received = 0;
+                for (Segment s : list) {
+                    received += s.done;
+                    if (s.error != null && (error == null || isContentChanged(s.error)))
+                        error = s.error;
+                }
+                if (error != null) {
+                    changed = isContentChanged(error);
+                    throw new RuntimeException("Incomplete download of " + url + ": received "
+                            + received + " of " + length + " bytes", error);
+                }
+
+                channel.force(false);
+                raf.close();
+                raf = null;
+                String checksum = checksumAlgorithm != null ? verify() : null;
+                if (!part.renameTo(target) && !(target.delete() && part.renameTo(target)))
+                    throw new IOException("Cannot rename " + part + " to " + target);
+                state.delete();
+                return new Report(length, list.size(), resumed, retried.get(), checksum,
+                        System.nanoTime() - begin);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (raf != null) {
+                    if (changed) {
+                        close(raf);
+                        part.delete();
+                        state.delete();
+                    } else {
+                        saveState();
+                        close(raf);
+                    }
+                }
+            }
+        }
+
+
+        /**
+         * Split the content in ranges of about the same size.
+         */
+        private void split() {
+            int n = (int) Math.max(1, Math.min(segments, length / minSegmentSize));
+            long size = length / n;
+            for (int i = 0; i < n; i++) {
+                long start = i * size;
+                list.add(new Segment(start, i == n - 1 ? length : start + size, 0));
+            }
+        }
+
+
+        /**
+         * Load the ranges of a previous download, if it was for the same
+         * content.
+         *
+         * @return False if there is nothing to resume
+         */
+        private boolean loadState() {
+            if (validator == null || !state.isFile() || part.length() != length)
+                return false;
+            Properties p = new Properties();
+            try {
+                InputStream in = new FileInputStream(state);
+                try {
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+                if (!url.equals(p.getProperty("url"))
+                        || !validator.equals(p.getProperty("validator"))
+                        || length != Long.parseLong(p.getProperty("length")))
+                    return false;
+                int n = Integer.parseInt(p.getProperty("segments"));
+                for (int i = 0; i < n; i++) {
+                    String[] range = p.getProperty("segment." + i).split(" ");
+                    Segment s = new Segment(Long.parseLong(range[0]),
+                            Long.parseLong(range[1]), Long.parseLong(range[2]));
+                    list.add(s);
+                    resumed += s.done;
+                }
+                return true;
+            } catch (Exception ex) {
+                // Missing or corrupted
+                list.clear();
+                resumed = 0;
+                return false;
+            }
+        }
+
+
+        /**
+         * Write the ranges received so far, after the data they describe.
+         * Without a validator the content cannot be resumed.
+         */
+        private void saveState() {
+            if (validator == null || list.isEmpty())
+                return;
+            stateLock.lock();
+            try {
+                Properties p = new Properties();
+                p.setProperty("url", url);
+                p.setProperty("validator", validator);
+                p.setProperty("length", String.valueOf(length));
+                p.setProperty("segments", String.valueOf(list.size()));
+                for (int i = 0; i < list.size(); i++) {
+                    Segment s = list.get(i);
+                    p.setProperty("segment." + i, s.start + " " + s.end + " " + s.done);
+                }
+                File tmp = new File(state.getPath() + ".tmp");
+                try {
+                    channel.force(false);
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        p.store(out, null);
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.renameTo(state) && !(state.delete() && tmp.renameTo(state)))
+                        tmp.delete();
+                } catch (IOException ex) {
+                    // The download can still complete, it just cannot be resumed
+                    tmp.delete();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+
+        private String verify() throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(checksumAlgorithm);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            InputStream in = new FileInputStream(part);
+            byte[] buf = BufferPool.acquire();
+            try {
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    digest.update(buf, 0, n);
+            } finally {
+                BufferPool.release(buf);
+                in.close();
+            }
+            String actual = FileDownload.hex(digest.digest());
+            if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(actual)) {
+                // Corrupted, not resumable
+                part.delete();
+                state.delete();
+                throw new IOException(checksumAlgorithm + " mismatch: expected "
+                        + expectedChecksum + ", got " + actual);
+            }
+            return actual;
+        }
+
+
+        /**
+         * A range of the content, fetched by its own task.
+         */
+        private class Segment implements Runnable {
+            private final long start;
+            private final long end;
+            // Bytes written from start, only by the task
+            private volatile long done;
+            private volatile HttpClient request;
+            private CountDownLatch latch;
+            private Throwable error;
+
+
+            Segment(long start, long end, long done) {
+                this.start = start;
+                this.end = end;
+                this.done = done;
+            }
+
+
+            void start(Executor e, CountDownLatch latch) {
+                this.latch = latch;
+                try {
+                    e.execute(this);
+                } catch (RuntimeException ex) {
+                    // i.e. RejectedExecutionException
+                    error = ex;
+                    latch.countDown();
+                }
+            }
+
+
+            void abort() {
+                HttpClient r = request;
+                if (r != null)
+                    r.abort();
+            }
+
+
+            @Override
+            public void run() {
+                try {
+                    int failures = 0;
+                    while (start + done < end && !stop) {
+                        long before = done;
+                        try {
+                            fetch();
+                            if (start + done < end && !stop)
+                                throw new IOException("Range ended after " + done + " bytes");
+                        } catch (Exception ex) {
+                            if (done > before)
+                                failures = 0;
+                            if (stop || isContentChanged(ex) || ++failures > retries) {
+                                error = ex;
+                                stop = true;
+                            } else {
+                                retried.incrementAndGet();
+                                Thread.sleep(RETRY_DELAY_MS * failures);
+                            }
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    error = ex;
+                } finally {
+                    request = null;
+                    saveState();
+                    latch.countDown();
+                }
+            }
+
+
+            private void fetch() {
+                final long from = start + done;
+                final HttpClient c = request();
+                c.setHeader("Range", "bytes=" + from + "-" + (end - 1))
+                        .rawStreamCallback(new HttpClient.RawStreamCallback() {
+                            @Override
+                            public void onRawStream(int code, InputStream in) {
+                                if (code != 206)
+                                    throw new ContentChangedException("Expected a range of "
+                                            + url + ", got status " + code);
+                                // A range the server chose (i.e. a
+                                // multiple of its block size) would be
+                                // written at the wrong place
+                                String range = c.headerInProgress("Content-Range");
+                                long[] r = contentRange(range);
+                                if (r == null || r[0] != from || r[1] >= end
+                                        || (r[2] >= 0 && r[2] != length))
+                                    throw new ContentChangedException("Expected range "
+                                            + from + "-" + (end - 1) + "/" + length + " of "
+                                            + url + ", got " + range);
+                                write(in, from);
+                            }
+
+
+                            @Override
+                            public void onRawErrorStream(int code, InputStream err) {
+                                // The request fails with the status
+                            }
+                        });
+                if (validator != null)
+                    c.setHeader("If-Range", validator);
+                request = c;
+                if (!stop)
+                    c.execute("GET");
+            }
+
+
+            private void write(InputStream in, long from) {
+                byte[] buf = BufferPool.acquire();
+                try {
+                    long position = from;
+                    int n;
+                    while (position < end && !stop && (n = in.read(buf, 0,
+                            (int) Math.min(buf.length, end - position))) != -1) {
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                        while (bb.hasRemaining())
+                            channel.write(bb, position + bb.position());
+                        position += n;
+                        done = position - start;
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                } finally {
+                    BufferPool.release(buf);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if the error was caused by a ContentChangedException,
+     * which the request wraps.
+     */
+    private static boolean isContentChanged(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ContentChangedException)
+                return true;
+        }
+        return false;
+    }
+
+
+    static void awaitQuietly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
+    private static void close(RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (IOException ignore) { }
+    }
+}
@@ -0,0 +1,616 @@
+package it.idsolutions.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Uploads a large file in parts, sent concurrently by many requests, then
+ * commits them, like the multipart uploads of S3 and similar services.
+ * <p>
+ * The file is split into parts of {@link #partSize(long)} bytes, which are
+ * sent by at most {@link #concurrency(int)} requests at once, in order:
+ * a slow part does not hold back the others, and a failed part is sent
+ * again, up to {@link #retries(int)} times, without sending the whole file
+ * again. Each part is read from the file while it is sent, so memory use
+ * does not depend on the part size.
+ * <p>
+ * The URL and method of each part, and how the upload is started and
+ * committed, depend on the server: they are defined by a {@link Convention}.
+ * {@link #indexedParts(HttpClientTemplate, String, String)} is a simple
+ * one, sending each part to its own URL and the list of parts to a commit
+ * URL.
+ * <pre>
+ * SegmentedUpload.Report r = new SegmentedUpload(new File("backup.tar"),
+ *         SegmentedUpload.indexedParts(null,
+ *             "http://localhost:3000/uploads/42/parts/{part}",
+ *             "http://localhost:3000/uploads/42/commit"))
+ *     .partSize(16 * 1024 * 1024)
+ *     .concurrency(8)
+ *     .upload();
+ * </pre>
+ *
+ * @author ps
+ */
+public class SegmentedUpload {
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_RETRIES = 3;
+    private static final long RETRY_DELAY_MS = 500;
+
+    private final File file;
+    private final Convention convention;
+    private long partSize = DEFAULT_PART_SIZE;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int retries = DEFAULT_RETRIES;
+    private Executor executor;
+
+
+    /**
+     * Defines how the parts are sent to a server, and how the upload is
+     * started and committed.
+     * <p>
+     * The methods are called in this order: {@link #start(List)} once,
+     * {@link #partRequest(Part)} and {@link #partSent(Part, HttpClient)}
+     * for each part (and again for each retry), concurrently from many
+     * threads, then {@link #commit(List)} once, or {@link #abort(List)} if
+     * the upload fails. A convention which keeps the state of an upload
+     * (i.e. a session id returned by the start request) must not be shared
+     * by uploads running at the same time.
+     */
+    public abstract static class Convention {
+        /**
+         * Called before the parts are sent, i.e. to create an upload
+         * session on the server. Does nothing by default.
+         *
+         * @param parts All the parts, in order
+         */
+        public void start(List<Part> parts) {
+        }
+
+
+        /**
+         * Returns a new request for a part, with its URL and headers set.
+         * The body is set by the upload.
+         *
+         * @param part Part to send
+         * @return Request
+         */
+        public abstract HttpClient partRequest(Part part);
+
+
+        /**
+         * Returns the method of the part requests: "PUT" (the default) or
+         * "POST".
+         *
+         * @return HTTP method
+         */
+        public String partMethod() {
+            return "PUT";
+        }
+
+
+        /**
+         * Called when a part has been sent successfully. By default, stores
+         * the ETag header of the response as the tag of the part.
+         *
+         * @param part Part sent
+         * @param response Executed request of the part
+         */
+        public void partSent(Part part, HttpClient response) {
+            part.tag(SegmentedDownload.header(response, "ETag"));
+        }
+
+
+        /**
+         * Called when all the parts have been sent, to commit the upload.
+         *
+         * @param parts All the parts, in order, with their tags
+         * @throws RuntimeException If the upload cannot be committed
+         */
+        public abstract void commit(List<Part> parts);
+
+
+        /**
+         * Called if the upload fails, i.e. to delete the parts sent so far.
+         * Does nothing by default.
+         *
+         * @param parts All the parts, in order
+         */
+        public void abort(List<Part> parts) {
+        }
+    }
+
+
+    /**
+     * A part of the file.
+     */
+    public static class Part {
+        private final int number;
+        private final long offset;
+        private final long length;
+        private volatile String tag;
+        private volatile boolean sent;
+
+
+        Part(int number, long offset, long length) {
+            this.number = number;
+            this.offset = offset;
+            this.length = length;
+        }
+
+
+        /**
+         * @return Number of the part, from 1
+         */
+        public int number() {
+            return number;
+        }
+
+
+        /**
+         * @return Offset of the part in the file
+         */
+        public long offset() {
+            return offset;
+        }
+
+
+        /**
+         * @return Length of the part in bytes
+         */
+        public long length() {
+            return length;
+        }
+
+
+        /**
+         * @return Value identifying the part on the server, set by the
+         *     convention when the part has been sent (by default the ETag)
+         */
+        public String tag() {
+            return tag;
+        }
+
+
+        /**
+         * Set the value identifying the part on the server.
+         *
+         * @param tag Tag
+         */
+        public void tag(String tag) {
+            this.tag = tag;
+        }
+
+
+        /**
+         * @return True if the part has been sent
+         */
+        public boolean isSent() {
+            return sent;
+        }
+
+
+        @Override
+        public String toString() {
+            return "part " + number + " [" + offset + ", " + (offset + length) + ")";
+        }
+    }
+
+
+    /**
+     * Returns a new upload of a file.
+     *
+     * @param file File to upload
+     * @param convention Convention of the server
+     */
+    public SegmentedUpload(File file, Convention convention) {
+        if (file == null || convention == null)
+            throw new IllegalArgumentException("file and convention are required");
+        this.file = file;
+        this.convention = convention;
+    }
+
+
+    /**
+     * Returns a convention that sends each part to its own URL, and commits
+     * the upload with a POST request to a commit URL, with the list of the
+     * parts as JSON:
+     * <pre>
+     * {"length":20971520,"parts":[
+     *   {"part":1,"offset":0,"length":8388608,"etag":"\"a1\""}, ...]}
+     * </pre>
+     *
+     * @param template Template of the requests, or null
+     * @param partUrl URL of the parts, with a '{part}' path param replaced
+     *     by the number of the part
+     * @param commitUrl Commit URL
+     * @return Convention
+     */
+    public static Convention indexedParts(HttpClientTemplate template, String partUrl,
+            String commitUrl) {
+        return new IndexedParts(template, partUrl, commitUrl);
+    }
+
+
+    /**
+     * Set the size of the parts. The last part may be smaller.
+     *
+     * @param bytes Part size in bytes, default is {@code DEFAULT_PART_SIZE}
+     * @return Self for chaining
+     */
+    public SegmentedUpload partSize(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("bytes must be positive");
+        this.partSize = bytes;
+        return this;
+    }
+
+
+    /**
+     * Set the maximum number of parts sent at once.
+     *
+     * @param concurrency Max concurrent requests, default is
+     *     {@code DEFAULT_CONCURRENCY}
+     * @return Self for chaining
+     */
+    public SegmentedUpload concurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency must be positive");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+
+    /**
+     * Set how many times a failed part is sent again.
+     *
+     * @param retries Max retries for each part, default is {@code DEFAULT_RETRIES}
+     * @return Self for chaining
+     */
+    public SegmentedUpload retries(int retries) {
+        if (retries < 0)
+            throw new IllegalArgumentException("retries must not be negative");
+        this.retries = retries;
+        return this;
+    }
+
+
+    /**
+     * Set the executor that sends the parts. It should be able to run
+     * {@link #concurrency(int)} tasks at once.
+     *
+     * @param executor Executor, or null to use {@link HttpExecutors#getDefault()}
+     * @return Self for chaining
+     */
+    public SegmentedUpload executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    /**
+     * Send all the parts, wait for them, and commit the upload.
+     *
+     * @return Report
+     * @throws RuntimeException If a part cannot be sent, or the upload
+     *     cannot be committed: the convention is asked to abort it
+     * @throws InterruptedException If the thread is interrupted while
+     *     waiting: the requests in progress are aborted, as the upload
+     */
+    public Report upload() throws InterruptedException {
+        long begin = System.nanoTime();
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        try {
+            // Parts are read with positional reads, which can be concurrent
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            List<Part> parts = new ArrayList<Part>();
+            long offset = 0;
+            do {
+                parts.add(new Part(parts.size() + 1, offset, Math.min(partSize, length - offset)));
+                offset += partSize;
+            } while (offset < length);
+            parts = Collections.unmodifiableList(parts);
+
+            convention.start(parts);
+            boolean committed = false;
+            try {
+                Run run = new Run(parts, channel);
+                run.await();
+                convention.commit(parts);
+                committed = true;
+                return new Report(length, parts.size(), run.retried.get(),
+                        System.nanoTime() - begin);
+            } finally {
+                if (!committed) {
+                    try {
+                        convention.abort(parts);
+                    } catch (RuntimeException ignore) {
+                        // Keep the original error
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+
+    /**
+     * Report of a committed upload.
+     */
+    public static class Report {
+        private final long length;
+        private final int parts;
+        private final int retries;
+        private final long elapsedNanos;
+
+
+        Report(long length, int parts, int retries, long elapsedNanos) {
+            this.length = length;
+            this.parts = parts;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+
+        /**
+         * @return Length of the file
+         */
+        public long length() {
+            return length;
+        }
+
+
+        /**
+         * @return Number of parts
+         */
+        public int parts() {
+            return parts;
+        }
+
+
+        /**
+         * @return Part requests made again after a failure
+         */
+        public int retries() {
+            return retries;
+        }
+
+
+        /**
+         * @return Wall-clock time of the upload, including the start and
+         *     commit steps
+         */
+        public long elapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+
+        @Override
+        public String toString() {
+            return "length=" + length + " parts=" + parts + " retries=" + retries
+                    + " elapsedMillis=" + elapsedMillis();
+        }
+    }
+
+
+    /**
+     * Sends the parts with a fixed number of tasks, each taking the next
+     * part to send when it is done with the previous one.
+     */
+    private class Run {
+        private final List<Part> parts;
+        private final FileChannel channel;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger retried = new AtomicInteger();
+        private final List<Worker> workers = new ArrayList<Worker>();
+        private volatile boolean stop;
+        // Not a monitor, like the state lock of SegmentedDownload
+        private final ReentrantLock lock = new ReentrantLock();
+        private Throwable error;
+
+
+        Run(List<Part> parts, FileChannel channel) {
+            this.parts = parts;
+            this.channel = channel;
+        }
+
+
+        void await() throws InterruptedException {
+            int n = Math.min(concurrency, parts.size());
+            CountDownLatch latch = new CountDownLatch(n);
+            Executor e = executor != null ? executor : HttpExecutors.getDefault();
+            for (int i = 0; i < n; i++) {
+                Worker w = new Worker(latch);
+                workers.add(w);
+                try {
+                    e.execute(w);
+                } catch (RuntimeException ex) {
+                    // i.e. RejectedExecutionException
+                    fail(ex);
+                    latch.countDown();
+                }
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException ex) {
+                stop = true;
+                for (Worker w : workers)
+                    w.abort();
+                SegmentedDownload.awaitQuietly(latch);
+                throw ex;
+            }
+            lock.lock();
+            try {
+                if (error != null)
+                    throw new RuntimeException("Upload of " + file + " failed", error);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        /**
+         * Stop the upload on the first error.
+         */
+        private void fail(Throwable ex) {
+            lock.lock();
+            try {
+                if (error == null)
+                    error = ex;
+            } finally {
+                lock.unlock();
+            }
+            stop = true;
+        }
+
+
+        private class Worker implements Runnable {
+            private final CountDownLatch latch;
+            private volatile HttpClient request;
+
+
+            Worker(CountDownLatch latch) {
+                this.latch = latch;
+            }
+
+
+            void abort() {
+                HttpClient r = request;
+                if (r != null)
+                    r.abort();
+            }
+
+
+            @Override
+            public void run() {
+                try {
+                    int i;
+                    while (!stop && (i = next.getAndIncrement()) < parts.size())
+                        send(parts.get(i));
+                } catch (Exception ex) {
+                    fail(ex);
+                } finally {
+                    request = null;
+                    latch.countDown();
+                }
+            }
+
+
+            private void send(Part part) throws InterruptedException {
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        HttpClient c = convention.partRequest(part)
+                                .entity(channel, part.offset(), part.length());
+                        request = c;
+                        if (stop)
+                            return;
+                        c.execute(convention.partMethod());
+                        if (c.code() / 100 != 2)
+                            throw new RuntimeException(c.code() + " " + c.reasonPhrase());
+                        convention.partSent(part, c);
+                        part.sent = true;
+                        return;
+                    } catch (RuntimeException ex) {
+                        if (stop || attempt >= retries)
+                            throw new RuntimeException("Cannot send " + part, ex);
+                        retried.incrementAndGet();
+                        Thread.sleep(RETRY_DELAY_MS * (attempt + 1));
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @see SegmentedUpload#indexedParts(HttpClientTemplate, String, String)
+     */
+    private static class IndexedParts extends Convention {
+        private final HttpClientTemplate template;
+        private final String partUrl;
+        private final String commitUrl;
+
+
+        IndexedParts(HttpClientTemplate template, String partUrl, String commitUrl) {
+            this.template = template;
+            this.partUrl = partUrl;
+            this.commitUrl = commitUrl;
+        }
+
+
+        @Override
+        public HttpClient partRequest(Part part) {
+            return request(partUrl)
+                    .addPathParam("part", String.valueOf(part.number()))
+                    .contentType("application/octet-stream");
+        }
+
+
+        @Override
+        public void commit(List<Part> parts) {
+            StringBuilder json = new StringBuilder("{\"length\":");
+            Part last = parts.get(parts.size() - 1);
+            json.append(last.offset() + last.length()).append(",\"parts\":[");
+            for (Part p : parts) {
+                if (p.number() > 1)
+                    json.append(',');
+                json.append("{\"part\":").append(p.number())
+                        .append(",\"offset\":").append(p.offset())
+                        .append(",\"length\":").append(p.length())
+                        .append(",\"etag\":");
+                if (p.tag() == null)
+                    json.append("null");
+                else
+                    quote(json, p.tag());
+                json.append('}');
+            }
+            json.append("]}");
+            request(commitUrl)
+                    .contentType(HttpClient.APPLICATION_JSON_UTF8)
+                    .entity(json.toString())
+                    .post();
+        }
+
+
+        private HttpClient request(String url) {
+            HttpClient c = template != null ? template.request(url) : new HttpClient(url);
+            return c.keepAlive(true);
+        }
+
+
+        private static void quote(StringBuilder json, String s) {
+            json.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\')
+                    json.append('\\').append(c);
+                else if (c < 0x20)
+                    json.append(String.format("\\u%04x", (int) c));
+                else
+                    json.append(c);
+            }
+            json.append('"');
+        }
+    }
+}
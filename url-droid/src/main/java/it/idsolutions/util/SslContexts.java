@@ -0,0 +1,211 @@
+package it.idsolutions.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+
+/**
+ * Shared SSL socket factories and hostname verifiers used for HTTPS
+ * requests.
+ * <p>
+ * Each SSLContext has its own cache of TLS sessions: reusing the same
+ * socket factory for all the requests with the same configuration lets
+ * the client resume sessions with abbreviated handshakes, instead of doing
+ * a full handshake for each new connection.
+ *
+ * @author ps
+ */
+public final class SslContexts {
+    /**
+     * Hostname verifier that accepts any hostname.
+     */
+    public static final HostnameVerifier TRUST_ALL_HOSTNAMES = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            // Allow all
+            return true;
+        }
+    };
+
+    // Factories of user contexts, released when the context is collected.
+    // Read without locking by every HTTPS request
+    private static final ConcurrentHashMap<ContextKey, SSLSocketFactory> factories =
+            new ConcurrentHashMap<ContextKey, SSLSocketFactory>();
+    private static final ReferenceQueue<SSLContext> collected = new ReferenceQueue<SSLContext>();
+
+
+    private SslContexts() {
+    }
+
+
+    /**
+     * Returns the shared socket factory that trusts any certificate,
+     * even self-signed.
+     *
+     * @return Socket factory
+     */
+    public static SSLSocketFactory trustAllSocketFactory() {
+        return TrustAllHolder.FACTORY;
+    }
+
+
+    /**
+     * Returns the socket factory of an SSLContext. The factory is created
+     * once for each context and then shared.
+     *
+     * @param sslContext SSLContext, already initialized
+     * @return Socket factory
+     */
+    public static SSLSocketFactory socketFactory(SSLContext sslContext) {
+        SSLSocketFactory f = factories.get(new ContextKey(sslContext, null));
+        if (f != null)
+            return f;
+        expunge();
+        f = sslContext.getSocketFactory();
+        SSLSocketFactory existing = factories.putIfAbsent(
+                new ContextKey(sslContext, collected), f);
+        return existing != null ? existing : f;
+    }
+
+
+    /**
+     * Returns the shared trust manager that trusts any certificate, even
+     * self-signed. It is the trust manager of
+     * {@link #trustAllSocketFactory()}.
+     *
+     * @return Trust manager
+     */
+    public static X509TrustManager trustAllManager() {
+        return TrustAllHolder.MANAGER;
+    }
+
+
+    /**
+     * Returns the SSLContext of a socket factory returned by this class.
+     * Used by engines that are configured with an SSLContext instead of a
+     * socket factory.
+     *
+     * @param factory Socket factory
+     * @return The context, or null if the factory is not known
+     */
+    public static SSLContext context(SSLSocketFactory factory) {
+        if (factory == TrustAllHolder.FACTORY)
+            return TrustAllHolder.CONTEXT;
+        for (Map.Entry<ContextKey, SSLSocketFactory> e : factories.entrySet()) {
+            if (e.getValue() == factory)
+                return e.getKey().get();
+        }
+        return null;
+    }
+
+
+    /**
+     * Remove the factories of collected contexts.
+     */
+    private static void expunge() {
+        Reference<? extends SSLContext> r;
+        while ((r = collected.poll()) != null)
+            factories.remove(r);
+    }
+
+
+    /**
+     * Returns a new SSLContext that trusts any certificate, even
+     * self-signed. Prefer {@link #trustAllSocketFactory()}, which is shared.
+     *
+     * @return New initialized SSLContext
+     * @throws GeneralSecurityException If TLS is not available
+     */
+    public static SSLContext newTrustAllContext() throws GeneralSecurityException {
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, new TrustManager[] { TrustAllHolder.MANAGER }, null);
+        return sc;
+    }
+
+
+    /**
+     * Weak key of a context, compared by identity as SSLContext does not
+     * override equals.
+     */
+    private static class ContextKey extends WeakReference<SSLContext> {
+        private final int hash;
+
+
+        ContextKey(SSLContext context, ReferenceQueue<SSLContext> queue) {
+            super(context, queue);
+            this.hash = System.identityHashCode(context);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof ContextKey))
+                return false;
+            SSLContext c = get();
+            return c != null && c == ((ContextKey) o).get();
+        }
+    }
+
+
+    /**
+     * Lazy holder for the trust-all factory, created on the first HTTPS
+     * request.
+     */
+    private static class TrustAllHolder {
+        static final X509TrustManager MANAGER = new TrustAllManager();
+        static final SSLContext CONTEXT;
+        static final SSLSocketFactory FACTORY;
+        static {
+            try {
+                CONTEXT = newTrustAllContext();
+                FACTORY = CONTEXT.getSocketFactory();
+            } catch (GeneralSecurityException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+
+    /**
+     * Trust anyone.
+     */
+    private static class TrustAllManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+        }
+
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+        }
+
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
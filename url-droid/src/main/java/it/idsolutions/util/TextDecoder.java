@@ -0,0 +1,168 @@
+package it.idsolutions.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * Decodes response bodies to strings.
+ * <p>
+ * The body is decoded in a single pass from its bytes, into an array sized
+ * for the worst case. Bodies in UTF-8 (or another charset compatible with
+ * ASCII) which only contain ASCII chars, like most JSON, skip the decoder
+ * and are copied as Latin-1. Decoders are reused by each thread, for the
+ * last charset it has decoded, and temporary buffers come from the
+ * {@link BufferPool}.
+ *
+ * @author ps
+ */
+final class TextDecoder {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>();
+
+
+    private TextDecoder() {
+    }
+
+
+    /**
+     * Returns the charset param of a Content-Type header, or null if it is
+     * not set.
+     */
+    static String charset(String contentType) {
+        if (contentType == null)
+            return null;
+        int i = contentType.indexOf(';');
+        while (i >= 0) {
+            int next = contentType.indexOf(';', i + 1);
+            String param = contentType.substring(i + 1, next < 0 ? contentType.length() : next).trim();
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase("charset")) {
+                String value = param.substring(eq + 1).trim();
+                if (value.length() >= 2 && value.charAt(0) == '"'
+                        && value.charAt(value.length() - 1) == '"')
+                    value = value.substring(1, value.length() - 1);
+                return value.length() > 0 ? value : null;
+            }
+            i = next;
+        }
+        return null;
+    }
+
+
+    /**
+     * Returns the named charset, or UTF-8 if the name is null, invalid or
+     * not supported.
+     */
+    static Charset forName(String charset) {
+        if (charset == null)
+            return UTF_8;
+        try {
+            return Charset.forName(charset);
+        } catch (IllegalArgumentException ex) {
+            // Illegal or unsupported name
+            return UTF_8;
+        }
+    }
+
+
+    /**
+     * Decode bytes to a string. Malformed input is replaced, as done by the
+     * String constructors.
+     */
+    static String decode(byte[] b, int off, int len, Charset charset) {
+        if (charset.equals(ISO_8859_1))
+            return new String(b, off, len, ISO_8859_1);
+        if (asciiCompatible(charset) && isAscii(b, off, len))
+            return new String(b, off, len, ISO_8859_1);
+
+        CharsetDecoder decoder = DECODER.get();
+        if (decoder == null || !decoder.charset().equals(charset)) {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            DECODER.set(decoder);
+        }
+        int max = (int) Math.ceil(len * (double) decoder.maxCharsPerByte());
+        char[] chars = max <= BufferPool.CHAR_BUFFER_SIZE ? BufferPool.acquireChars() : new char[max];
+        try {
+            CharBuffer out = CharBuffer.wrap(chars);
+            decoder.reset();
+            // With REPLACE and room for the worst case, this cannot fail
+            decoder.decode(ByteBuffer.wrap(b, off, len), out, true);
+            decoder.flush(out);
+            return new String(chars, 0, out.position());
+        } finally {
+            BufferPool.release(chars);
+        }
+    }
+
+
+    /**
+     * Encode a string as UTF-8 into a buffer, if it fits.
+     *
+     * @return Number of bytes written, or -1 if the buffer is too small
+     */
+    static int encodeUtf8(String s, byte[] out) {
+        int n = s.length();
+        if (n > out.length)
+            return -1;
+        int o = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (o == out.length)
+                    return -1;
+                out[o++] = (byte) c;
+            } else if (c < 0x800) {
+                if (o + 2 > out.length)
+                    return -1;
+                out[o++] = (byte) (0xc0 | (c >> 6));
+                out[o++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (o + 4 > out.length)
+                    return -1;
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[o++] = (byte) (0xf0 | (cp >> 18));
+                out[o++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[o++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[o++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired, as String.getBytes()
+                if (o == out.length)
+                    return -1;
+                out[o++] = '?';
+            } else {
+                if (o + 3 > out.length)
+                    return -1;
+                out[o++] = (byte) (0xe0 | (c >> 12));
+                out[o++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[o++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return o;
+    }
+
+
+    private static boolean asciiCompatible(Charset charset) {
+        return charset.equals(UTF_8) || charset.equals(US_ASCII)
+                || charset.name().startsWith("ISO-8859-")
+                || charset.name().startsWith("windows-125");
+    }
+
+
+    private static boolean isAscii(byte[] b, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++) {
+            if (b[i] < 0)
+                return false;
+        }
+        return true;
+    }
+}
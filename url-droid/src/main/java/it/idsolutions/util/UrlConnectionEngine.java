@@ -0,0 +1,29 @@
+package it.idsolutions.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+
+/**
+ * Engine using the system implementation of HttpURLConnection.
+ *
+ * @author ps
+ */
+class UrlConnectionEngine implements HttpEngine {
+    @Override
+    public String name() {
+        return HttpEngines.URL_CONNECTION;
+    }
+
+
+    @Override
+    public HttpURLConnection open(URL url, Proxy proxy) throws IOException {
+        // this does no network IO
+        if (proxy == null)
+            return (HttpURLConnection) url.openConnection();
+        else
+            return (HttpURLConnection) url.openConnection(proxy);
+    }
+}
@@ -0,0 +1,185 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.MultiPart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Measures the memory allocated by the calling thread for each request,
+ * for the main body read/write paths, with persistent connections.
+ * <p>
+ * The numbers include the allocations of the HttpURLConnection
+ * implementation. Compare with the buffer pool disabled by running with
+ * <code>-Durldroid.bufferPool=0</code>. Requires a HotSpot-based JVM to
+ * read the allocation counters. Run with:
+ * <code>gradle benchmark -Pbench=AllocationBenchmark</code>
+ * (optional argument: number of requests per scenario).
+ *
+ * @author ps
+ */
+public class AllocationBenchmark {
+    private static final int PORT = 3103;
+    private static final int BODY_SIZE = 40 * 1024;
+
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        final byte[] ascii = new byte[BODY_SIZE];
+        for (int i = 0; i < ascii.length; i++)
+            ascii[i] = (byte) ('a' + i % 26);
+        char[] accented = new char[BODY_SIZE / 2];
+        Arrays.fill(accented, '\u00e8');
+        final byte[] utf8 = new String(accented).getBytes("UTF-8");
+        final String entity = new String(ascii, "UTF-8").substring(0, 16 * 1024);
+
+        // The server writes the headers and the body separately
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        ExecutorService serverThreads = Executors.newFixedThreadPool(2);
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                while (in.read(buf) != -1) {
+                    // Discard
+                }
+                byte[] response = exchange.getRequestURI().getPath().equals("/utf8") ? utf8
+                        : exchange.getRequestURI().getPath().equals("/empty") ? new byte[0]
+                        : ascii;
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+                if (response.length > 0)
+                    exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        try {
+            System.out.println("Buffer pool slots: "
+                    + System.getProperty("urldroid.bufferPool", "16 (default)"));
+            Scenario[] scenarios = {
+                new Scenario("GET 40 KB ASCII text") {
+                    @Override
+                    void run() {
+                        request("/ascii").get().content();
+                    }
+                },
+                new Scenario("GET 40 KB UTF-8 text") {
+                    @Override
+                    void run() {
+                        request("/utf8").get().content();
+                    }
+                },
+                new Scenario("GET 40 KB as bytes") {
+                    @Override
+                    void run() {
+                        request("/ascii").returnBytes().get().rawBytes();
+                    }
+                },
+                new Scenario("POST 16 KB string entity") {
+                    @Override
+                    void run() {
+                        request("/empty").entity(entity).post();
+                    }
+                },
+                new Scenario("POST 40 KB body writer") {
+                    @Override
+                    void run() {
+                        request("/empty").entity(new HttpClient.BodyWriter() {
+                            @Override
+                            public void writeTo(OutputStream out) throws IOException {
+                                for (int i = 0; i < ascii.length; i += 100)
+                                    out.write(ascii, i, Math.min(100, ascii.length - i));
+                            }
+                        }).post();
+                    }
+                },
+                new Scenario("POST 40 KB multipart") {
+                    @Override
+                    void run() {
+                        request("/empty")
+                                .addMultiPartParam("id", "1")
+                                .addMultiPart(MultiPart.bytes("file", "a.txt", null, ascii))
+                                .post();
+                    }
+                },
+            };
+            for (Scenario s : scenarios)
+                s.measure(Math.max(requests / 5, 100));
+            for (Scenario s : scenarios)
+                s.report(requests);
+        } finally {
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+
+    private static HttpClient request(String path) {
+        return new HttpClient("http://localhost:" + PORT + path)
+                .keepAlive(true);
+    }
+
+
+    private abstract static class Scenario {
+        private final String name;
+
+
+        Scenario(String name) {
+            this.name = name;
+        }
+
+
+        abstract void run();
+
+
+        /**
+         * Returns the bytes allocated per request.
+         */
+        long measure(int requests) {
+            long start = allocatedBytes();
+            for (int i = 0; i < requests; i++)
+                run();
+            return (allocatedBytes() - start) / requests;
+        }
+
+
+        void report(int requests) {
+            long t = System.nanoTime();
+            long bytes = measure(requests);
+            double micros = (System.nanoTime() - t) / 1e3 / requests;
+            System.out.println(String.format("%-30s %8d bytes/request %8.1f us/request",
+                    name, bytes, micros));
+        }
+
+
+        private static long allocatedBytes() {
+            // com.sun.management.ThreadMXBean, not in the Java 6 API
+            try {
+                Object threads = ManagementFactory.getThreadMXBean();
+                Method m = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+                return (Long) m.invoke(threads, Thread.currentThread().getId());
+            } catch (Exception ex) {
+                throw new UnsupportedOperationException("Allocation counters not available", ex);
+            }
+        }
+    }
+}
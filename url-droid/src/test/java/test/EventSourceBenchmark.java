@@ -0,0 +1,147 @@
+package test;
+
+import it.idsolutions.util.EventSource;
+import it.idsolutions.util.HttpClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Receives events published by a local server (200 by default, one every
+ * 20 ms), by polling with a GET request every 100 ms and by a single
+ * Server-Sent Events stream, and prints the requests made and the mean
+ * delay between the publication of an event and its delivery. Run with:
+ * <code>gradle benchmark -Pbench=EventSourceBenchmark</code>
+ * (optional arguments: number of events, poll interval in ms).
+ *
+ * @author ps
+ */
+public class EventSourceBenchmark {
+    private static final int PORT = 3106;
+    private static final long PUBLISH_INTERVAL_MS = 20;
+
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long pollInterval = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final AtomicLong start = new AtomicLong();
+        final AtomicInteger requests = new AtomicInteger();
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        // The latest event published, as "number publishedAtNanos"
+        server.createContext("/latest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                byte[] body = latest(start.get(), count).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < count; i++) {
+                        long due = start.get() + i * PUBLISH_INTERVAL_MS * 1000000;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0)
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        out.write(("id: " + i + "\ndata: " + i + " " + due + "\n\n").getBytes("UTF-8"));
+                        out.flush();
+                    }
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        try {
+            // Polling: an event is seen at the first poll after it
+            requests.set(0);
+            start.set(System.nanoTime());
+            long delays = 0;
+            int seen = -1;
+            while (seen < count - 1) {
+                String[] latest = new HttpClient("http://localhost:" + PORT + "/latest")
+                        .get().rawContent().split(" ");
+                long now = System.nanoTime();
+                int n = Integer.parseInt(latest[0]);
+                for (int i = seen + 1; i <= n; i++)
+                    delays += now - (start.get() + i * PUBLISH_INTERVAL_MS * 1000000);
+                seen = n;
+                Thread.sleep(pollInterval);
+            }
+            round("polling", requests.get(), delays / count);
+
+            // Server-Sent Events
+            requests.set(0);
+            final AtomicLong streamDelays = new AtomicLong();
+            final CountDownLatch done = new CountDownLatch(count);
+            start.set(System.nanoTime());
+            EventSource source = new EventSource("http://localhost:" + PORT + "/events")
+                    .listener(new EventSource.Listener() {
+                        @Override
+                        public void onOpen(EventSource source) {
+                        }
+
+
+                        @Override
+                        public void onEvent(EventSource source, EventSource.Event event) {
+                            long due = Long.parseLong(event.data().split(" ")[1]);
+                            streamDelays.addAndGet(System.nanoTime() - due);
+                            done.countDown();
+                        }
+
+
+                        @Override
+                        public void onError(EventSource source, Throwable error, boolean reconnecting) {
+                        }
+
+
+                        @Override
+                        public void onClosed(EventSource source) {
+                        }
+                    })
+                    .open();
+            done.await();
+            source.close();
+            round("event stream", requests.get(), streamDelays.get() / count);
+        } finally {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+
+    private static String latest(long start, int count) {
+        long n = (System.nanoTime() - start) / (PUBLISH_INTERVAL_MS * 1000000);
+        return Math.min(n, count - 1) + " " + start;
+    }
+
+
+    private static void round(String name, int requests, long meanDelayNanos) {
+        System.out.println(String.format("%-14s %6d requests %8.2f ms mean delay",
+                name, requests, meanDelayNanos / 1e6));
+    }
+}
@@ -3,12 +3,31 @@ package test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import it.idsolutions.util.Base64;
+import it.idsolutions.util.EventSource;
+import it.idsolutions.util.HttpBatch;
 import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpClientSpec;
+import it.idsolutions.util.HttpClientTemplate;
+import it.idsolutions.util.HttpEngine;
+import it.idsolutions.util.HttpEngines;
+import it.idsolutions.util.HttpExecutors;
+import it.idsolutions.util.KeepAlive;
+import it.idsolutions.util.MultiPart;
+import it.idsolutions.util.RecordIterator;
+import it.idsolutions.util.SegmentedDownload;
+import it.idsolutions.util.SegmentedUpload;
+import it.idsolutions.util.SslContexts;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
 import java.net.URLDecoder;
 
 import org.junit.After;
@@ -18,16 +37,44 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.security.MessageDigest;
+import javax.net.ssl.SSLContext;
 
 
 public class HttpClientTest {
@@ -312,8 +359,9 @@ public class HttpClientTest {
             public void handle(HttpExchange exchange) throws IOException {
                 assertEquals("POST", exchange.getRequestMethod());
                 assertEquals("/multipart", exchange.getRequestURI().getPath());
-                assertEquals("multipart/form-data;boundary=" + HttpClient.MULTIPART_BOUNDARY, 
-                        exchange.getRequestHeaders().get("Content-Type").get(0));
+                String contentType = exchange.getRequestHeaders().get("Content-Type").get(0);
+                assertTrue(contentType.startsWith("multipart/form-data;boundary="));
+                String boundary = contentType.substring(contentType.indexOf('=') + 1);
                 int b;
                 StringBuilder buf = new StringBuilder();
                 InputStream is = exchange.getRequestBody();
@@ -323,13 +371,13 @@ public class HttpClientTest {
                 is.close();
                 
                 assertTrue(
-                        buf.toString().contains("--" + HttpClient.MULTIPART_BOUNDARY + "\r\n" +
+                        buf.toString().contains("--" + boundary + "\r\n" +
                         "Content-Disposition:form-data;name=\"x\"\r\nContent-Type: application/octet-stream\r\n\r\ny\r\n"));
                 assertTrue(
-                        buf.toString().contains("--" + HttpClient.MULTIPART_BOUNDARY + "\r\n" +
+                        buf.toString().contains("--" + boundary + "\r\n" +
                                 "Content-Disposition:form-data;name=\"a\"\r\nContent-Type: application/octet-stream\r\n\r\n1\r\n"));
-                assertTrue(buf.toString().startsWith("--" + HttpClient.MULTIPART_BOUNDARY + "\r\n"));
-                assertTrue(buf.toString().endsWith("--" + HttpClient.MULTIPART_BOUNDARY + "--\r\n"));
+                assertTrue(buf.toString().startsWith("--" + boundary + "\r\n"));
+                assertTrue(buf.toString().endsWith("--" + boundary + "--\r\n"));
                 
                 
                 exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
@@ -509,7 +557,8 @@ public class HttpClientTest {
                 .addBodyParamNoEncoding("p2", "[\u20AC]")
                 .addBodyParam("x", "y")
                 .addBodyParam("a", "1")
-                .compressRequest(true);
+                .compressRequest(true)
+                .compressionThreshold(0);
         assertEquals(null, c.encodedEntity());
         c.post();
         assertEquals(HttpURLConnection.HTTP_OK, c.code());
@@ -524,4 +573,1732 @@ public class HttpClientTest {
         httpServer.stop(0);
     }
     
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(3010);
+        httpServer = HttpServer.create(address, 0);
+        final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+        
+        httpServer.createContext("/keepalive", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] response = "reused".getBytes("UTF-8");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.getResponseBody().close();
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/large", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] response = new byte[1024 * 1024];
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                try {
+                    exchange.getResponseBody().write(response);
+                } catch (IOException ex) {
+                    // Disconnected by the client
+                }
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        KeepAlive.resetStats();
+        for (int i = 0; i < 5; i++) {
+            HttpClient c = new HttpClient("http://localhost:" + 3010 + "/keepalive")
+                    .keepAlive(true)
+                    .get();
+            assertEquals(HttpURLConnection.HTTP_OK, c.code());
+            assertEquals("reused", c.content());
+        }
+        assertEquals(1, clientPorts.size());
+        assertEquals(5, KeepAlive.stats().released());
+        assertEquals(0, KeepAlive.stats().discarded());
+        
+        // A failed request is disconnected, not released
+        try {
+            new HttpClient("http://localhost:" + 3010 + "/large")
+                    .keepAlive(true)
+                    .maxResponseSize(100)
+                    .get();
+            assertTrue(false);
+        } catch (RuntimeException ex) {
+        }
+        assertEquals(5, KeepAlive.stats().released());
+        assertEquals(0, KeepAlive.stats().discarded());
+        assertEquals("reused", new HttpClient("http://localhost:" + 3010 + "/keepalive")
+                .keepAlive(true).get().content());
+        
+        Thread.sleep(200);
+    }
+    
+
+    @Test
+    public void testTemplate() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(3011);
+        httpServer = HttpServer.create(address, 0);
+        
+        httpServer.createContext("/template", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                assertEquals("Basic " + Base64.encodeString("user:pwd").trim(),
+                        exchange.getRequestHeaders().getFirst("Authorization"));
+                assertEquals("test-agent",
+                        exchange.getRequestHeaders().getFirst("User-Agent"));
+                byte[] response = (exchange.getRequestHeaders().getFirst("X-Id") +
+                        " " + exchange.getRequestURI().getQuery()).getBytes("UTF-8");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.getResponseBody().close();
+                exchange.close();
+            }
+        });
+        httpServer.setExecutor(Executors.newFixedThreadPool(4));
+        httpServer.start();
+        
+        final HttpClientTemplate template = new HttpClientTemplate.Builder()
+                .credentials("user", "pwd")
+                .userAgent("test-agent")
+                .setHeader("X-Id", "template")
+                .keepAlive(true)
+                .build();
+        
+        HttpClient c = template.request("http://localhost:" + 3011 + "/template")
+                .get();
+        assertEquals(HttpURLConnection.HTTP_OK, c.code());
+        assertEquals("template null", c.content());
+        
+        // Share the template between threads, overriding a header per request
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 20; i++) {
+            final int n = i;
+            results.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return template.request("http://localhost:" + 3011 + "/template")
+                            .setHeader("X-Id", "r" + n)
+                            .addQueryParam("n", String.valueOf(n))
+                            .get()
+                            .content();
+                }
+            }));
+        }
+        for (int i = 0; i < 20; i++)
+            assertEquals("r" + i + " n=" + i, results.get(i).get());
+        executor.shutdown();
+        
+        Thread.sleep(200);
+    }
+    
+
+    @Test
+    public void testSharedSocketFactory() throws Exception {
+        assertSame(SslContexts.trustAllSocketFactory(), SslContexts.trustAllSocketFactory());
+        SSLContext sc = SslContexts.newTrustAllContext();
+        assertSame(SslContexts.socketFactory(sc), SslContexts.socketFactory(sc));
+        assertSame(sc, SslContexts.context(SslContexts.socketFactory(sc)));
+        assertNotSame(SslContexts.socketFactory(sc),
+                SslContexts.socketFactory(SslContexts.newTrustAllContext()));
+    }
+    
+
+    @Test
+    public void testEngine() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(3012);
+        httpServer = HttpServer.create(address, 0);
+        
+        httpServer.createContext("/engine", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+                exchange.getResponseBody().write("engine".getBytes());
+                exchange.getResponseBody().close();
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        assertNotNull(HttpEngines.get(HttpEngines.URL_CONNECTION));
+        final AtomicInteger opened = new AtomicInteger();
+        HttpEngine counting = new HttpEngine() {
+            @Override
+            public String name() {
+                return "counting";
+            }
+            
+            @Override
+            public HttpURLConnection open(URL url, Proxy proxy) throws IOException {
+                opened.incrementAndGet();
+                return HttpEngines.get(HttpEngines.URL_CONNECTION).open(url, proxy);
+            }
+        };
+        
+        HttpClient c = new HttpClient("http://localhost:" + 3012 + "/engine")
+                .engine(counting)
+                .get();
+        assertEquals("engine", c.content());
+        assertEquals(1, opened.get());
+        
+        HttpEngines.register(counting);
+        new HttpClient("http://localhost:" + 3012 + "/engine")
+                .engine("counting")
+                .get();
+        assertEquals(2, opened.get());
+        
+        Thread.sleep(200);
+    }
+    
+
+    @Test
+    public void testAsync() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(3013);
+        httpServer = HttpServer.create(address, 0);
+        
+        httpServer.createContext("/async", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String q = exchange.getRequestURI().getQuery();
+                int status = "fail".equals(q) ? HttpURLConnection.HTTP_INTERNAL_ERROR
+                        : HttpURLConnection.HTTP_OK;
+                byte[] response = (exchange.getRequestMethod() + " " + q).getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.getResponseBody().close();
+                exchange.close();
+            }
+        });
+        httpServer.setExecutor(Executors.newFixedThreadPool(4));
+        httpServer.start();
+        
+        List<Future<HttpClient>> futures = new ArrayList<Future<HttpClient>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(new HttpClient("http://localhost:" + 3013 + "/async")
+                    .addQueryParam("n", String.valueOf(i))
+                    .getAsync());
+        }
+        for (int i = 0; i < 10; i++)
+            assertEquals("GET n=" + i, futures.get(i).get().content());
+        
+        // Callbacks, on a custom executor
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch done = new CountDownLatch(2);
+        HttpClientSpec.ResponseCallback callback = new HttpClientSpec.ResponseCallback() {
+            @Override
+            public void onSuccess(HttpClient response) {
+                results.add(response.content());
+                done.countDown();
+            }
+            
+            @Override
+            public void onFailure(HttpClient request, Throwable error) {
+                results.add(error);
+                done.countDown();
+            }
+        };
+        new HttpClient("http://localhost:" + 3013 + "/async?ok")
+                .executor(executor)
+                .executeAsync("DELETE", callback);
+        Future<HttpClient> failed = new HttpClient("http://localhost:" + 3013 + "/async?fail")
+                .executor(executor)
+                .executeAsync("GET", callback);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("DELETE ok", results.get(0));
+        assertTrue(results.get(1) instanceof RuntimeException);
+        try {
+            failed.get();
+            assertTrue(false);
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RuntimeException);
+        }
+        executor.shutdown();
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testVirtualThreads() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3014), 0);
+        httpServer.createContext("/virtual", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] response = "OK".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        if (!HttpExecutors.virtualThreadsAvailable()) {
+            try {
+                HttpExecutors.virtualThreads();
+                assertTrue(false);
+            } catch (UnsupportedOperationException ex) {
+                // Java < 21
+            }
+            return;
+        }
+        final AtomicInteger virtual = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        Future<HttpClient> f = new HttpClient("http://localhost:" + 3014 + "/virtual")
+                .executor(HttpExecutors.virtualThreads())
+                .executeAsync("GET", new HttpClientSpec.ResponseCallback() {
+                    @Override
+                    public void onSuccess(HttpClient response) {
+                        if (Thread.currentThread().getName().length() == 0)
+                            virtual.incrementAndGet();
+                        done.countDown();
+                    }
+                    
+                    @Override
+                    public void onFailure(HttpClient request, Throwable error) {
+                        done.countDown();
+                    }
+                });
+        assertEquals("OK", f.get().content());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Virtual threads are unnamed by default
+        assertEquals(1, virtual.get());
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testBatch() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final Map<String, AtomicInteger> hostInFlight = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger maxHostInFlight = new AtomicInteger();
+        hostInFlight.put("localhost", new AtomicInteger());
+        hostInFlight.put("127.0.0.1", new AtomicInteger());
+        httpServer = HttpServer.create(new InetSocketAddress(3015), 0);
+        httpServer.createContext("/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String host = exchange.getRequestHeaders().getFirst("Host").split(":")[0];
+                int n = inFlight.incrementAndGet();
+                int h = hostInFlight.get(host).incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), n));
+                    maxHostInFlight.set(Math.max(maxHostInFlight.get(), h));
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                }
+                hostInFlight.get(host).decrementAndGet();
+                inFlight.decrementAndGet();
+                String query = exchange.getRequestURI().getQuery();
+                byte[] response = query.getBytes("UTF-8");
+                exchange.sendResponseHeaders(query.equals("n=13") ? 500 : 200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.setExecutor(Executors.newFixedThreadPool(8));
+        httpServer.start();
+        
+        HttpBatch batch = new HttpBatch().concurrency(4).maxPerHost(2);
+        for (int i = 0; i < 30; i++) {
+            batch.add(new HttpClient("http://" + (i % 3 == 0 ? "127.0.0.1" : "localhost")
+                    + ":" + 3015 + "/batch").addQueryParam("n", String.valueOf(i)));
+        }
+        final AtomicInteger streamed = new AtomicInteger();
+        HttpBatch.Report report = batch.execute(new HttpBatch.Listener() {
+            @Override
+            public void onResult(HttpBatch.Result result) {
+                streamed.incrementAndGet();
+            }
+        });
+        
+        assertEquals(30, streamed.get());
+        assertEquals(30, report.results().size());
+        assertEquals(29, report.succeeded());
+        assertEquals(1, report.failed());
+        for (int i = 0; i < 30; i++) {
+            HttpBatch.Result r = report.results().get(i);
+            assertEquals(i, r.index());
+            if (i == 13)
+                assertTrue(r.error() instanceof RuntimeException);
+            else
+                assertEquals("n=" + i, r.request().content());
+        }
+        assertTrue(maxInFlight.get() <= 4);
+        assertTrue(maxHostInFlight.get() <= 2);
+        assertTrue(report.elapsedMillis() >= 30 / 4 * 20);
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testStreamDataAdapter() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3016), 0);
+        httpServer.createContext("/stream", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = new BufferedReader(new InputStreamReader(
+                        exchange.getRequestBody(), "UTF-8")).readLine();
+                byte[] response = ("[" + body + "]").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        // The String methods must not be used
+        HttpClientSpec.StreamDataAdapter adapter = new HttpClientSpec.StreamDataAdapter() {
+            @Override
+            public void serialize(Object content, OutputStream out) throws IOException {
+                out.write(content.toString().getBytes("UTF-8"));
+            }
+            
+            @Override
+            public <T> T deserialize(InputStream in, String charset, Class<T> type)
+                    throws IOException {
+                StringBuilder sb = new StringBuilder();
+                Reader r = new InputStreamReader(in, charset);
+                int c;
+                while ((c = r.read()) != -1)
+                    sb.append((char) c);
+                return type.cast(sb);
+            }
+            
+            @Override
+            public <T> T deserializeRef(InputStream in, String charset, Object typeRef)
+                    throws IOException {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public String serialize(Object content) {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public <T> T deserialize(String content, Class<T> type) {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public <T> T deserializeRef(String content, Object typeRef) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        HttpClient c = new HttpClient("http://localhost:" + 3016 + "/stream")
+                .entity("\u00e8", adapter)
+                .returnType(StringBuilder.class, adapter)
+                .post();
+        assertEquals("[\u00e8]", c.content().toString());
+        assertEquals(null, c.rawContent());
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testRawBytes() throws Exception {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31);
+        httpServer = HttpServer.create(new InetSocketAddress(3017), 0);
+        httpServer.createContext("/bytes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Fixed length, or chunked
+                boolean chunked = "chunked".equals(exchange.getRequestURI().getQuery());
+                exchange.sendResponseHeaders(200, chunked ? 0 : data.length);
+                exchange.getResponseBody().write(data);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        HttpClient c = new HttpClient("http://localhost:" + 3017 + "/bytes")
+                .returnBytes()
+                .get();
+        assertTrue(Arrays.equals(data, c.rawBytes()));
+        assertSame(c.rawBytes(), c.content());
+        assertEquals(null, c.rawContent());
+        
+        c = new HttpClient("http://localhost:" + 3017 + "/bytes?chunked")
+                .returnBytes()
+                .get();
+        assertTrue(Arrays.equals(data, c.rawBytes()));
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testDownload() throws Exception {
+        final byte[] data = new byte[1024 * 1024 + 17];
+        new Random(1).nextBytes(data);
+        httpServer = HttpServer.create(new InetSocketAddress(3018), 0);
+        httpServer.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().endsWith("missing")) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, data.length);
+                    exchange.getResponseBody().write(data);
+                }
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        File dir = new File(System.getProperty("java.io.tmpdir"), "url-droid-" + System.nanoTime());
+        assertTrue(dir.mkdir());
+        File target = new File(dir, "data.bin");
+        StringBuilder sha = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data))
+            sha.append(String.format("%02x", b));
+        
+        HttpClient c = new HttpClient("http://localhost:" + 3018 + "/file")
+                .verifyChecksum("SHA-256", sha.toString())
+                .download(target);
+        assertEquals(200, c.code());
+        assertEquals(target, c.content());
+        assertEquals(sha.toString(), c.checksum());
+        assertTrue(Arrays.equals(data, readFile(target)));
+        
+        // A failed download leaves the target as it was
+        try {
+            new HttpClient("http://localhost:" + 3018 + "/file")
+                    .verifyChecksum("SHA-256", "00")
+                    .download(target);
+            assertTrue(false);
+        } catch (RuntimeException ex) {
+        }
+        try {
+            new HttpClient("http://localhost:" + 3018 + "/missing")
+                    .download(new File(dir, "missing.bin"));
+            assertTrue(false);
+        } catch (RuntimeException ex) {
+        }
+        assertTrue(Arrays.equals(data, readFile(target)));
+        assertEquals(1, dir.list().length);
+        
+        target.delete();
+        dir.delete();
+        Thread.sleep(200);
+    }
+    
+    
+    private static byte[] readFile(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+    
+    @Test
+    public void testFileEntity() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3019), 0);
+        httpServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Echo the body, with the length declared by the client
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                int l;
+                while ((l = in.read(buf)) != -1)
+                    body.write(buf, 0, l);
+                exchange.getResponseHeaders().set("X-Length",
+                        String.valueOf(exchange.getRequestHeaders().getFirst("Content-Length")));
+                exchange.sendResponseHeaders(200, body.size());
+                exchange.getResponseBody().write(body.toByteArray());
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        byte[] data = new byte[300000];
+        new Random(2).nextBytes(data);
+        File file = File.createTempFile("url-droid", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        
+        HttpClient c = new HttpClient("http://localhost:" + 3019 + "/upload")
+                .entity(file)
+                .returnBytes()
+                .post();
+        assertTrue(Arrays.equals(data, c.rawBytes()));
+        assertEquals(String.valueOf(data.length), c.responseHeaders().get("X-length").get(0));
+        
+        FileInputStream in = new FileInputStream(file);
+        try {
+            c = new HttpClient("http://localhost:" + 3019 + "/upload")
+                    .entity(in.getChannel(), 1000, 5000)
+                    .returnBytes()
+                    .put();
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 6000), c.rawBytes()));
+            assertEquals("5000", c.responseHeaders().get("X-length").get(0));
+            assertEquals(0, in.getChannel().position());
+        } finally {
+            in.close();
+        }
+        
+        file.delete();
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testStreaming() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3020), 0);
+        httpServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Describe how the body was framed by the client
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                long total = 0;
+                int l;
+                while ((l = in.read(buf)) != -1)
+                    total += l;
+                String framing = exchange.getRequestHeaders().getFirst("Content-Length") != null ?
+                        "length" : "chunked".equalsIgnoreCase(
+                                exchange.getRequestHeaders().getFirst("Transfer-Encoding")) ?
+                        "chunked" : "none";
+                byte[] response = (framing + " " + total).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        char[] chars = new char[200000];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+        
+        // Known length
+        HttpClient c = new HttpClient("http://localhost:" + 3020 + "/upload")
+                .entity(big)
+                .post();
+        assertEquals("length 200000", c.content());
+        
+        // Unknown length: the compressed size is not known in advance.
+        // Other engines may buffer the body to send it with its length
+        c = new HttpClient("http://localhost:" + 3020 + "/upload")
+                .engine(HttpEngines.get(HttpEngines.URL_CONNECTION))
+                .entity(big)
+                .compressRequest(true)
+                .chunkSize(4096)
+                .post();
+        assertTrue(((String) c.content()).startsWith("chunked "));
+        
+        // Buffered by the connection
+        c = new HttpClient("http://localhost:" + 3020 + "/upload")
+                .entity(big)
+                .compressRequest(true)
+                .streaming(false)
+                .post();
+        assertTrue(((String) c.content()).startsWith("length "));
+        
+        c = new HttpClient("http://localhost:" + 3020 + "/upload")
+                .addBodyParam("p1", "a b")
+                .streaming(false)
+                .post();
+        assertEquals("length 6", c.content());
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testBodyWriter() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3021), 0);
+        httpServer.createContext("/export", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Count the lines of the (uncompressed) body
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+                    in = new GZIPInputStream(in);
+                BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                int lines = 0;
+                String last = null;
+                String line;
+                while ((line = r.readLine()) != null) {
+                    lines++;
+                    last = line;
+                }
+                byte[] response = (lines + " " + last).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        HttpClient.BodyWriter csv = new HttpClient.BodyWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Writer w = new OutputStreamWriter(out, "UTF-8");
+                for (int i = 0; i < 50000; i++)
+                    w.write(i + ",item " + i + ",\u00e8\n");
+                w.flush();
+            }
+        };
+        
+        HttpClient c = new HttpClient("http://localhost:" + 3021 + "/export")
+                .contentType("text/csv; charset=UTF-8")
+                .entity(csv)
+                .post();
+        assertEquals("50000 49999,item 49999,\u00e8", c.content());
+        
+        c = new HttpClient("http://localhost:" + 3021 + "/export")
+                .entity(csv)
+                .compressRequest(true)
+                .post();
+        assertEquals("50000 49999,item 49999,\u00e8", c.content());
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testBodyWriterFailure() throws Exception {
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        httpServer = HttpServer.create(new InetSocketAddress(3030), 0);
+        httpServer.createContext("/export", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                try {
+                    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+                        in = new GZIPInputStream(in);
+                    byte[] buf = new byte[8192];
+                    long n = 0;
+                    int l;
+                    while ((l = in.read(buf)) != -1)
+                        n += l;
+                    received.add("complete " + n);
+                    exchange.sendResponseHeaders(200, -1);
+                } catch (IOException ex) {
+                    received.add("incomplete");
+                }
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        HttpClient.BodyWriter failing = new HttpClient.BodyWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(new byte[100000]);
+                throw new IOException("Source failed");
+            }
+        };
+        
+        for (boolean compress : new boolean[] { false, true }) {
+            try {
+                new HttpClient("http://localhost:" + 3030 + "/export")
+                        .entity(failing)
+                        .compressRequest(compress)
+                        .post();
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+                // The body is not ended: the server must not take the bytes
+                // written so far for the whole body (an engine may also not
+                // send the request at all)
+                String r = received.poll(2, TimeUnit.SECONDS);
+                assertTrue(r, r == null || r.equals("incomplete"));
+            }
+        }
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testMultipartParts() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3022), 0);
+        httpServer.createContext("/multipart", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Echo the body, with the length declared by the client
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                int l;
+                while ((l = in.read(buf)) != -1)
+                    body.write(buf, 0, l);
+                exchange.getResponseHeaders().set("X-Length",
+                        String.valueOf(exchange.getRequestHeaders().getFirst("Content-Length")));
+                exchange.getResponseHeaders().set("X-Type",
+                        exchange.getRequestHeaders().getFirst("Content-Type"));
+                exchange.sendResponseHeaders(200, body.size());
+                exchange.getResponseBody().write(body.toByteArray());
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        byte[] data = new byte[200000];
+        new Random(3).nextBytes(data);
+        File file = File.createTempFile("url-droid", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        
+        // Parts of known length, in order
+        HttpClient c = new HttpClient("http://localhost:" + 3022 + "/multipart")
+                .addMultiPartParam("z", "\u00e8\u20ac")
+                .addMultiPart(MultiPart.file("file", file).contentType("image/png"))
+                .addMultiPart(MultiPart.bytes("b64", "a.bin", null, Arrays.copyOf(data, 100))
+                        .transferEncoding(MultiPart.BASE64))
+                .addMultiPartParam("a", "1")
+                .returnBytes()
+                .post();
+        byte[] body = c.rawBytes();
+        String text = new String(body, "ISO-8859-1");
+        String boundary = c.responseHeaders().get("X-type").get(0).split("=")[1];
+        assertEquals(String.valueOf(body.length), c.responseHeaders().get("X-length").get(0));
+        int z = text.indexOf("name=\"z\"");
+        int f = text.indexOf("name=\"file\";filename=\"" + file.getName() + "\"\r\nContent-Type: image/png\r\n\r\n");
+        int b = text.indexOf("name=\"b64\";filename=\"a.bin\"");
+        int a = text.indexOf("name=\"a\"");
+        assertTrue(z > 0 && z < f && f < b && b < a);
+        assertTrue(text.contains("\r\n\r\n" + new String("\u00e8\u20ac".getBytes("UTF-8"), "ISO-8859-1") + "\r\n--" + boundary));
+        int start = text.indexOf("\r\n\r\n", f) + 4;
+        assertTrue(Arrays.equals(data, Arrays.copyOfRange(body, start, start + data.length)));
+        assertEquals("\r\n--" + boundary, text.substring(start + data.length, start + data.length + boundary.length() + 4));
+        String b64 = Base64.encodeLines(Arrays.copyOf(data, 100)).trim().replace("\n", "\r\n");
+        assertTrue(text.contains("Content-Transfer-Encoding: base64\r\n\r\n" + b64 + "\r\n--" + boundary));
+        assertTrue(text.endsWith("--" + boundary + "--\r\n"));
+        
+        // A stream that does not report available bytes is sent whole
+        InputStream unavailable = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        };
+        c = new HttpClient("http://localhost:" + 3022 + "/multipart")
+                .addMultiPartParam("s", "s.bin", null, unavailable)
+                .returnBytes()
+                .post();
+        body = c.rawBytes();
+        text = new String(body, "ISO-8859-1");
+        start = text.indexOf("\r\n\r\n") + 4;
+        assertTrue(Arrays.equals(data, Arrays.copyOfRange(body, start, start + data.length)));
+        assertTrue(text.substring(start + data.length).startsWith("\r\n--"));
+        
+        file.delete();
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testResponseBuffering() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3023), 0);
+        httpServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().equals("/huge")) {
+                    // Declares 3 GB, sends a few bytes
+                    exchange.sendResponseHeaders(200, 3L * 1024 * 1024 * 1024);
+                    exchange.getResponseBody().write("abc".getBytes("UTF-8"));
+                    exchange.getResponseBody().flush();
+                    exchange.close();
+                    return;
+                }
+                int size = Integer.parseInt(exchange.getRequestURI().getQuery().substring(5));
+                byte[] response = new byte[size];
+                for (int i = 0; i < size; i++)
+                    response[i] = (byte) ('a' + i % 26);
+                int status = exchange.getRequestURI().getPath().equals("/error") ? 500 : 200;
+                // Unknown length for odd sizes
+                exchange.sendResponseHeaders(status, size % 2 == 0 ? size : 0);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 300001; i++)
+            expected.append((char) ('a' + i % 26));
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        int files = tmp.list().length;
+        
+        // Kept in a file until read
+        for (int size : new int[] { 300000, 300001 }) {
+            HttpClient c = new HttpClient("http://localhost:" + 3023 + "/body")
+                    .addQueryParam("size", String.valueOf(size))
+                    .responseMemoryLimit(1000)
+                    .get();
+            assertEquals(files + 1, tmp.list().length);
+            assertTrue(c.toResponseDebugString().contains("<" + size + " bytes in temporary file>"));
+            assertEquals(expected.substring(0, size), c.rawContent());
+            assertEquals(expected.substring(0, size), c.content());
+            assertEquals(files, tmp.list().length);
+        }
+        
+        HttpClient c = new HttpClient("http://localhost:" + 3023 + "/body")
+                .addQueryParam("size", "300000")
+                .responseMemoryLimit(1000)
+                .returnBytes()
+                .get();
+        assertEquals(300000, c.rawBytes().length);
+        c.get();
+        assertEquals(files + 1, tmp.list().length);
+        c.discardContent();
+        assertEquals(files, tmp.list().length);
+        
+        // No limit in practice: a content over 2 GB still goes to the file
+        c = new HttpClient("http://localhost:" + 3023 + "/body")
+                .addQueryParam("size", "300001")
+                .responseMemoryLimit(Long.MAX_VALUE)
+                .get();
+        assertEquals(files, tmp.list().length);
+        assertEquals(expected.toString(), c.content());
+        try {
+            c = new HttpClient("http://localhost:" + 3023 + "/huge")
+                    .responseMemoryLimit(Long.MAX_VALUE)
+                    .get();
+            // The body is shorter than declared
+            assertEquals("abc", c.content());
+        } catch (RuntimeException ex) {
+            for (Throwable t = ex; t != null; t = t.getCause())
+                assertFalse(t.toString(), t instanceof NegativeArraySizeException);
+        }
+        assertEquals(files, tmp.list().length);
+        
+        // Small enough for memory
+        for (int size : new int[] { 1000, 1001 }) {
+            c = new HttpClient("http://localhost:" + 3023 + "/body")
+                    .addQueryParam("size", String.valueOf(size))
+                    .responseMemoryLimit(1001)
+                    .get();
+            assertEquals(files, tmp.list().length);
+            assertEquals(expected.substring(0, size), c.content());
+        }
+        
+        // Hard limit
+        c = new HttpClient("http://localhost:" + 3023 + "/body")
+                .addQueryParam("size", "1000")
+                .maxResponseSize(1000)
+                .get();
+        assertEquals(1000, c.rawContent().length());
+        for (int size : new int[] { 300000, 300001 }) {
+            try {
+                new HttpClient("http://localhost:" + 3023 + "/body")
+                        .addQueryParam("size", String.valueOf(size))
+                        .maxResponseSize(1000)
+                        .responseMemoryLimit(100)
+                        .noExceptions()
+                        .get();
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause().getMessage().contains("larger than 1000 bytes"));
+            }
+            // Error responses too
+            try {
+                new HttpClient("http://localhost:" + 3023 + "/error")
+                        .addQueryParam("size", String.valueOf(size))
+                        .maxResponseSize(1000)
+                        .noExceptions()
+                        .get();
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause().getMessage().contains("larger than 1000 bytes"));
+            }
+        }
+        assertEquals(files, tmp.list().length);
+        
+        // The file of a failed request is deleted
+        c = new HttpClient("http://localhost:" + 3023 + "/error")
+                .addQueryParam("size", "300000")
+                .responseMemoryLimit(1000);
+        try {
+            c.get();
+            assertTrue(false);
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("500"));
+        }
+        assertEquals(files, tmp.list().length);
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testCharset() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3024), 0);
+        httpServer.createContext("/text", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Encode the text param with the charset param
+                String charset = null;
+                String text = null;
+                for (String param : exchange.getRequestURI().getRawQuery().split("&")) {
+                    String value = URLDecoder.decode(param.substring(param.indexOf('=') + 1), "UTF-8");
+                    if (param.startsWith("charset="))
+                        charset = value;
+                    else
+                        text = value;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + charset);
+                byte[] response = text.getBytes(charset.equals("x-unknown") ? "UTF-8"
+                        : charset.replace("\"", ""));
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        String[][] cases = {
+            { "plain ascii {}", "UTF-8" },
+            { "caf\u00e8 \u20ac \ud83d\ude00", "UTF-8" },
+            { "caf\u00e8", "\"ISO-8859-1\"" },
+            { "\u20ac 5", "windows-1252" },
+            { "\u0436\u0443\u043a", "KOI8-R" },
+            { "caf\u00e8", "UTF-16" },
+            // Unsupported charsets are decoded as UTF-8
+            { "caf\u00e8", "x-unknown" },
+        };
+        for (String[] t : cases) {
+            HttpClient c = new HttpClient("http://localhost:" + 3024 + "/text")
+                    .addQueryParam("text", t[0])
+                    .addQueryParam("charset", t[1])
+                    .get();
+            assertEquals(t[1], t[0], c.content());
+        }
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testContentEncoding() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress(3025), 0);
+        httpServer.createContext("/compressed", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Send the Accept-Encoding header back, in the requested format
+                String format = exchange.getRequestURI().getQuery();
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] text = ("accept " + accept).getBytes("UTF-8");
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                OutputStream out;
+                if (format.equals("zlib"))
+                    out = new DeflaterOutputStream(body);
+                else if (format.equals("raw"))
+                    out = new DeflaterOutputStream(body, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+                else
+                    out = new GZIPOutputStream(body);
+                if (!format.equals("empty"))
+                    out.write(text);
+                out.close();
+                if (format.equals("members")) {
+                    out = new GZIPOutputStream(body);
+                    out.write(" again".getBytes("UTF-8"));
+                    out.close();
+                }
+                exchange.getResponseHeaders().set("Content-Encoding",
+                        format.equals("gzip") || format.equals("members") || format.equals("error") ?
+                        "gzip" : format.equals("empty") ? "x-gzip" : "deflate");
+                int status = format.equals("error") ? 500 : format.equals("empty") ? 204 : 200;
+                exchange.sendResponseHeaders(status, status == 204 ? -1 : body.size());
+                if (status != 204)
+                    exchange.getResponseBody().write(body.toByteArray());
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(encoding))
+                    in = new GZIPInputStream(in);
+                long total = 0;
+                byte[] buf = new byte[8192];
+                int l;
+                while ((l = in.read(buf)) != -1)
+                    total += l;
+                byte[] response = (encoding + " " + total).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        
+        String url = "http://localhost:" + 3025;
+        assertEquals("accept gzip, deflate", new HttpClient(url + "/compressed?gzip").get().content());
+        assertEquals("accept gzip, deflate", new HttpClient(url + "/compressed?zlib").get().content());
+        assertEquals("accept gzip, deflate", new HttpClient(url + "/compressed?raw").get().content());
+        assertEquals("accept gzip, deflate again",
+                new HttpClient(url + "/compressed?members").get().content());
+        HttpClient c = new HttpClient(url + "/compressed?empty").get();
+        assertEquals(204, c.code());
+        assertEquals("", c.content());
+        c = new HttpClient(url + "/compressed?error").noExceptions().get();
+        assertEquals(500, c.code());
+        assertEquals("accept gzip, deflate", c.content());
+        
+        // Opt out, or set a different header
+        assertEquals("accept null", new HttpClient(url + "/compressed?gzip")
+                .compressResponse(false).get().content());
+        assertEquals("accept gzip", new HttpClient(url + "/compressed?gzip")
+                .setHeader("Accept-Encoding", "gzip").get().content());
+        
+        // Request bodies are compressed only if large and compressible
+        char[] chars = new char[100000];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+        assertEquals("null 5", new HttpClient(url + "/upload")
+                .entity("small").compressRequest(true).post().content());
+        assertEquals("gzip 100000", new HttpClient(url + "/upload")
+                .entity(big).compressRequest(true).post().content());
+        assertEquals("gzip 100000", new HttpClient(url + "/upload")
+                .entity(big).compressRequest(true).compressionLevel(1).post().content());
+        assertEquals("null 100000", new HttpClient(url + "/upload")
+                .contentType("image/png").entity(big.getBytes("UTF-8")).compressRequest(true).post().content());
+        assertEquals("gzip 5", new HttpClient(url + "/upload")
+                .entity("small").compressRequest(true).compressionThreshold(0).post().content());
+        try {
+            new HttpClient(url + "/upload").compressionLevel(10);
+            assertTrue(false);
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        final byte[] data = new byte[3 * 1024 * 1024 + 5];
+        new Random(2).nextBytes(data);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        httpServer = HttpServer.create(new InetSocketAddress(3026), 0);
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // The content changes after the HEAD request on /changing
+                boolean ranged = !exchange.getRequestURI().getPath().equals("/plain");
+                String etag = exchange.getRequestMethod().equals("HEAD")
+                        || !exchange.getRequestURI().getPath().equals("/changing") ?
+                        "\"v1\"" : "\"v2\"";
+                if (ranged) {
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                    exchange.getResponseHeaders().set("ETag", etag);
+                }
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(data.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                int from = 0;
+                int to = data.length - 1;
+                int status = 200;
+                if (ranged && range != null && (ifRange == null || ifRange.equals(etag))) {
+                    String[] r = range.substring("bytes=".length()).split("-");
+                    from = Integer.parseInt(r[0]);
+                    to = Integer.parseInt(r[1]);
+                    // /aligned starts the ranges at a block boundary
+                    if (exchange.getRequestURI().getPath().equals("/aligned"))
+                        from -= from % (1024 * 1024);
+                    status = 206;
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + from + "-" + to + "/" + data.length);
+                }
+                int n = active.incrementAndGet();
+                while (maxActive.get() < n && !maxActive.compareAndSet(maxActive.get(), n)) { }
+                try {
+                    Thread.sleep(50);
+                    exchange.sendResponseHeaders(status, to - from + 1);
+                    if (failures.getAndDecrement() > 0) {
+                        // Close the connection halfway
+                        exchange.getResponseBody().write(data, from, (to - from + 1) / 2);
+                        exchange.getResponseBody().flush();
+                        throw new IOException("Injected failure");
+                    }
+                    exchange.getResponseBody().write(data, from, to - from + 1);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                } finally {
+                    active.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        };
+        httpServer.createContext("/ranged", handler);
+        httpServer.createContext("/changing", handler);
+        httpServer.createContext("/plain", handler);
+        httpServer.createContext("/aligned", handler);
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        httpServer.setExecutor(serverThreads);
+        httpServer.start();
+        
+        File dir = new File(System.getProperty("java.io.tmpdir"), "url-droid-" + System.nanoTime());
+        assertTrue(dir.mkdir());
+        StringBuilder sha = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data))
+            sha.append(String.format("%02x", b));
+        String url = "http://localhost:" + 3026;
+        
+        try {
+            File target = new File(dir, "ranged.bin");
+            SegmentedDownload.Report r = new SegmentedDownload(url + "/ranged")
+                    .segments(4)
+                    .minSegmentSize(256 * 1024)
+                    .verifyChecksum("SHA-256", sha.toString())
+                    .download(target);
+            assertEquals(4, r.segments());
+            assertEquals(data.length, r.length());
+            assertEquals(sha.toString(), r.checksum());
+            assertTrue(Arrays.equals(data, readFile(target)));
+            assertTrue(maxActive.get() > 1);
+            assertEquals(1, dir.list().length);
+            
+            // Failed ranges are requested again from the first missing byte
+            failures.set(2);
+            target = new File(dir, "retried.bin");
+            r = new SegmentedDownload(url + "/ranged")
+                    .minSegmentSize(256 * 1024)
+                    .download(target);
+            assertEquals(2, r.retries());
+            assertTrue(Arrays.equals(data, readFile(target)));
+            
+            // Resume the ranges received by a failed download
+            failures.set(1000);
+            target = new File(dir, "resumed.bin");
+            try {
+                new SegmentedDownload(url + "/ranged")
+                        .minSegmentSize(256 * 1024)
+                        .retries(0)
+                        .download(target);
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+            }
+            assertFalse(target.exists());
+            assertTrue(new File(dir, ".resumed.bin.part.state").exists());
+            failures.set(0);
+            r = new SegmentedDownload(url + "/ranged")
+                    .minSegmentSize(256 * 1024)
+                    .download(target);
+            assertTrue(r.resumedBytes() > 0);
+            assertTrue(Arrays.equals(data, readFile(target)));
+            assertEquals(3, dir.list().length);
+            
+            // Content changed during the download: nothing is kept
+            try {
+                new SegmentedDownload(url + "/changing")
+                        .minSegmentSize(256 * 1024)
+                        .download(new File(dir, "changing.bin"));
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+            }
+            assertEquals(3, dir.list().length);
+            
+            // A range other than the one requested is not written
+            try {
+                new SegmentedDownload(url + "/aligned")
+                        .segments(4)
+                        .minSegmentSize(256 * 1024)
+                        .download(new File(dir, "aligned.bin"));
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause().getMessage().contains("Expected range"));
+            }
+            assertEquals(3, dir.list().length);
+            
+            // No ranges: a single request
+            target = new File(dir, "plain.bin");
+            r = new SegmentedDownload(url + "/plain")
+                    .download(target);
+            assertEquals(1, r.segments());
+            assertTrue(Arrays.equals(data, readFile(target)));
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+            serverThreads.shutdown();
+        }
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testSegmentedUpload() throws Exception {
+        final Map<Integer, byte[]> received = new ConcurrentHashMap<Integer, byte[]>();
+        final AtomicInteger failOnce = new AtomicInteger();
+        final AtomicInteger alwaysFail = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final List<String> commits = Collections.synchronizedList(new ArrayList<String>());
+        httpServer = HttpServer.create(new InetSocketAddress(3027), 0);
+        httpServer.createContext("/parts", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int part = Integer.parseInt(exchange.getRequestURI().getPath().substring("/parts/".length()));
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[8192];
+                int l;
+                while ((l = in.read(buf)) != -1)
+                    body.write(buf, 0, l);
+                int n = active.incrementAndGet();
+                while (maxActive.get() < n && !maxActive.compareAndSet(maxActive.get(), n)) { }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                } finally {
+                    active.decrementAndGet();
+                }
+                if (alwaysFail.get() == part || failOnce.compareAndSet(part, 0)) {
+                    exchange.sendResponseHeaders(500, -1);
+                } else {
+                    received.put(part, body.toByteArray());
+                    exchange.getResponseHeaders().set("ETag", "\"p" + part + "\"");
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/commit", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                BufferedReader r = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+                commits.add(r.readLine());
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        httpServer.setExecutor(serverThreads);
+        httpServer.start();
+        
+        final byte[] data = new byte[5 * 512 * 1024 - 100];
+        new Random(3).nextBytes(data);
+        File file = File.createTempFile("url-droid", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        String url = "http://localhost:" + 3027;
+        
+        try {
+            failOnce.set(2);
+            SegmentedUpload.Report r = new SegmentedUpload(file,
+                    SegmentedUpload.indexedParts(null, url + "/parts/{part}", url + "/commit"))
+                    .partSize(512 * 1024)
+                    .concurrency(3)
+                    .upload();
+            assertEquals(5, r.parts());
+            assertEquals(1, r.retries());
+            assertTrue(maxActive.get() > 1);
+            assertEquals(1, commits.size());
+            assertTrue(commits.get(0).startsWith("{\"length\":" + data.length + ",\"parts\":[{\"part\":1,"
+                    + "\"offset\":0,\"length\":524288,\"etag\":\"\\\"p1\\\"\"}"));
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            for (int i = 1; i <= 5; i++)
+                all.write(received.get(i));
+            assertTrue(Arrays.equals(data, all.toByteArray()));
+            
+            // A custom convention, with parts sent by POST
+            final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+            final String base = url;
+            SegmentedUpload.Convention custom = new SegmentedUpload.Convention() {
+                @Override
+                public void start(List<SegmentedUpload.Part> parts) {
+                    calls.add("start " + parts.size());
+                }
+                
+                @Override
+                public HttpClient partRequest(SegmentedUpload.Part part) {
+                    return new HttpClient(base + "/parts/" + part.number());
+                }
+                
+                @Override
+                public String partMethod() {
+                    return "POST";
+                }
+                
+                @Override
+                public void commit(List<SegmentedUpload.Part> parts) {
+                    for (SegmentedUpload.Part p : parts)
+                        assertTrue(p.isSent());
+                    calls.add("commit " + parts.get(2).tag());
+                }
+                
+                @Override
+                public void abort(List<SegmentedUpload.Part> parts) {
+                    calls.add("abort");
+                }
+            };
+            received.clear();
+            r = new SegmentedUpload(file, custom).partSize(1024 * 1024).upload();
+            assertEquals(3, r.parts());
+            assertEquals(Arrays.asList("start 3", "commit \"p3\""), calls);
+            assertEquals(data.length - 2 * 1024 * 1024, received.get(3).length);
+            
+            // A part that cannot be sent fails the upload
+            calls.clear();
+            alwaysFail.set(2);
+            try {
+                new SegmentedUpload(file, custom).partSize(1024 * 1024).retries(1).upload();
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+            }
+            assertEquals(Arrays.asList("start 3", "abort"), calls);
+        } finally {
+            file.delete();
+            serverThreads.shutdown();
+        }
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testEventSource() throws Exception {
+        final List<String> lastIds = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger connections = new AtomicInteger();
+        httpServer = HttpServer.create(new InetSocketAddress(3028), 0);
+        httpServer.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                lastIds.add(String.valueOf(exchange.getRequestHeaders().getFirst("Last-Event-ID")));
+                assertEquals("text/event-stream", exchange.getRequestHeaders().getFirst("Accept"));
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    if (connections.incrementAndGet() == 1) {
+                        // Byte order mark, comment, LF and CRLF line breaks
+                        out.write(new byte[] { (byte) 0xef, (byte) 0xbb, (byte) 0xbf });
+                        out.write(": hello\n\nretry: 50\nid: 1\ndata: first\n\n".getBytes("UTF-8"));
+                        out.flush();
+                        Thread.sleep(50);
+                        out.write("event: update\r\nid: 2\r\ndata: line1\r\ndata:line2\r\n\r\n".getBytes("UTF-8"));
+                        // Incomplete at the end of the stream: discarded
+                        out.write("data: lost\n".getBytes("UTF-8"));
+                        out.flush();
+                    } else {
+                        // CR line breaks, an event split across writes
+                        out.write("id: 3\rdata: third\r\r".getBytes("UTF-8"));
+                        out.flush();
+                        byte[] split = "data: spl\u00e8t\n\n".getBytes("UTF-8");
+                        for (byte b : split) {
+                            out.write(b);
+                            out.flush();
+                            Thread.sleep(5);
+                        }
+                        // Open until the client closes it
+                        Thread.sleep(5000);
+                    }
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                } catch (IOException ex) {
+                    // Closed by the client
+                }
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/gone", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/text", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(200, 2);
+                exchange.getResponseBody().write("no".getBytes("UTF-8"));
+                exchange.close();
+            }
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        httpServer.setExecutor(serverThreads);
+        httpServer.start();
+        String url = "http://localhost:3028";
+        
+        try {
+            final LinkedBlockingQueue<EventSource.Event> events = new LinkedBlockingQueue<EventSource.Event>();
+            final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+            final CountDownLatch closed = new CountDownLatch(1);
+            EventSource.Listener listener = new EventSource.Listener() {
+                @Override
+                public void onOpen(EventSource source) {
+                    calls.add("open");
+                }
+                
+                @Override
+                public void onEvent(EventSource source, EventSource.Event event) {
+                    events.add(event);
+                }
+                
+                @Override
+                public void onError(EventSource source, Throwable error, boolean reconnecting) {
+                    calls.add("error " + reconnecting);
+                }
+                
+                @Override
+                public void onClosed(EventSource source) {
+                    calls.add("closed");
+                    closed.countDown();
+                }
+            };
+            
+            EventSource source = new EventSource(url + "/events")
+                    .listener(listener)
+                    .open();
+            EventSource.Event e = events.poll(5, TimeUnit.SECONDS);
+            assertEquals("message", e.type());
+            assertEquals("first", e.data());
+            assertEquals("1", e.id());
+            e = events.poll(5, TimeUnit.SECONDS);
+            assertEquals("update", e.type());
+            assertEquals("line1\nline2", e.data());
+            assertEquals("2", e.id());
+            // Reconnected after the 'retry' delay
+            e = events.poll(5, TimeUnit.SECONDS);
+            assertEquals("third", e.data());
+            assertEquals("3", e.id());
+            e = events.poll(5, TimeUnit.SECONDS);
+            assertEquals("spl\u00e8t", e.data());
+            assertEquals("3", e.id());
+            assertEquals(Arrays.asList("null", "2"), lastIds);
+            assertEquals("3", source.lastEventId());
+            source.close();
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertTrue(source.isClosed());
+            assertEquals(Arrays.asList("open", "error true", "open", "closed"), calls);
+            assertEquals(0, events.size());
+            
+            // 204 stops the source, without errors
+            calls.clear();
+            new EventSource(url + "/gone").listener(listener).run();
+            assertEquals(Arrays.asList("closed"), calls);
+            
+            // Not an event stream: not retried
+            calls.clear();
+            new EventSource(url + "/text").listener(listener).run();
+            assertEquals(Arrays.asList("error false", "closed"), calls);
+            calls.clear();
+            new EventSource(url + "/missing").listener(listener).run();
+            assertEquals(Arrays.asList("error false", "closed"), calls);
+            assertEquals(0, events.size());
+        } finally {
+            serverThreads.shutdownNow();
+        }
+        
+        Thread.sleep(200);
+    }
+    
+    @Test
+    public void testRecords() throws Exception {
+        final CountDownLatch firstRead = new CountDownLatch(1);
+        final AtomicInteger waited = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+            longLine.append((char) ('a' + i % 26));
+        httpServer = HttpServer.create(new InetSocketAddress(3029), 0);
+        httpServer.createContext("/export", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean gzip = exchange.getRequestURI().getQuery() != null;
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                if (gzip)
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                if (gzip)
+                    out = new GZIPOutputStream(out);
+                try {
+                    out.write("first\n".getBytes("UTF-8"));
+                    out.flush();
+                    if (requests.incrementAndGet() == 1) {
+                        // The first record is read before the rest is sent
+                        if (firstRead.await(5, TimeUnit.SECONDS))
+                            waited.incrementAndGet();
+                    }
+                    // CRLF, blank lines, a line larger than the buffer, and
+                    // the last line without a line break
+                    out.write("s\u00e8cond\r\n\n  \r\n".getBytes("UTF-8"));
+                    out.write((longLine + "\n").getBytes("UTF-8"));
+                    for (int i = 0; i < 10000; i++)
+                        out.write(("record " + i + "\n").getBytes("UTF-8"));
+                    out.write("last".getBytes("UTF-8"));
+                    out.close();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                } catch (IOException ex) {
+                    // Closed by the client
+                }
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/invalid", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "ok\n\nnot ok\nok\n".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/error", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "failed\n".getBytes("UTF-8");
+                exchange.sendResponseHeaders(500, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        httpServer.setExecutor(serverThreads);
+        httpServer.start();
+        String url = "http://localhost:3029";
+        
+        HttpClientSpec.DataAdapter lines = new HttpClientSpec.DataAdapter() {
+            @Override
+            public String serialize(Object content) {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public <T> T deserialize(String content, Class<T> type) {
+                if (content.equals("not ok"))
+                    throw new IllegalArgumentException(content);
+                return type.cast(content);
+            }
+            
+            @Override
+            public <T> T deserializeRef(String content, Object typeRef) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        // Parses each line from its bytes
+        HttpClientSpec.StreamDataAdapter streamLines = new HttpClientSpec.StreamDataAdapter() {
+            @Override
+            public void serialize(Object content, OutputStream out) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public <T> T deserialize(InputStream in, String charset, Class<T> type)
+                    throws IOException {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                int c;
+                while ((c = in.read()) != -1)
+                    b.write(c);
+                return type.cast(b.toString(charset));
+            }
+            
+            @Override
+            public <T> T deserializeRef(InputStream in, String charset, Object typeRef)
+                    throws IOException {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public String serialize(Object content) {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public <T> T deserialize(String content, Class<T> type) {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public <T> T deserializeRef(String content, Object typeRef) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        
+        try {
+            for (String query : new String[] { "", "?gzip" }) {
+                for (HttpClientSpec.DataAdapter adapter : Arrays.asList(lines, streamLines)) {
+                    HttpClient c = new HttpClient(url + "/export" + query)
+                            .returnRecords(String.class, adapter)
+                            .get();
+                    RecordIterator<String> records = c.records();
+                    assertSame(records, c.content());
+                    assertEquals("first", records.next());
+                    firstRead.countDown();
+                    assertEquals("s\u00e8cond", records.next());
+                    assertEquals(longLine.toString(), records.next());
+                    int n = 0;
+                    for (String r : records) {
+                        if (n < 10000)
+                            assertEquals("record " + n, r);
+                        else
+                            assertEquals("last", r);
+                        n++;
+                    }
+                    assertEquals(10001, n);
+                    assertFalse(records.hasNext());
+                    assertEquals(10006, records.lineNumber());
+                    try {
+                        records.next();
+                        assertTrue(false);
+                    } catch (NoSuchElementException ex) {
+                    }
+                }
+            }
+            assertEquals(1, waited.get());
+            
+            // Closed before the end
+            HttpClient c = new HttpClient(url + "/export")
+                    .returnRecords(String.class, lines)
+                    .get();
+            RecordIterator<String> records = c.records();
+            assertEquals("first", records.next());
+            records.close();
+            assertFalse(records.hasNext());
+            
+            // An invalid record closes the iterator
+            records = new HttpClient(url + "/invalid")
+                    .returnRecords(String.class, lines)
+                    .get()
+                    .records();
+            assertEquals("ok", records.next());
+            try {
+                records.next();
+                assertTrue(false);
+            } catch (RuntimeException ex) {
+                assertEquals("Invalid record at line 3", ex.getMessage());
+            }
+            assertFalse(records.hasNext());
+            
+            // No records for an error status
+            c = new HttpClient(url + "/error")
+                    .returnRecords(String.class, lines)
+                    .noExceptions()
+                    .get();
+            assertEquals(500, c.code());
+            assertEquals(null, c.records());
+            assertEquals("failed\n", c.rawContent());
+        } finally {
+            serverThreads.shutdownNow();
+        }
+        
+        Thread.sleep(200);
+    }
+    
 }
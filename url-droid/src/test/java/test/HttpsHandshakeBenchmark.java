@@ -0,0 +1,176 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.SslContexts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+
+/**
+ * Counts full and abbreviated TLS handshakes made by HTTPS requests, with a
+ * new SSLContext for each request (as before socket factories were cached)
+ * and with the shared socket factories.
+ * <p>
+ * Connection reuse is disabled, so every request opens a new connection and
+ * does a handshake. The server uses TLS 1.2, so a resumed session can be
+ * recognized by its session id.
+ * <p>
+ * Run with: <code>gradle benchmark -Pbench=HttpsHandshakeBenchmark</code>
+ * (optional argument: number of requests per round).
+ *
+ * @author ps
+ */
+public class HttpsHandshakeBenchmark {
+    private static final int PORT = 3100;
+    private static final Set<String> sessionIds =
+            Collections.synchronizedSet(new HashSet<String>());
+    private static final AtomicInteger handshakes = new AtomicInteger();
+
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        HttpsServer server = startServer();
+        try {
+            final SSLContext shared = SslContexts.newTrustAllContext();
+            // Warm up class loading and JIT
+            round("warm-up", requests / 4, new ContextSource() {
+                @Override
+                public SSLContext get() throws Exception {
+                    return null;
+                }
+            });
+
+            round("new SSLContext per request", requests, new ContextSource() {
+                @Override
+                public SSLContext get() throws Exception {
+                    return SslContexts.newTrustAllContext();
+                }
+            });
+            round("shared trust-all factory", requests, new ContextSource() {
+                @Override
+                public SSLContext get() throws Exception {
+                    return null;
+                }
+            });
+            round("shared user SSLContext", requests, new ContextSource() {
+                @Override
+                public SSLContext get() throws Exception {
+                    return shared;
+                }
+            });
+        } finally {
+            server.stop(0);
+        }
+    }
+
+
+    private static void round(String name, int requests, ContextSource contexts)
+            throws Exception {
+        sessionIds.clear();
+        handshakes.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            HttpClient c = new HttpClient("https://localhost:" + PORT + "/tls");
+            SSLContext sc = contexts.get();
+            if (sc != null)
+                c.sslContext(sc);
+            c.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        int full = sessionIds.size();
+        System.out.println(String.format(
+                "%-28s requests=%d full handshakes=%d resumed=%d total=%d ms avg=%.2f ms",
+                name, handshakes.get(), full, handshakes.get() - full,
+                elapsed / 1000000, elapsed / 1000000.0 / requests));
+    }
+
+
+    private static HttpsServer startServer() throws Exception {
+        char[] password = "changeit".toCharArray();
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(selfSignedKeyStore(password));
+        try {
+            ks.load(in, password);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        HttpsServer server = HttpsServer.create(new InetSocketAddress(PORT), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                SSLParameters p = getSSLContext().getDefaultSSLParameters();
+                p.setProtocols(new String[] { "TLSv1.2" });
+                params.setSSLParameters(p);
+            }
+        });
+        server.createContext("/tls", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] id = ((HttpsExchange) exchange).getSSLSession().getId();
+                StringBuilder sb = new StringBuilder();
+                for (byte b : id)
+                    sb.append(String.format("%02x", b));
+                sessionIds.add(sb.toString());
+                handshakes.incrementAndGet();
+
+                byte[] response = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+
+    private static File selfSignedKeyStore(char[] password) throws Exception {
+        File f = File.createTempFile("bench", ".jks");
+        f.delete();
+        f.deleteOnExit();
+        String keytool = System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "bench",
+                "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+                "-validity", "2", "-storetype", "JKS", "-keystore", f.getPath(),
+                "-storepass", new String(password), "-keypass", new String(password))
+                .redirectErrorStream(true)
+                .start();
+        if (p.waitFor() != 0)
+            throw new IllegalStateException("keytool failed");
+        return f;
+    }
+
+
+    private interface ContextSource {
+        SSLContext get() throws Exception;
+    }
+}
@@ -0,0 +1,164 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.MultiPart;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Uploads a large multipart part (1 GB by default) to a local server that
+ * discards it, with:
+ * <ul>
+ * <li>the previous encoder loop, which wrote at most 1024 bytes at a time
+ * (sized from {@code available()}), sent as a body writer;</li>
+ * <li>the multipart encoder, with a part of unknown length (chunked);</li>
+ * <li>the multipart encoder, with a part of known length (Content-Length).</li>
+ * </ul>
+ * The part is generated on the fly, so the disk is not involved. Run with:
+ * <code>gradle benchmark -Pbench=MultipartBenchmark</code>
+ * (optional argument: part size in MB).
+ *
+ * @author ps
+ */
+public class MultipartBenchmark {
+    private static final int PORT = 3102;
+
+
+    public static void main(String[] args) throws Exception {
+        final long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+
+        ExecutorService serverThreads = Executors.newFixedThreadPool(2);
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[64 * 1024];
+                long total = 0;
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    total += n;
+                byte[] response = String.valueOf(total).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        try {
+            // Warm-up
+            legacy(64L * 1024 * 1024);
+            upload(64L * 1024 * 1024, false);
+            upload(64L * 1024 * 1024, true);
+
+            round("previous encoder (1 KB writes)", size, legacy(size));
+            round("encoder, unknown length (chunked)", size, upload(size, false));
+            round("encoder, known length", size, upload(size, true));
+        } finally {
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+
+    private static long upload(long size, boolean knownLength) {
+        long start = System.nanoTime();
+        new HttpClient("http://localhost:" + PORT + "/upload")
+                .timeout(60000)
+                .addMultiPart(MultiPart.stream("file", "data.bin", null,
+                        new GeneratedStream(size), knownLength ? size : -1))
+                .post();
+        return System.nanoTime() - start;
+    }
+
+
+    /**
+     * Same loop as the encoder before it was rewritten.
+     */
+    private static long legacy(final long size) {
+        long start = System.nanoTime();
+        new HttpClient("http://localhost:" + PORT + "/upload")
+                .timeout(60000)
+                .entity(new HttpClient.BodyWriter() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        DataOutputStream os = new DataOutputStream(out);
+                        InputStream data = new GeneratedStream(size);
+                        final int maxBufferSize = 1024;
+                        int bytesAvailable = data.available();
+                        int bufferSize = Math.min(bytesAvailable, maxBufferSize);
+                        byte[] buffer = new byte[bufferSize];
+                        int read = data.read(buffer, 0, bufferSize);
+                        while (read > 0) {
+                            os.write(buffer, 0, bufferSize);
+                            bytesAvailable = data.available();
+                            bufferSize = Math.min(bytesAvailable, maxBufferSize);
+                            read = data.read(buffer, 0, bufferSize);
+                        }
+                        os.flush();
+                    }
+                })
+                .post();
+        return System.nanoTime() - start;
+    }
+
+
+    private static void round(String name, long size, long nanos) {
+        double elapsed = nanos / 1e9;
+        System.out.println(String.format("%-40s %6d MB %8.2f s %8.1f MB/s",
+                name, size / (1024 * 1024), elapsed, size / (1024 * 1024) / elapsed));
+    }
+
+
+    /**
+     * Generates bytes without I/O. Like a file, it reports the remaining
+     * bytes as available.
+     */
+    private static class GeneratedStream extends InputStream {
+        private long remaining;
+
+
+        GeneratedStream(long size) {
+            this.remaining = size;
+        }
+
+
+        @Override
+        public int read() {
+            if (remaining == 0)
+                return -1;
+            remaining--;
+            return (int) (remaining & 0xff);
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0)
+                return -1;
+            int n = (int) Math.min(len, remaining);
+            for (int i = 0; i < n; i++)
+                b[off + i] = (byte) (remaining - i);
+            remaining -= n;
+            return n;
+        }
+
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpClientSpec;
+import it.idsolutions.util.RecordIterator;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Reads a newline-delimited response of 1,000,000 records (by default) as
+ * a single String split into lines, and with a {@link RecordIterator},
+ * and prints the time to the first record, the total time and the peak
+ * heap used. Run with:
+ * <code>gradle benchmark -Pbench=RecordsBenchmark</code>
+ * (optional argument: number of records).
+ *
+ * @author ps
+ */
+public class RecordsBenchmark {
+    private static final int PORT = 3107;
+
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/export", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024);
+                for (int i = 0; i < count; i++)
+                    out.write(("{\"id\":" + i + ",\"name\":\"record " + i + "\"}\n").getBytes("UTF-8"));
+                out.close();
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        HttpClientSpec.DataAdapter adapter = new HttpClientSpec.DataAdapter() {
+            @Override
+            public String serialize(Object content) {
+                throw new UnsupportedOperationException();
+            }
+
+
+            @Override
+            public <T> T deserialize(String content, Class<T> type) {
+                return type.cast(content);
+            }
+
+
+            @Override
+            public <T> T deserializeRef(String content, Object typeRef) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        String url = "http://localhost:" + PORT + "/export";
+        try {
+            for (int round = 0; round < 3; round++) {
+                // Whole body as a String
+                resetPeak();
+                long t = System.nanoTime();
+                String body = new HttpClient(url).get().rawContent();
+                long first = 0;
+                int n = 0;
+                int start = 0;
+                int nl;
+                while ((nl = body.indexOf('\n', start)) >= 0) {
+                    adapter.deserialize(body.substring(start, nl), String.class);
+                    if (n++ == 0)
+                        first = System.nanoTime() - t;
+                    start = nl + 1;
+                }
+                body = null;
+                round("string", n, first, System.nanoTime() - t);
+
+                // Records read while they arrive
+                resetPeak();
+                t = System.nanoTime();
+                RecordIterator<String> records = new HttpClient(url)
+                        .returnRecords(String.class, adapter)
+                        .get()
+                        .records();
+                n = 0;
+                for (String r : records) {
+                    if (n++ == 0)
+                        first = System.nanoTime() - t;
+                }
+                round("records", n, first, System.nanoTime() - t);
+            }
+        } finally {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+
+    private static void resetPeak() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+
+    private static void round(String name, int records, long firstNanos, long totalNanos) {
+        System.out.println(String.format("%-8s %8d records %8.1f ms first %8.1f ms total %6d MB peak heap",
+                name, records, firstNanos / 1e6, totalNanos / 1e6, peakHeap() / (1024 * 1024)));
+    }
+}
@@ -0,0 +1,110 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.SegmentedDownload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Downloads a file (32 MB by default) from a local server that limits the
+ * throughput of each connection, as the round-trip time limits a single
+ * TCP connection on a long-distance link, with a single request and with
+ * 2, 4 and 8 concurrent ranges. Run with:
+ * <code>gradle benchmark -Pbench=SegmentedDownloadBenchmark</code>
+ * (optional arguments: file size in MB, throughput per connection in MB/s).
+ *
+ * @author ps
+ */
+public class SegmentedDownloadBenchmark {
+    private static final int PORT = 3104;
+
+
+    public static void main(String[] args) throws Exception {
+        final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 32) * 1024 * 1024;
+        final int perConnection = (args.length > 1 ? Integer.parseInt(args[1]) : 4) * 1024 * 1024;
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) i;
+
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().set("ETag", "\"1\"");
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(size));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                int from = 0;
+                int to = size - 1;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null) {
+                    String[] r = range.substring("bytes=".length()).split("-");
+                    from = Integer.parseInt(r[0]);
+                    to = Integer.parseInt(r[1]);
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + from + "-" + to + "/" + size);
+                }
+                exchange.sendResponseHeaders(range != null ? 206 : 200, to - from + 1);
+                OutputStream out = exchange.getResponseBody();
+                // 64 KB slices, paced to the throughput of a connection
+                long start = System.nanoTime();
+                for (int pos = from; pos <= to; pos += 64 * 1024) {
+                    int n = Math.min(64 * 1024, to - pos + 1);
+                    out.write(data, pos, n);
+                    long due = start + (long) ((pos - from + n) * 1e9 / perConnection);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        File target = File.createTempFile("url-droid", ".bin");
+        try {
+            String url = "http://localhost:" + PORT + "/file";
+            long t = System.nanoTime();
+            new HttpClient(url).download(target);
+            round("single request", size, System.nanoTime() - t);
+            for (int segments : new int[] { 2, 4, 8 }) {
+                t = System.nanoTime();
+                new SegmentedDownload(url)
+                        .segments(segments)
+                        .download(target);
+                round(segments + " ranges", size, System.nanoTime() - t);
+            }
+        } finally {
+            target.delete();
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+
+    private static void round(String name, long size, long nanos) {
+        double elapsed = nanos / 1e9;
+        System.out.println(String.format("%-20s %6d MB %8.2f s %8.1f MB/s",
+                name, size / (1024 * 1024), elapsed, size / (1024 * 1024) / elapsed));
+    }
+}
@@ -0,0 +1,99 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.SegmentedUpload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Uploads a file (32 MB by default) to a local server that limits the
+ * throughput of each connection, as the round-trip time limits a single
+ * TCP connection on a long-distance link, with a single request and in
+ * parts of 4 MB sent by 2, 4 and 8 concurrent requests. Run with:
+ * <code>gradle benchmark -Pbench=SegmentedUploadBenchmark</code>
+ * (optional arguments: file size in MB, throughput per connection in MB/s).
+ *
+ * @author ps
+ */
+public class SegmentedUploadBenchmark {
+    private static final int PORT = 3105;
+
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 32) * 1024 * 1024;
+        final int perConnection = (args.length > 1 ? Integer.parseInt(args[1]) : 4) * 1024 * 1024;
+
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Read 64 KB slices, paced to the throughput of a connection
+                InputStream in = exchange.getRequestBody();
+                byte[] buf = new byte[64 * 1024];
+                long start = System.nanoTime();
+                long total = 0;
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    total += n;
+                    long wait = start + (long) (total * 1e9 / perConnection) - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                    }
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        };
+        server.createContext("/upload", handler);
+        server.createContext("/parts", handler);
+        server.createContext("/commit", handler);
+        server.setExecutor(serverThreads);
+        server.start();
+        File file = File.createTempFile("url-droid", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[size]);
+            out.close();
+            String url = "http://localhost:" + PORT;
+            long t = System.nanoTime();
+            new HttpClient(url + "/upload").entity(file).put();
+            round("single request", size, System.nanoTime() - t);
+            for (int concurrency : new int[] { 2, 4, 8 }) {
+                t = System.nanoTime();
+                new SegmentedUpload(file, SegmentedUpload.indexedParts(null,
+                        url + "/parts/{part}", url + "/commit"))
+                        .partSize(4 * 1024 * 1024)
+                        .concurrency(concurrency)
+                        .upload();
+                round(concurrency + " concurrent parts", size, System.nanoTime() - t);
+            }
+        } finally {
+            file.delete();
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+
+    private static void round(String name, long size, long nanos) {
+        double elapsed = nanos / 1e9;
+        System.out.println(String.format("%-20s %6d MB %8.2f s %8.1f MB/s",
+                name, size / (1024 * 1024), elapsed, size / (1024 * 1024) / elapsed));
+    }
+}
@@ -0,0 +1,128 @@
+package test;
+
+import it.idsolutions.util.HttpClient;
+import it.idsolutions.util.HttpExecutors;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Runs many concurrent requests to a slow server (each response takes
+ * 1 second), on a fixed pool of platform threads and on virtual threads.
+ * <p>
+ * With the fixed pool, at most one request per thread is in flight, so the
+ * elapsed time is about requests / threads seconds. With virtual threads
+ * every request is in flight at once, and a blocked request does not hold
+ * a platform thread.
+ * <p>
+ * Requires Java 21 for the virtual thread round. Run with:
+ * <code>gradle benchmark -Pbench=VirtualThreadBenchmark</code>
+ * (optional arguments: number of requests, platform pool size).
+ *
+ * @author ps
+ */
+public class VirtualThreadBenchmark {
+    private static final int PORT = 3101;
+    private static final int DELAY = 1000;
+
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        // The server closes connections beyond this limit
+        System.setProperty("sun.net.httpserver.maxIdleConnections",
+                String.valueOf(requests * 2));
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        HttpServer server = startServer(timer, serverThreads, requests);
+        try {
+            ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+            round("warm-up", Math.min(requests, poolSize), pool);
+            round("fixed pool of " + poolSize + " platform threads", requests, pool);
+            pool.shutdown();
+
+            if (HttpExecutors.virtualThreadsAvailable())
+                round("virtual threads", requests, HttpExecutors.virtualThreads());
+            else
+                System.out.println("Virtual threads are not available (Java 21+ required)");
+        } finally {
+            server.stop(0);
+            serverThreads.shutdown();
+            timer.shutdown();
+        }
+    }
+
+
+    private static void round(String name, int requests, Executor executor)
+            throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        List<Future<HttpClient>> futures = new ArrayList<Future<HttpClient>>(requests);
+        for (int i = 0; i < requests; i++) {
+            futures.add(new HttpClient("http://localhost:" + PORT + "/slow")
+                    .keepAlive(true)
+                    .timeout(60000)
+                    .executor(executor)
+                    .getAsync());
+        }
+        int errors = 0;
+        for (Future<HttpClient> f : futures) {
+            try {
+                f.get();
+            } catch (Exception ex) {
+                errors++;
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(
+                "%-40s %6d requests %8.2f s %8.1f req/s  peak threads %5d  errors %d",
+                name, requests, elapsed, requests / elapsed,
+                threads.getPeakThreadCount(), errors));
+    }
+
+
+    private static HttpServer startServer(final ScheduledExecutorService timer,
+            Executor executor, int backlog) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), backlog);
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                // Respond later, without holding a server thread
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            byte[] response = "OK".getBytes("UTF-8");
+                            exchange.sendResponseHeaders(200, response.length);
+                            exchange.getResponseBody().write(response);
+                        } catch (IOException ex) {
+                            // Client gone
+                        } finally {
+                            exchange.close();
+                        }
+                    }
+                }, DELAY, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+}